@@ -0,0 +1,276 @@
+package com.xiaotao.redis;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 批量预取消费的基类: 一个线程按本地空闲的处理容量批量预取, 交给线程池处理, 处理结果在下次预取前批量确认
+ *
+ * 确认失败时结果放回待确认队列, 下次重试, 因此确认命令需可重复执行
+ *
+ * @author wxt366@126.com
+ */
+abstract class AbstractConsumer<T> implements Closeable {
+    protected final Log log = LogFactory.getLog(getClass());
+
+    private final ConcurrentLinkedQueue<T> acks = new ConcurrentLinkedQueue<>();
+
+    private final ConcurrentLinkedQueue<T> nacks = new ConcurrentLinkedQueue<>();
+
+    private volatile Executor workers;
+
+    private int capacity = 100;
+
+    private Semaphore inFlight;
+
+    /**
+     * 开始消费时的处理容量, 即inFlight的许可总数
+     */
+    private int permits;
+
+    private volatile Thread fetcher;
+
+    private volatile boolean running;
+
+    AbstractConsumer(Executor workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * 设置处理的线程池
+     *
+     * @param workers
+     */
+    public void setWorkers(Executor workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * 设置本地同时处理中的最大数量, 也是每次预取的最大数量, 下次开始消费时生效
+     *
+     * @param capacity
+     */
+    protected void setCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * 启动预取线程
+     *
+     * @param threadName
+     * @param handler
+     */
+    protected synchronized void start(String threadName, Consumer<T> handler) {
+        if (running) {
+            return;
+        }
+        running = true;
+        permits = capacity;
+        inFlight = new Semaphore(permits);
+        fetcher = new Thread(() -> consume(handler), threadName);
+        fetcher.setDaemon(true);
+        fetcher.start();
+    }
+
+    protected boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 停止消费, 等待处理中的数据完成并确认
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        int permits;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            thread = fetcher;
+            permits = this.permits;
+        }
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+            if (inFlight.tryAcquire(permits, closeTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                inFlight.release(permits);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            flushAcks();
+        } finally {
+            afterClose();
+        }
+    }
+
+    /**
+     * 每轮预取前执行, 如写入心跳
+     */
+    protected void beforeFetch() {
+    }
+
+    /**
+     * 预取最多count个数据, 没有数据时可阻塞等待一段时间
+     *
+     * @param count
+     * @return
+     */
+    protected abstract List<T> fetch(int count);
+
+    /**
+     * 批量确认
+     *
+     * @param acked  处理成功的数据
+     * @param failed 通过 nack 标记为失败的数据
+     */
+    protected abstract void acknowledge(List<T> acked, List<T> failed);
+
+    /**
+     * 处理抛出异常或线程池拒绝执行时调用, 可通过 nack 标记为失败
+     *
+     * @param item
+     * @param e
+     */
+    protected abstract void failed(T item, RuntimeException e);
+
+    /**
+     * 关闭时等待处理中数据完成的最长时间
+     *
+     * @return
+     */
+    protected abstract long closeTimeoutMillis();
+
+    /**
+     * 关闭并确认剩余数据后执行, 如删除心跳
+     */
+    protected void afterClose() {
+    }
+
+    /**
+     * 日志中的名称
+     *
+     * @return
+     */
+    protected abstract String description();
+
+    /**
+     * 标记为处理失败, 在下次确认时交给 acknowledge
+     *
+     * @param item
+     */
+    protected void nack(T item) {
+        nacks.add(item);
+    }
+
+    private void consume(Consumer<T> handler) {
+        while (running) {
+            try {
+                beforeFetch();
+                flushAcks();
+                int count = waitForCapacity();
+                if (count == 0) {
+                    continue;
+                }
+
+                List<T> items;
+                try {
+                    items = fetch(count);
+                } catch (RuntimeException e) {
+                    inFlight.release(count);
+                    throw e;
+                }
+                if (items.size() < count) {
+                    inFlight.release(count - items.size());
+                }
+                for (T item : items) {
+                    dispatch(handler, item);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                log.warn("Consume " + description() + " failed", e);
+                sleep();
+            }
+        }
+    }
+
+    /**
+     * 等待本地有空闲的处理容量, 返回可以预取的数量
+     */
+    private int waitForCapacity() throws InterruptedException {
+        if (!inFlight.tryAcquire(1, TimeUnit.SECONDS)) {
+            return 0;
+        }
+        return 1 + inFlight.drainPermits();
+    }
+
+    private void dispatch(Consumer<T> handler, T item) {
+        try {
+            workers.execute(() -> {
+                try {
+                    handler.accept(item);
+                    acks.add(item);
+                } catch (RuntimeException e) {
+                    failed(item, e);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            failed(item, e);
+            inFlight.release();
+        }
+    }
+
+    /**
+     * 批量确认, 失败时放回待确认队列
+     */
+    private void flushAcks() {
+        List<T> acked = drain(acks);
+        List<T> failed = drain(nacks);
+        if (acked.isEmpty() && failed.isEmpty()) {
+            return;
+        }
+
+        try {
+            acknowledge(acked, failed);
+        } catch (RuntimeException e) {
+            acks.addAll(acked);
+            nacks.addAll(failed);
+            throw e;
+        }
+    }
+
+    private static <T> List<T> drain(ConcurrentLinkedQueue<T> queue) {
+        List<T> items = new ArrayList<>();
+        T item;
+        while ((item = queue.poll()) != null) {
+            items.add(item);
+        }
+        return items;
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
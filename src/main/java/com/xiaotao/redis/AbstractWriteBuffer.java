@@ -0,0 +1,160 @@
+package com.xiaotao.redis;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * 本地写缓冲的基类: 定时刷新、按需立即刷新、关闭及JVM退出时写入剩余数据
+ *
+ * @author wxt366@126.com
+ */
+abstract class AbstractWriteBuffer implements Closeable {
+    protected final Log log = LogFactory.getLog(getClass());
+
+    protected final RedisTable redisTable;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private final Thread shutdownHook;
+
+    private volatile boolean closed;
+
+    private final AtomicLong commands = new AtomicLong();
+
+    private final AtomicLong flushes = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    AbstractWriteBuffer(RedisTable redisTable, String name, long flushInterval, TimeUnit unit) {
+        this.redisTable = redisTable;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "redis-helper-" + name + "-" + redisTable.getTableKey());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, unit);
+        this.shutdownHook = new Thread(this::flushQuietly);
+        Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+    }
+
+    /**
+     * 立即将缓冲的数据写入Redis
+     */
+    public void flush() {
+        flush(this::doFlush);
+    }
+
+    /**
+     * 持有刷新锁执行一次写入并计入统计, 同一时间只有一个写入在进行
+     *
+     * @param writer 写入数据, 返回写入Redis的命令数
+     */
+    protected synchronized void flush(LongSupplier writer) {
+        try {
+            long count = writer.getAsLong();
+            if (count > 0) {
+                commands.addAndGet(count);
+                flushes.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            failures.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * 写入缓冲的数据, 失败时需保留未写入的数据供下次刷新
+     *
+     * @return 写入Redis的命令数
+     */
+    protected abstract long doFlush();
+
+    /**
+     * 在刷新线程中异步刷新一次
+     */
+    protected void requestFlush() {
+        if (flushRequested.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(() -> {
+                    flushRequested.set(false);
+                    flushQuietly();
+                });
+            } catch (RuntimeException e) {
+                flushRequested.set(false);
+            }
+        }
+    }
+
+    protected void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException(getClass().getSimpleName() + " is closed");
+        }
+    }
+
+    protected boolean isClosed() {
+        return closed;
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.warn("Flush " + getClass().getSimpleName() + " of table " + redisTable.getTableKey() + " failed", e);
+        }
+    }
+
+    /**
+     * 停止定时刷新并写入剩余的数据
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        scheduler.shutdown();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // 正在关闭JVM
+        }
+        flush();
+    }
+
+    /**
+     * 累计写入Redis的命令数
+     *
+     * @return
+     */
+    public long getCommands() {
+        return commands.get();
+    }
+
+    /**
+     * 成功刷新的次数
+     *
+     * @return
+     */
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    /**
+     * 刷新失败的次数, 失败的数据会保留到下次刷新
+     *
+     * @return
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+}
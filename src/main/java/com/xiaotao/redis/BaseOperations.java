@@ -1,19 +1,26 @@
 package com.xiaotao.redis;
 
 import org.springframework.data.redis.connection.DataType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.TimeoutUtils;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 /**
  * @author wxt366@126.com
  */
 abstract class BaseOperations {
-    protected StringRedisTemplate redisTemplate;
+    protected volatile StringRedisTemplate redisTemplate;
 
     protected RedisTable redisTable;
 
@@ -22,6 +29,25 @@ abstract class BaseOperations {
         this.redisTable = redisTable;
     }
 
+    /**
+     * 切换操作使用的连接, 操作对象的其他状态不变
+     *
+     * @param redisTemplate
+     */
+    void setRedisTemplate(StringRedisTemplate redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    /**
+     * 一类操作使用的连接, 表未为该类操作绑定专用连接池时为表的连接
+     *
+     * @param group
+     * @return
+     */
+    protected StringRedisTemplate templateFor(ConnectionPool.Group group) {
+        return redisTable.getRedisTemplate(group);
+    }
+
     /**
      * 获取存储的Key
      * @param key
@@ -31,14 +57,52 @@ abstract class BaseOperations {
         return redisTable.getTableKey() + key;
     }
 
+    /**
+     * 获取逻辑key对应的全部存储Key, 分桶存储的类型会对应多个Key
+     * @param key
+     * @return
+     */
+    protected List<String> getStoreKeys(String key) {
+        return Collections.singletonList(getStoreKey(key));
+    }
+
+    /**
+     * 丢弃异步写缓冲中这些key尚未写入的值, 删除或整体覆盖key之前调用, 避免旧值之后再写入Redis
+     *
+     * @param newKeys 存储key
+     */
+    protected void discardPending(Collection<String> newKeys) {
+        WriteBehindBuffer writeBehindBuffer = redisTable.getWriteBehindBuffer();
+        if (writeBehindBuffer != null) {
+            writeBehindBuffer.discard(newKeys);
+        }
+    }
+
+    /**
+     * 立即写入异步写缓冲中这些key尚未写入的值, 直接读取或修改key之前调用
+     *
+     * @param newKeys 存储key
+     */
+    protected void flushPending(Collection<String> newKeys) {
+        WriteBehindBuffer writeBehindBuffer = redisTable.getWriteBehindBuffer();
+        if (writeBehindBuffer != null) {
+            writeBehindBuffer.flush(newKeys);
+        }
+    }
+
     /**
      * 删除key
      *
      * @param key
      */
     public void delete(String key) {
-        String newKey = getStoreKey(key);
-        redisTemplate.delete(newKey);
+        List<String> newKeys = getStoreKeys(key);
+        discardPending(newKeys);
+        if (newKeys.size() == 1) {
+            redisTemplate.delete(newKeys.get(0));
+        } else {
+            redisTemplate.delete(newKeys);
+        }
     }
 
     /**
@@ -47,19 +111,27 @@ abstract class BaseOperations {
      * @param keys
      */
     public void delete(Collection<String> keys) {
-        Collection<String> newKeys = keys.parallelStream().map(this::getStoreKey).collect(Collectors.toList());
+        List<String> newKeys = keys.stream().flatMap(k -> getStoreKeys(k).stream()).collect(Collectors.toList());
+        discardPending(newKeys);
 
-        redisTemplate.delete(newKeys);
+        redisTable.getKeyRouter().pipelineByNode(newKeys, (connection, slots) -> {
+            for (List<Integer> slot : slots) {
+                connection.del(KeyRouter.select(newKeys, slot));
+            }
+        });
     }
 
     /**
      * 序列化key
      *
+     * 注：哈希表分桶或有序集合分片时一个key存储在多个Redis key中, 不能序列化, 抛出 IllegalStateException
+     *
      * @param key
      * @return
      */
     public byte[] dump(String key) {
-        String newKey = getStoreKey(key);
+        String newKey = getSingleStoreKey(key, "dumped");
+        flushPending(Collections.singletonList(newKey));
         return redisTemplate.dump(newKey);
     }
 
@@ -70,8 +142,12 @@ abstract class BaseOperations {
      * @return
      */
     public Boolean hasKey(String key) {
-        String newKey = getStoreKey(key);
-        return redisTemplate.hasKey(newKey);
+        List<String> newKeys = getStoreKeys(key);
+        flushPending(newKeys);
+        if (newKeys.size() == 1) {
+            return redisTemplate.hasKey(newKeys.get(0));
+        }
+        return redisTemplate.countExistingKeys(newKeys) > 0;
     }
 
     /**
@@ -83,8 +159,14 @@ abstract class BaseOperations {
      * @return
      */
     public Boolean expire(String key, long timeout, TimeUnit unit) {
-        String newKey = getStoreKey(key);
-        return redisTemplate.expire(newKey, timeout, unit);
+        List<String> newKeys = getStoreKeys(key);
+        flushPending(newKeys);
+        if (newKeys.size() == 1) {
+            return redisTemplate.expire(newKeys.get(0), timeout, unit);
+        }
+
+        long millis = TimeoutUtils.toMillis(timeout, unit);
+        return anyTrue(newKeys, (connection, newKey) -> connection.pExpire(newKey, millis));
     }
 
     /**
@@ -95,8 +177,13 @@ abstract class BaseOperations {
      * @return
      */
     public Boolean expireAt(String key, Date date) {
-        String newKey = getStoreKey(key);
-        return redisTemplate.expireAt(newKey, date);
+        List<String> newKeys = getStoreKeys(key);
+        flushPending(newKeys);
+        if (newKeys.size() == 1) {
+            return redisTemplate.expireAt(newKeys.get(0), date);
+        }
+
+        return anyTrue(newKeys, (connection, newKey) -> connection.pExpireAt(newKey, date.getTime()));
     }
 
     /**
@@ -112,12 +199,15 @@ abstract class BaseOperations {
     /**
      * 将当前数据库的 key 移动到给定的数据库 db 当中
      *
+     * 注：哈希表分桶或有序集合分片时不能移动, 抛出 IllegalStateException
+     *
      * @param key
      * @param dbIndex
      * @return
      */
     public Boolean move(String key, int dbIndex) {
-        String newKey = getStoreKey(key);
+        String newKey = getSingleStoreKey(key, "moved");
+        flushPending(Collections.singletonList(newKey));
         return redisTemplate.move(newKey, dbIndex);
     }
 
@@ -128,30 +218,35 @@ abstract class BaseOperations {
      * @return
      */
     public Boolean persist(String key) {
-        String newKey = getStoreKey(key);
-        return redisTemplate.persist(newKey);
+        List<String> newKeys = getStoreKeys(key);
+        flushPending(newKeys);
+        if (newKeys.size() == 1) {
+            return redisTemplate.persist(newKeys.get(0));
+        }
+
+        return anyTrue(newKeys, StringRedisConnection::persist);
     }
 
     /**
-     * 返回 key 的剩余的过期时间
+     * 返回 key 的剩余的过期时间, 存储在多个Redis key中时返回第一个存在的key的过期时间
      *
      * @param key
      * @param unit
      * @return
      */
     public Long getExpire(String key, TimeUnit unit) {
-        String newKey = getStoreKey(key);
+        String newKey = firstExistingKey(getStoreKeys(key));
         return redisTemplate.getExpire(newKey, unit);
     }
 
     /**
-     * 返回 key 的剩余的过期时间
+     * 返回 key 的剩余的过期时间, 存储在多个Redis key中时返回第一个存在的key的过期时间
      *
      * @param key
      * @return
      */
     public Long getExpire(String key) {
-        String newKey = getStoreKey(key);
+        String newKey = firstExistingKey(getStoreKeys(key));
         return redisTemplate.getExpire(newKey);
     }
 
@@ -169,12 +264,16 @@ abstract class BaseOperations {
     /**
      * 修改 key 的名称
      *
+     * 注：哈希表分桶或有序集合分片时不能改名, 抛出 IllegalStateException
+     *
      * @param oldKey
      * @param newKey
      */
     public void rename(String oldKey, String newKey) {
-        String newOldKey = getStoreKey(oldKey);
-        String newNewKey = getStoreKey(newKey);
+        String newOldKey = getSingleStoreKey(oldKey, "renamed");
+        String newNewKey = getSingleStoreKey(newKey, "renamed");
+        flushPending(Collections.singletonList(newOldKey));
+        discardPending(Collections.singletonList(newNewKey));
 
         redisTemplate.rename(newOldKey, newNewKey);
     }
@@ -182,24 +281,79 @@ abstract class BaseOperations {
     /**
      * 仅当 newkey 不存在时，将 oldKey 改名为 newkey
      *
+     * 注：哈希表分桶或有序集合分片时不能改名, 抛出 IllegalStateException
+     *
      * @param oldKey
      * @param newKey
      * @return
      */
     public Boolean renameIfAbsent(String oldKey, String newKey) {
-        String newOldKey = getStoreKey(oldKey);
-        String newNewKey = getStoreKey(newKey);
+        String newOldKey = getSingleStoreKey(oldKey, "renamed");
+        String newNewKey = getSingleStoreKey(newKey, "renamed");
+        flushPending(Arrays.asList(newOldKey, newNewKey));
         return redisTemplate.renameIfAbsent(newOldKey, newNewKey);
     }
 
     /**
-     * 返回 key 所储存的值的类型
+     * 返回 key 所储存的值的类型, 存储在多个Redis key中时返回第一个存在的key的类型
      *
      * @param key
      * @return
      */
     public DataType type(String key) {
-        String newKey = getStoreKey(key);
+        String newKey = firstExistingKey(getStoreKeys(key));
         return redisTemplate.type(newKey);
     }
+
+    /**
+     * 只存储在一个Redis key中时返回该key, 否则(哈希表分桶、有序集合分片)抛出 IllegalStateException
+     *
+     * @param key
+     * @param operation 错误信息中的操作名称
+     * @return
+     */
+    private String getSingleStoreKey(String key, String operation) {
+        List<String> newKeys = getStoreKeys(key);
+        if (newKeys.size() > 1) {
+            throw new IllegalStateException("Key " + key + " is stored in " + newKeys.size()
+                    + " keys (hash buckets or zset shards) and can't be " + operation);
+        }
+        return newKeys.get(0);
+    }
+
+    /**
+     * 第一个存在的key, 都不存在时返回第一个key
+     *
+     * @param newKeys
+     * @return
+     */
+    private String firstExistingKey(List<String> newKeys) {
+        if (newKeys.size() == 1) {
+            return newKeys.get(0);
+        }
+        List<Object> exists = redisTable.getKeyRouter().pipelineEach(newKeys, StringRedisConnection::exists);
+        for (int i = 0; i < newKeys.size(); i++) {
+            if (Boolean.TRUE.equals(exists.get(i))) {
+                return newKeys.get(i);
+            }
+        }
+        return newKeys.get(0);
+    }
+
+    /**
+     * 在pipeline中对每个Key执行命令, 任一结果为true时返回true
+     *
+     * @param newKeys
+     * @param command
+     * @return
+     */
+    private Boolean anyTrue(List<String> newKeys, BiConsumer<StringRedisConnection, String> command) {
+        List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String newKey : newKeys) {
+                command.accept((StringRedisConnection) connection, newKey);
+            }
+            return null;
+        });
+        return results.contains(Boolean.TRUE);
+    }
 }
@@ -0,0 +1,278 @@
+package com.xiaotao.redis;
+
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.BitFieldSubCommands;
+import org.springframework.data.redis.connection.BitFieldSubCommands.BitFieldIncrBy.Overflow;
+import org.springframework.data.redis.connection.BitFieldSubCommands.BitFieldType;
+import org.springframework.data.redis.connection.BitFieldSubCommands.Offset;
+import org.springframework.data.redis.connection.RedisStringCommands.BitOperation;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * 位域相关操作
+ *
+ * 将一个String当作定长有符号或无符号整数的数组, 下标按类型宽度换算为位偏移.
+ * 批量读写时多个下标合并为一条 BITFIELD 命令, 超过512个子命令时拆分后以pipeline发送.
+ * 位偏移在本地计算, 不使用 "#下标" 形式, Lettuce下 Offset.multipliedByTypeLength() 不生效
+ *
+ * @author wxt366@126.com
+ */
+public class BitfieldOperations extends BaseOperations {
+    /**
+     * 每条 BITFIELD 命令的最大子命令数
+     */
+    private static final int SUB_COMMAND_BATCH_SIZE = 512;
+
+    public BitfieldOperations(StringRedisTemplate redisTemplate, RedisTable redisTable) {
+        super(redisTemplate, redisTable);
+    }
+
+    /**
+     * 获取数组中的一个整数
+     *
+     * @param key
+     * @param type  整数类型, 如 BitFieldType.unsigned(4)
+     * @param index 下标
+     * @return
+     */
+    public Long get(String key, BitFieldType type, long index) {
+        return get(key, type, new long[]{index}).get(0);
+    }
+
+    /**
+     * 批量获取数组中的整数
+     *
+     * @param key
+     * @param type    整数类型
+     * @param indexes 下标
+     * @return 与下标顺序一致的值
+     */
+    public List<Long> get(String key, BitFieldType type, long... indexes) {
+        List<Long> list = new ArrayList<>(indexes.length);
+        for (long index : indexes) {
+            list.add(index);
+        }
+        return execute(key, list, (commands, index) -> commands.get(type).valueAt(offset(type, index)));
+    }
+
+    /**
+     * 设置数组中的一个整数
+     *
+     * @param key
+     * @param type  整数类型
+     * @param index 下标
+     * @param value
+     * @return 原来的值
+     */
+    public Long set(String key, BitFieldType type, long index, long value) {
+        return execute(key, Arrays.asList(index),
+                (commands, i) -> commands.set(type).valueAt(offset(type, i)).to(value)).get(0);
+    }
+
+    /**
+     * 批量设置数组中的整数
+     *
+     * @param key
+     * @param type   整数类型
+     * @param values 下标与值
+     * @return 与values迭代顺序一致的原来的值
+     */
+    public List<Long> set(String key, BitFieldType type, Map<Long, Long> values) {
+        return execute(key, new ArrayList<>(values.keySet()),
+                (commands, index) -> commands.set(type).valueAt(offset(type, index)).to(values.get(index)));
+    }
+
+    /**
+     * 数组中的一个整数增加delta, 溢出时回绕
+     *
+     * @param key
+     * @param type  整数类型
+     * @param index 下标
+     * @param delta
+     * @return 增加后的值
+     */
+    public Long increment(String key, BitFieldType type, long index, long delta) {
+        return increment(key, type, index, delta, Overflow.WRAP);
+    }
+
+    /**
+     * 数组中的一个整数增加delta
+     *
+     * @param key
+     * @param type     整数类型
+     * @param index    下标
+     * @param delta
+     * @param overflow 溢出策略, WRAP回绕, SAT取最大(小)值, FAIL不修改并返回null
+     * @return 增加后的值
+     */
+    public Long increment(String key, BitFieldType type, long index, long delta, Overflow overflow) {
+        return increment(key, type, Collections.singletonMap(index, delta), overflow).get(0);
+    }
+
+    /**
+     * 批量增加数组中的整数, 用于大量小计数器
+     *
+     * @param key
+     * @param type     整数类型
+     * @param deltas   下标与增量
+     * @param overflow 溢出策略, WRAP回绕, SAT取最大(小)值, FAIL不修改并返回null
+     * @return 与deltas迭代顺序一致的增加后的值
+     */
+    public List<Long> increment(String key, BitFieldType type, Map<Long, Long> deltas, Overflow overflow) {
+        List<Long> indexes = new ArrayList<>(deltas.keySet());
+        if (overflow != Overflow.FAIL) {
+            return execute(key, indexes,
+                    (commands, index) -> commands.incr(type).valueAt(offset(type, index)).overflow(overflow).by(deltas.get(index)));
+        }
+
+        // Lettuce 会丢弃结果中失败的null, 每个 INCRBY 前先 GET 原值, 按原值判断哪些增加失败
+        List<Long> results = execute(key, indexes, (commands, index) -> commands.get(type).valueAt(offset(type, index))
+                .incr(type).valueAt(offset(type, index)).overflow(overflow).by(deltas.get(index)));
+        List<Long> values = new ArrayList<>(indexes.size());
+        int position = 0;
+        for (Long index : indexes) {
+            long old = results.get(position++);
+            if (overflows(type, old, deltas.get(index))) {
+                values.add(null);
+                if (position < results.size() && results.get(position) == null) {
+                    position++;
+                }
+            } else {
+                values.add(results.get(position++));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * 统计值为1的位数
+     *
+     * @param key
+     * @return
+     */
+    public Long bitCount(String key) {
+        String newKey = getStoreKey(key);
+        return redisTemplate.execute((RedisCallback<Long>) connection -> ((StringRedisConnection) connection).bitCount(newKey));
+    }
+
+    /**
+     * 统计字节范围内值为1的位数
+     *
+     * @param key
+     * @param start 开始字节, 可以为负数
+     * @param end   结束字节, 可以为负数
+     * @return
+     */
+    public Long bitCount(String key, long start, long end) {
+        String newKey = getStoreKey(key);
+        return redisTemplate.execute((RedisCallback<Long>) connection -> ((StringRedisConnection) connection).bitCount(newKey, start, end));
+    }
+
+    /**
+     * 获取第一个值为bit的位的位置
+     *
+     * @param key
+     * @param bit
+     * @return 没有时返回-1
+     */
+    public Long bitPos(String key, boolean bit) {
+        String newKey = getStoreKey(key);
+        return redisTemplate.execute((RedisCallback<Long>) connection -> ((StringRedisConnection) connection).bitPos(newKey, bit));
+    }
+
+    /**
+     * 获取字节范围内第一个值为bit的位的位置
+     *
+     * @param key
+     * @param bit
+     * @param start 开始字节
+     * @param end   结束字节
+     * @return 没有时返回-1
+     */
+    public Long bitPos(String key, boolean bit, long start, long end) {
+        String newKey = getStoreKey(key);
+        return redisTemplate.execute((RedisCallback<Long>) connection ->
+                ((StringRedisConnection) connection).bitPos(newKey, bit, Range.closed(start, end)));
+    }
+
+    /**
+     * 对多个key做位运算并将结果存储到destKey, 集群模式下各key需在同一slot
+     *
+     * @param operation AND, OR, XOR, NOT
+     * @param destKey
+     * @param keys
+     * @return 结果的字节长度
+     */
+    public Long bitOp(BitOperation operation, String destKey, Collection<String> keys) {
+        String newDestKey = getStoreKey(destKey);
+        String[] newKeys = keys.stream().map(this::getStoreKey).toArray(String[]::new);
+        return redisTemplate.execute((RedisCallback<Long>) connection ->
+                ((StringRedisConnection) connection).bitOp(operation, newDestKey, newKeys));
+    }
+
+    private static Offset offset(BitFieldType type, long index) {
+        return Offset.offset(index * type.getBits());
+    }
+
+    /**
+     * 原值增加delta后是否超出类型的取值范围
+     */
+    private static boolean overflows(BitFieldType type, long value, long delta) {
+        long sum;
+        try {
+            sum = Math.addExact(value, delta);
+        } catch (ArithmeticException e) {
+            return true;
+        }
+        int bits = type.getBits();
+        if (type.isSigned()) {
+            return bits < 64 && (sum < -(1L << (bits - 1)) || sum > (1L << (bits - 1)) - 1);
+        }
+        return sum < 0 || (bits < 63 && sum > (1L << bits) - 1);
+    }
+
+    /**
+     * 每个下标生成一个子命令, 每512个子命令一条 BITFIELD, 多条时以pipeline发送
+     */
+    @SuppressWarnings("unchecked")
+    private List<Long> execute(String key, List<Long> indexes, BiFunction<BitFieldSubCommands, Long, BitFieldSubCommands> subCommand) {
+        String newKey = getStoreKey(key);
+        List<BitFieldSubCommands> batches = new ArrayList<>();
+        BitFieldSubCommands commands = BitFieldSubCommands.create();
+        for (int i = 0; i < indexes.size(); i++) {
+            commands = subCommand.apply(commands, indexes.get(i));
+            if ((i + 1) % SUB_COMMAND_BATCH_SIZE == 0 || i == indexes.size() - 1) {
+                batches.add(commands);
+                commands = BitFieldSubCommands.create();
+            }
+        }
+        if (batches.isEmpty()) {
+            return new ArrayList<>();
+        }
+        if (batches.size() == 1) {
+            return redisTemplate.opsForValue().bitField(newKey, batches.get(0));
+        }
+
+        List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (BitFieldSubCommands batch : batches) {
+                ((StringRedisConnection) connection).bitfield(newKey, batch);
+            }
+            return null;
+        });
+        List<Long> values = new ArrayList<>(indexes.size());
+        for (Object result : results) {
+            values.addAll((List<Long>) result);
+        }
+        return values;
+    }
+}
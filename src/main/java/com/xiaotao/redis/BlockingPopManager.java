@@ -0,0 +1,269 @@
+package com.xiaotao.redis;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.data.redis.connection.ClusterSlotHashUtil;
+import org.springframework.data.redis.connection.RedisClusterConnection;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * 阻塞弹出的多路复用消费
+ *
+ * 使用少量专用连接, 每个连接用一条 BLPOP 同时等待多个列表, 弹出的元素交给注册的监听器处理,
+ * 避免每个列表的阻塞弹出各占用一个连接池中的连接. 线程池拒绝执行时元素放回列表头部, 稍后重新弹出
+ *
+ * 注：集群模式下一条 BLPOP 只能等待同一slot的列表, 连接负责多个slot时轮流阻塞等待其中一组,
+ * 每轮等待前先用 LPOP 检查其他各组, 元素最多延迟一个等待时间. 列表较多时可用相同的hash tag(如 {queue}a、{queue}b)
+ * 使其位于同一slot, 减少检查的命令数
+ *
+ * @author wxt366@126.com
+ */
+public class BlockingPopManager implements Closeable {
+    private static final Log log = LogFactory.getLog(BlockingPopManager.class);
+
+    private final RedisConnectionFactory connectionFactory;
+
+    /**
+     * 以不随代数变化的key登记的监听器, 每轮等待前按表的当前代数生成列表key, 截断表后等待新代数的列表
+     */
+    private final Map<String, Registration> registrations = new ConcurrentHashMap<>();
+
+    private final List<Thread> workers = new ArrayList<>();
+
+    private volatile Executor executor;
+
+    private volatile int timeoutSeconds = 1;
+
+    private volatile boolean running = true;
+
+    BlockingPopManager(RedisDatabase database, RedisConnectionFactory connectionFactory, int connections) {
+        this.connectionFactory = connectionFactory;
+        this.executor = database.getExecutor();
+        for (int i = 0; i < connections; i++) {
+            int index = i;
+            Thread worker = new Thread(() -> run(index, connections), "redis-helper-blpop-" + database.getName() + "-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * 设置执行监听器的线程池, 默认使用数据库的线程池
+     *
+     * @param executor
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * 设置每次 BLPOP 的等待时间, 新注册的列表最迟在该时间后开始被等待, 也是集群模式下元素的最大延迟
+     *
+     * @param timeoutSeconds
+     */
+    public void setTimeout(int timeoutSeconds) {
+        this.timeoutSeconds = Math.max(timeoutSeconds, 1);
+    }
+
+    /**
+     * 注册列表的监听器, 从列表头部弹出的元素交给监听器处理
+     *
+     * @param table
+     * @param key
+     * @param listener
+     */
+    public void register(RedisTable table, String key, Consumer<String> listener) {
+        registrations.put(table.getFixedKey() + key, new Registration(table, key, listener));
+    }
+
+    /**
+     * 取消列表的监听器
+     *
+     * @param table
+     * @param key
+     */
+    public void unregister(RedisTable table, String key) {
+        registrations.remove(table.getFixedKey() + key);
+    }
+
+    /**
+     * 停止所有等待, 正在等待的连接最迟在一个等待时间后关闭
+     */
+    @Override
+    public void close() {
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    private void run(int index, int connections) {
+        RedisConnection connection = null;
+        int round = 0;
+        while (running) {
+            try {
+                if (connection == null || connection.isClosed()) {
+                    connection = connectionFactory.getConnection();
+                }
+
+                Map<String, String> targets = new HashMap<>();
+                List<List<byte[]>> groups = assignedKeys(connection, index, connections, targets);
+                if (groups.isEmpty()) {
+                    Thread.sleep(timeoutSeconds * 1000L);
+                    continue;
+                }
+
+                List<byte[]> keys = groups.get(round++ % groups.size());
+                if (groups.size() > 1) {
+                    // 不在本轮等待的组先非阻塞检查一次, 有元素时本轮不再阻塞, 立即开始下一轮
+                    if (popOthers(connection, groups, keys, targets)) {
+                        continue;
+                    }
+                }
+                List<byte[]> result = connection.bLPop(timeoutSeconds, keys.toArray(new byte[0][]));
+                if (result != null && result.size() == 2) {
+                    String key = new String(result.get(0), StandardCharsets.UTF_8);
+                    dispatch(connection, key, targets.get(key), new String(result.get(1), StandardCharsets.UTF_8));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RejectedExecutionException e) {
+                // 元素已放回列表, 等待线程池空闲
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            } catch (RuntimeException e) {
+                if (!running) {
+                    break;
+                }
+                log.warn("Blocking pop failed, reconnecting", e);
+                closeQuietly(connection);
+                connection = null;
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        closeQuietly(connection);
+    }
+
+    /**
+     * 本连接负责的列表, 集群模式下按slot分组, 每次 BLPOP 只等待同一slot的列表
+     *
+     * @param targets 填入列表key到登记key的映射
+     */
+    private List<List<byte[]>> assignedKeys(RedisConnection connection, int index, int connections, Map<String, String> targets) {
+        boolean cluster = connection instanceof RedisClusterConnection;
+        Map<Integer, List<byte[]>> groups = new LinkedHashMap<>();
+        for (Map.Entry<String, Registration> entry : registrations.entrySet()) {
+            Registration registration = entry.getValue();
+            String key = registration.table.getTableKey() + registration.key;
+            targets.put(key, entry.getKey());
+            int slot = ClusterSlotHashUtil.calculateSlot(key);
+            if (Math.floorMod(cluster ? slot : key.hashCode(), connections) == index) {
+                groups.computeIfAbsent(cluster ? slot : 0, s -> new ArrayList<>()).add(key.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    /**
+     * 用 LPOP 检查本轮不等待的组
+     *
+     * @return 弹出了元素时返回true
+     */
+    private boolean popOthers(RedisConnection connection, List<List<byte[]>> groups, List<byte[]> waiting, Map<String, String> targets) {
+        boolean popped = false;
+        for (List<byte[]> group : groups) {
+            if (group == waiting) {
+                continue;
+            }
+            for (byte[] key : group) {
+                byte[] value = connection.lPop(key);
+                if (value == null) {
+                    continue;
+                }
+                popped = true;
+                String listKey = new String(key, StandardCharsets.UTF_8);
+                dispatch(connection, listKey, targets.get(listKey), new String(value, StandardCharsets.UTF_8));
+            }
+        }
+        return popped;
+    }
+
+    /**
+     * 把弹出的元素交给监听器, 线程池拒绝执行时放回列表头部后抛出 RejectedExecutionException
+     */
+    private void dispatch(RedisConnection connection, String key, String target, String value) {
+        Registration registration = target == null ? null : registrations.get(target);
+        if (registration == null) {
+            // 弹出后监听器已取消, 放回列表头部
+            pushBack(connection, key, value);
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    registration.listener.accept(value);
+                } catch (RuntimeException e) {
+                    log.warn("Listener of list " + key + " failed", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("Executor rejected element of list " + key + ", pushed back", e);
+            pushBack(connection, key, value);
+            throw e;
+        }
+    }
+
+    private static class Registration {
+        private final RedisTable table;
+
+        private final String key;
+
+        private final Consumer<String> listener;
+
+        Registration(RedisTable table, String key, Consumer<String> listener) {
+            this.table = table;
+            this.key = key;
+            this.listener = listener;
+        }
+    }
+
+    private static void pushBack(RedisConnection connection, String key, String value) {
+        connection.lPush(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void closeQuietly(RedisConnection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (RuntimeException e) {
+            // ignore
+        }
+    }
+}
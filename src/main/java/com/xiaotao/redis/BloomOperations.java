@@ -0,0 +1,378 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.config.Constants;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 基于位图的可扩展布隆过滤器
+ *
+ * 过滤器的参数保存在哈希表key中, 位图依次保存在 key#0, key#1 ... 中. 当前位图的元素数达到容量时追加一个新位图,
+ * 新位图的容量翻倍、误判率减半, 整个过滤器的误判率不超过创建时指定的值. 哈希位置在本地计算,
+ * 添加时由一个脚本检查全部位图、只把各位图中都不存在的元素写入当前位图并在达到容量时追加位图; 判断时以pipeline发送一批 GETBIT
+ *
+ * 注：脚本访问参数和全部位图key, 仅支持非集群模式
+ *
+ * @author wxt366@126.com
+ */
+public class BloomOperations extends BaseOperations {
+    private static final String CAPACITY_FIELD = "capacity";
+
+    private static final String FPP_FIELD = "fpp";
+
+    private static final String FILTERS_FIELD = "filters";
+
+    private static final String COUNT_FIELD = "count";
+
+    private static final String TOTAL_FIELD = "total";
+
+    /**
+     * 单个位图的最大位数, 即String的最大长度512MB
+     */
+    private static final long MAX_BITS = 1L << 32;
+
+    /**
+     * 参数不存在时创建, ARGV: 容量, 误判率
+     */
+    private static final RedisScript<Long> CREATE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('HSETNX', KEYS[1], 'capacity', ARGV[1]) == 0 then return 0 end\n" +
+            "redis.call('HMSET', KEYS[1], 'fpp', ARGV[2], 'filters', 1, 'count', 0, 'total', 0)\n" +
+            "return 1", Long.class);
+
+    /**
+     * KEYS: 参数key, 各位图key; ARGV: 位图数, 元素数, 当前位图容量, 之后每个元素在各位图中的"位置数, 位置..."
+     * 位图数与Redis中的不一致时只返回Redis中的位图数(不存在为-1), 否则返回写入后的位图数及每个元素是否新增(1/0).
+     * 元素在任一位图中已存在时不写入, 当前位图的计数达到容量时追加一个位图
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> ADD_SCRIPT = new DefaultRedisScript<>(
+            "local filters = redis.call('HGET', KEYS[1], 'filters')\n" +
+            "if filters ~= ARGV[1] then return {tonumber(filters) or -1} end\n" +
+            "local layers, n = tonumber(ARGV[1]), tonumber(ARGV[2])\n" +
+            "local result, added, i = {layers}, 0, 4\n" +
+            "for item = 1, n do\n" +
+            "  local found, start, k = false, 0, 0\n" +
+            "  for layer = 1, layers do\n" +
+            "    k = tonumber(ARGV[i])\n" +
+            "    start = i + 1\n" +
+            "    if not found then\n" +
+            "      local all = true\n" +
+            "      for j = start, start + k - 1 do\n" +
+            "        if redis.call('GETBIT', KEYS[layer + 1], ARGV[j]) == 0 then all = false break end\n" +
+            "      end\n" +
+            "      found = all\n" +
+            "    end\n" +
+            "    i = start + k\n" +
+            "  end\n" +
+            "  if found then\n" +
+            "    result[item + 1] = 0\n" +
+            "  else\n" +
+            "    for j = start, start + k - 1 do redis.call('SETBIT', KEYS[layers + 1], ARGV[j], 1) end\n" +
+            "    result[item + 1] = 1\n" +
+            "    added = added + 1\n" +
+            "  end\n" +
+            "end\n" +
+            "if added > 0 then\n" +
+            "  redis.call('HINCRBY', KEYS[1], 'total', added)\n" +
+            "  if redis.call('HINCRBY', KEYS[1], 'count', added) >= tonumber(ARGV[3]) then\n" +
+            "    redis.call('HINCRBY', KEYS[1], 'filters', 1)\n" +
+            "    redis.call('HSET', KEYS[1], 'count', 0)\n" +
+            "    result[1] = layers + 1\n" +
+            "  end\n" +
+            "end\n" +
+            "return result", List.class);
+
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+
+    public BloomOperations(StringRedisTemplate redisTemplate, RedisTable redisTable) {
+        super(redisTemplate, redisTable);
+    }
+
+    /**
+     * 创建布隆过滤器
+     *
+     * @param key
+     * @param expectedItems     第一个位图的容量
+     * @param falsePositiveRate 误判率
+     * @return 已存在时返回false
+     */
+    public Boolean create(String key, long expectedItems, double falsePositiveRate) {
+        if (expectedItems <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Expected items must be positive and false positive rate must be in (0, 1)");
+        }
+
+        String newKey = getStoreKey(key);
+        Long created = redisTemplate.execute(CREATE_SCRIPT, Collections.singletonList(newKey),
+                String.valueOf(expectedItems), String.valueOf(falsePositiveRate));
+        return created != null && created == 1;
+    }
+
+    /**
+     * 添加元素
+     *
+     * @param key
+     * @param item
+     * @return 元素之前不存在时返回true
+     */
+    public Boolean add(String key, String item) {
+        return addAll(key, Collections.singletonList(item)).get(0);
+    }
+
+    /**
+     * 批量添加元素
+     *
+     * @param key
+     * @param items
+     * @return 与items顺序一致, 元素之前不存在时为true
+     */
+    public List<Boolean> addAll(String key, Collection<String> items) {
+        List<String> list = new ArrayList<>(items);
+        if (list.isEmpty()) {
+            return new ArrayList<>();
+        }
+        String newKey = getStoreKey(key);
+        Filter filter = filter(newKey);
+        int layers = filter.layers;
+        List<String> keys = new ArrayList<>(layers + 1);
+        keys.add(newKey);
+        List<String> args = new ArrayList<>();
+        args.add(String.valueOf(layers));
+        args.add(String.valueOf(list.size()));
+        args.add(String.valueOf(filter.capacity(layers - 1)));
+        for (int layer = 0; layer < layers; layer++) {
+            keys.add(bitsKey(newKey, layer));
+        }
+        for (String item : list) {
+            for (int layer = 0; layer < layers; layer++) {
+                long[] positions = filter.positions(item, layer);
+                args.add(String.valueOf(positions.length));
+                for (long position : positions) {
+                    args.add(String.valueOf(position));
+                }
+            }
+        }
+
+        List<?> results = redisTemplate.execute(ADD_SCRIPT, keys, args.toArray());
+        boolean changed = filter.refresh(results.get(0));
+        if (results.size() != list.size() + 1) {
+            if (!changed) {
+                throw new IllegalStateException("Unexpected reply from bloom filter " + newKey);
+            }
+            // 其他客户端已追加位图, 按最新的位图重新添加
+            return addAll(key, items);
+        }
+
+        List<Boolean> added = new ArrayList<>(list.size());
+        for (int i = 1; i < results.size(); i++) {
+            added.add(((Long) results.get(i)) == 1);
+        }
+        return added;
+    }
+
+    /**
+     * 判断元素是否可能存在, 返回false时一定不存在
+     *
+     * @param key
+     * @param item
+     * @return
+     */
+    public Boolean mightContain(String key, String item) {
+        return mightContainAll(key, Collections.singletonList(item)).get(0);
+    }
+
+    /**
+     * 批量判断元素是否可能存在
+     *
+     * @param key
+     * @param items
+     * @return 与items顺序一致
+     */
+    public List<Boolean> mightContainAll(String key, Collection<String> items) {
+        String newKey = getStoreKey(key);
+        Filter filter = filter(newKey);
+        List<String> list = new ArrayList<>(items);
+        int layers = filter.layers;
+        long[][][] positions = new long[list.size()][layers][];
+        for (int i = 0; i < list.size(); i++) {
+            for (int layer = 0; layer < layers; layer++) {
+                positions[i][layer] = filter.positions(list.get(i), layer);
+            }
+        }
+
+        List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.hGet(newKey, FILTERS_FIELD);
+            for (long[][] itemPositions : positions) {
+                for (int layer = 0; layer < layers; layer++) {
+                    for (long position : itemPositions[layer]) {
+                        conn.getBit(bitsKey(newKey, layer), position);
+                    }
+                }
+            }
+            return null;
+        });
+        if (filter.refresh(results.get(0))) {
+            return mightContainAll(key, items);
+        }
+
+        List<Boolean> contains = new ArrayList<>(list.size());
+        int index = 1;
+        for (long[][] itemPositions : positions) {
+            boolean found = false;
+            for (int layer = 0; layer < layers; layer++) {
+                boolean all = true;
+                for (int j = 0; j < itemPositions[layer].length; j++) {
+                    all &= Boolean.TRUE.equals(results.get(index++));
+                }
+                found |= all;
+            }
+            contains.add(found);
+        }
+        return contains;
+    }
+
+    /**
+     * 已添加的元素数量(近似值)
+     *
+     * @param key
+     * @return
+     */
+    public Long count(String key) {
+        String newKey = getStoreKey(key);
+        Object total = redisTemplate.opsForHash().get(newKey, TOTAL_FIELD);
+        return total == null ? 0L : Long.valueOf((String) total);
+    }
+
+    /**
+     * 过滤器的参数及全部位图
+     */
+    @Override
+    protected List<String> getStoreKeys(String key) {
+        String newKey = getStoreKey(key);
+        Object layers = redisTemplate.opsForHash().get(newKey, FILTERS_FIELD);
+        List<String> keys = new ArrayList<>();
+        keys.add(newKey);
+        for (int i = 0; layers != null && i < Integer.parseInt((String) layers); i++) {
+            keys.add(bitsKey(newKey, i));
+        }
+        filters.remove(newKey);
+        return keys;
+    }
+
+    private Filter filter(String newKey) {
+        Filter filter = filters.get(newKey);
+        if (filter != null) {
+            return filter;
+        }
+
+        List<Object> meta = redisTemplate.opsForHash().multiGet(newKey, Arrays.asList(CAPACITY_FIELD, FPP_FIELD, FILTERS_FIELD));
+        if (meta.get(0) == null) {
+            throw new IllegalStateException("Bloom filter " + newKey + " doesn't exist, call create first");
+        }
+        filter = new Filter(Long.parseLong((String) meta.get(0)), Double.parseDouble((String) meta.get(1)),
+                Integer.parseInt((String) meta.get(2)));
+        filters.put(newKey, filter);
+        return filter;
+    }
+
+    private static String bitsKey(String newKey, int layer) {
+        return newKey + Constants.BUCKET_SEPARATOR + layer;
+    }
+
+    /**
+     * 过滤器参数, 位图数量以Redis中的为准
+     */
+    private static class Filter {
+        final long capacity;
+
+        final double fpp;
+
+        volatile int layers;
+
+        Filter(long capacity, double fpp, int layers) {
+            this.capacity = capacity;
+            this.fpp = fpp;
+            this.layers = layers;
+        }
+
+        /**
+         * 第layer个位图的容量
+         */
+        long capacity(int layer) {
+            return capacity << Math.min(layer, 30);
+        }
+
+        /**
+         * 第layer个位图的误判率, 各位图误判率之和不超过fpp
+         */
+        double fpp(int layer) {
+            return fpp / Math.pow(2, layer + 1);
+        }
+
+        long bits(int layer) {
+            long bits = (long) Math.ceil(-capacity(layer) * Math.log(fpp(layer)) / (Math.log(2) * Math.log(2)));
+            return Math.max(Math.min(bits, MAX_BITS), 64);
+        }
+
+        int hashes(int layer) {
+            return Math.max(1, (int) Math.round((double) bits(layer) / capacity(layer) * Math.log(2)));
+        }
+
+        /**
+         * 双重哈希计算元素在第layer个位图中的位置
+         */
+        long[] positions(String item, int layer) {
+            long hash = fnv1a64(item.getBytes(StandardCharsets.UTF_8));
+            long h1 = mix64(hash);
+            long h2 = mix64(hash ^ 0x9E3779B97F4A7C15L) | 1;
+            long bits = bits(layer);
+            long[] positions = new long[hashes(layer)];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = Math.floorMod(h1 + i * h2, bits);
+            }
+            return positions;
+        }
+
+        /**
+         * 按Redis中的位图数量更新, 数量变化时返回true
+         */
+        boolean refresh(Object layers) {
+            if (layers == null || "-1".equals(String.valueOf(layers))) {
+                throw new IllegalStateException("Bloom filter has been deleted");
+            }
+            int current = Integer.parseInt(String.valueOf(layers));
+            if (current == this.layers) {
+                return false;
+            }
+            this.layers = current;
+            return true;
+        }
+
+        private static long fnv1a64(byte[] bytes) {
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : bytes) {
+                hash ^= b & 0xff;
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+
+        private static long mix64(long z) {
+            z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+            z = (z ^ (z >>> 33)) * 0xc4ceb93a185e53d8L;
+            return z ^ (z >>> 33);
+        }
+    }
+}
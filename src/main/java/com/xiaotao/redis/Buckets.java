@@ -0,0 +1,82 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.config.Constants;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 分桶存储的key计算, 一个逻辑key按成员的CRC32值拆分到多个分桶key中
+ *
+ * @author wxt366@126.com
+ */
+final class Buckets {
+    private Buckets() {
+    }
+
+    /**
+     * 成员所在的分桶
+     *
+     * @param member
+     * @param buckets 分桶数量
+     * @return
+     */
+    static int bucketOf(Object member, int buckets) {
+        if (buckets <= 1) {
+            return 0;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(String.valueOf(member).getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() % buckets);
+    }
+
+    /**
+     * 分桶的存储key, 分桶数量不大于1时即为原key
+     *
+     * @param storeKey
+     * @param buckets
+     * @param bucket
+     * @return
+     */
+    static String bucketKey(String storeKey, int buckets, int bucket) {
+        if (buckets <= 1) {
+            return storeKey;
+        }
+        return storeKey + Constants.BUCKET_SEPARATOR + bucket;
+    }
+
+    /**
+     * 成员所在分桶的存储key
+     *
+     * @param storeKey
+     * @param member
+     * @param buckets
+     * @return
+     */
+    static String keyOf(String storeKey, Object member, int buckets) {
+        return bucketKey(storeKey, buckets, bucketOf(member, buckets));
+    }
+
+    /**
+     * 全部分桶的存储key
+     *
+     * @param storeKey
+     * @param buckets
+     * @return
+     */
+    static List<String> bucketKeys(String storeKey, int buckets) {
+        if (buckets <= 1) {
+            return Collections.singletonList(storeKey);
+        }
+
+        List<String> keys = new ArrayList<>(buckets);
+        for (int i = 0; i < buckets; i++) {
+            keys.add(bucketKey(storeKey, buckets, i));
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,227 @@
+package com.xiaotao.redis;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * 缓存加载: 本地同一key的并发加载合并为一次, 可选的分布式互斥, 临近过期时按概率提前在后台刷新, 空值缓存
+ *
+ * 缓存值带有过期时间和加载耗时, 格式为 控制字符0x01 + 过期时间:加载耗时:(-|=值), "-"表示空值.
+ * 普通读取方法通过 unwrap 去掉这些信息, 只返回缓存的值
+ *
+ * @author wxt366@126.com
+ */
+class CacheLoading {
+    private static final Log log = LogFactory.getLog(CacheLoading.class);
+
+    private static final char MARKER = '\u0001';
+
+    /**
+     * 加载互斥等待结果的轮询间隔
+     */
+    private static final long POLL_INTERVAL_MILLIS = 50;
+
+    private static final RedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) end\n" +
+            "return 0", Long.class);
+
+    private final RedisTable redisTable;
+
+    private final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    CacheLoading(RedisTable redisTable) {
+        this.redisTable = redisTable;
+    }
+
+    /**
+     * @param flightKey 缓存的存储位置, 同时用于本地合并加载和分布式互斥
+     * @param read      读取缓存值
+     * @param write     写入缓存值及其缓存时间
+     * @param loader
+     * @param options
+     * @return
+     */
+    String getOrLoad(String flightKey, Supplier<String> read, BiConsumer<String, Long> write, Supplier<String> loader,
+                     LoadOptions options) {
+        String raw = read.get();
+        if (raw != null && (raw.isEmpty() || raw.charAt(0) != MARKER)) {
+            // 不是由getOrLoad写入的值
+            return raw;
+        }
+
+        Entry entry = Entry.decode(raw);
+        long now = System.currentTimeMillis();
+        if (entry != null && now < entry.expiresAt) {
+            if (options.getBeta() > 0 && shouldRefresh(entry, now, options.getBeta())) {
+                refreshAsync(flightKey, read, write, loader, options);
+            }
+            return entry.value;
+        }
+        return load(flightKey, read, write, loader, options);
+    }
+
+    /**
+     * 去掉getOrLoad写入的过期时间等信息, 空值缓存和已过期的值返回null, 不是由getOrLoad写入的值原样返回
+     *
+     * @param raw
+     * @return
+     */
+    static String unwrap(String raw) {
+        Entry entry = Entry.decode(raw);
+        if (entry == null) {
+            return raw;
+        }
+        return System.currentTimeMillis() < entry.expiresAt ? entry.value : null;
+    }
+
+    /**
+     * 同unwrap, 用于哈希表读取返回的Object值
+     *
+     * @param raw
+     * @return
+     */
+    static Object unwrap(Object raw) {
+        return raw instanceof String ? unwrap((String) raw) : raw;
+    }
+
+    /**
+     * 过期前按概率提前刷新, 越接近过期、加载越慢概率越大
+     */
+    private static boolean shouldRefresh(Entry entry, long now, double beta) {
+        double random = ThreadLocalRandom.current().nextDouble();
+        return now - Math.max(entry.delta, 1) * beta * Math.log(random) >= entry.expiresAt;
+    }
+
+    private void refreshAsync(String flightKey, Supplier<String> read, BiConsumer<String, Long> write, Supplier<String> loader,
+                              LoadOptions options) {
+        if (inFlight.containsKey(flightKey)) {
+            return;
+        }
+        try {
+            redisTable.getDatabase().getExecutor().execute(() -> {
+                try {
+                    load(flightKey, read, write, loader, options);
+                } catch (RuntimeException e) {
+                    log.warn("Refresh " + flightKey + " failed", e);
+                }
+            });
+        } catch (RuntimeException e) {
+            log.warn("Refresh " + flightKey + " rejected", e);
+        }
+    }
+
+    private String load(String flightKey, Supplier<String> read, BiConsumer<String, Long> write, Supplier<String> loader,
+                        LoadOptions options) {
+        CompletableFuture<String> mine = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(flightKey, mine);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        try {
+            String value = options.isDistributedLock()
+                    ? loadWithLock(flightKey, read, write, loader, options)
+                    : loadAndWrite(write, loader, options);
+            mine.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(flightKey, mine);
+        }
+    }
+
+    /**
+     * 获取互斥后加载, 未获取到时等待其他节点的加载结果
+     */
+    private String loadWithLock(String flightKey, Supplier<String> read, BiConsumer<String, Long> write, Supplier<String> loader,
+                                LoadOptions options) {
+        String mutexKey = flightKey + "#loading";
+        String token = UUID.randomUUID().toString();
+        Boolean acquired = redisTable.getRedisTemplate().opsForValue()
+                .setIfAbsent(mutexKey, token, options.getLockTimeoutMillis(), TimeUnit.MILLISECONDS);
+        if (Boolean.TRUE.equals(acquired)) {
+            try {
+                return loadAndWrite(write, loader, options);
+            } finally {
+                redisTable.getRedisTemplate().execute(RELEASE_SCRIPT, Collections.singletonList(mutexKey), token);
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + options.getLockTimeoutMillis();
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            Entry entry = Entry.decode(read.get());
+            if (entry != null && System.currentTimeMillis() < entry.expiresAt) {
+                return entry.value;
+            }
+        }
+        return loadAndWrite(write, loader, options);
+    }
+
+    private static String loadAndWrite(BiConsumer<String, Long> write, Supplier<String> loader, LoadOptions options) {
+        long start = System.currentTimeMillis();
+        String value = loader.get();
+        long now = System.currentTimeMillis();
+        long ttl = value == null ? options.getNegativeTtlMillis() : options.getTtlMillis();
+        if (ttl > 0) {
+            write.accept(new Entry(value, now + ttl, now - start).encode(), ttl);
+        }
+        return value;
+    }
+
+    private static class Entry {
+        final String value;
+
+        final long expiresAt;
+
+        final long delta;
+
+        Entry(String value, long expiresAt, long delta) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.delta = delta;
+        }
+
+        String encode() {
+            return MARKER + String.valueOf(expiresAt) + ':' + delta + ':' + (value == null ? "-" : "=" + value);
+        }
+
+        static Entry decode(String raw) {
+            if (raw == null || raw.isEmpty() || raw.charAt(0) != MARKER) {
+                return null;
+            }
+            int first = raw.indexOf(':');
+            int second = raw.indexOf(':', first + 1);
+            long expiresAt = Long.parseLong(raw.substring(1, first));
+            long delta = Long.parseLong(raw.substring(first + 1, second));
+            String value = raw.charAt(second + 1) == '-' ? null : raw.substring(second + 2);
+            return new Entry(value, expiresAt, delta);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.xiaotao.redis;
+
+import org.springframework.data.redis.core.Cursor;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+/**
+ * 依次遍历多个Cursor, 用于分桶存储的key
+ *
+ * @author wxt366@126.com
+ */
+class CompositeCursor<T> implements Cursor<T> {
+    private final Iterator<Supplier<Cursor<T>>> sources;
+
+    private Cursor<T> current;
+
+    private long position;
+
+    private boolean closed;
+
+    CompositeCursor(List<Supplier<Cursor<T>>> sources) {
+        this.sources = sources.iterator();
+    }
+
+    @Override
+    public long getCursorId() {
+        return current == null ? 0 : current.getCursorId();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public Cursor<T> open() {
+        return this;
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!closed && (current == null || !current.hasNext())) {
+            closeCurrent();
+            if (!sources.hasNext()) {
+                return false;
+            }
+            current = sources.next().get();
+        }
+        return !closed;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        position++;
+        return current.next();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeCurrent();
+        closed = true;
+    }
+
+    private void closeCurrent() {
+        if (current == null) {
+            return;
+        }
+        try {
+            current.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        current = null;
+    }
+}
@@ -0,0 +1,317 @@
+package com.xiaotao.redis;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.DecoratedRedisConnection;
+import org.springframework.data.redis.connection.PoolException;
+import org.springframework.data.redis.connection.RedisClusterConnection;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisSentinelConnection;
+import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettucePoolingClientConfiguration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.util.ClassUtils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 专用连接池
+ *
+ * 按数据库连接工厂的地址与客户端配置新建一个带连接池的 LettuceConnectionFactory, 不共享原生连接, 每个操作从池中取得独立连接.
+ * 获取连接前在公平信号量上排队, 信号量许可数即连接池大小, 排队时间即获取连接的等待时间, 按池分别统计
+ *
+ * @author wxt366@126.com
+ */
+public class ConnectionPool {
+    /**
+     * 可单独绑定连接池的操作类别
+     */
+    public enum Group {
+        /**
+         * 批量操作: pipeline批量读写, 复制迁移, 读取整个集合
+         */
+        BULK,
+        /**
+         * 阻塞操作: 带超时的弹出, 阻塞读取Stream
+         */
+        BLOCKING,
+        /**
+         * 遍历操作: SCAN类命令, 分页迭代
+         */
+        SCAN
+    }
+
+    private final String name;
+
+    private final int maxTotal;
+
+    private final long maxWaitMillis;
+
+    private final LettuceConnectionFactory connectionFactory;
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final Semaphore permits;
+
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final LongAdder borrowCount = new LongAdder();
+
+    private final LongAdder timeoutCount = new LongAdder();
+
+    private final LongAdder totalWaitNanos = new LongAdder();
+
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    ConnectionPool(String name, RedisConnectionFactory baseFactory, PoolOptions options) {
+        if (!(baseFactory instanceof LettuceConnectionFactory)) {
+            throw new IllegalArgumentException("Connection pool requires a LettuceConnectionFactory");
+        }
+        this.name = name;
+        this.maxTotal = options.getMaxTotal();
+        this.maxWaitMillis = options.getMaxWaitMillis();
+        this.permits = new Semaphore(maxTotal, true);
+        this.connectionFactory = createConnectionFactory((LettuceConnectionFactory) baseFactory, options);
+
+        this.redisTemplate = new StringRedisTemplate();
+        this.redisTemplate.setConnectionFactory(new MeteredConnectionFactory());
+        this.redisTemplate.afterPropertiesSet();
+    }
+
+    private static LettuceConnectionFactory createConnectionFactory(LettuceConnectionFactory base, PoolOptions options) {
+        GenericObjectPoolConfig<?> poolConfig = new GenericObjectPoolConfig<>();
+        poolConfig.setMaxTotal(options.getMaxTotal());
+        poolConfig.setMaxIdle(options.getMaxTotal());
+        poolConfig.setMinIdle(Math.min(options.getMinIdle(), options.getMaxTotal()));
+
+        LettuceClientConfiguration baseConfig = base.getClientConfiguration();
+        LettucePoolingClientConfiguration.LettucePoolingClientConfigurationBuilder builder = LettucePoolingClientConfiguration.builder();
+        if (baseConfig.isUseSsl()) {
+            LettucePoolingClientConfiguration.LettucePoolingSslClientConfigurationBuilder ssl = builder.useSsl();
+            if (!baseConfig.isVerifyPeer()) {
+                ssl.disablePeerVerification();
+            }
+            if (baseConfig.isStartTls()) {
+                ssl.startTls();
+            }
+        }
+        baseConfig.getClientResources().ifPresent(builder::clientResources);
+        baseConfig.getClientOptions().ifPresent(builder::clientOptions);
+        baseConfig.getClientName().ifPresent(builder::clientName);
+        baseConfig.getReadFrom().ifPresent(builder::readFrom);
+        LettucePoolingClientConfiguration clientConfig = builder.poolConfig(poolConfig)
+                .commandTimeout(Duration.ofMillis(options.getCommandTimeoutMillis()))
+                .build();
+
+        LettuceConnectionFactory factory;
+        if (base.getClusterConfiguration() != null) {
+            factory = new LettuceConnectionFactory(base.getClusterConfiguration(), clientConfig);
+        } else if (base.getSentinelConfiguration() != null) {
+            factory = new LettuceConnectionFactory(base.getSentinelConfiguration(), clientConfig);
+        } else {
+            factory = new LettuceConnectionFactory(base.getStandaloneConfiguration(), clientConfig);
+        }
+        factory.setShareNativeConnection(false);
+        factory.afterPropertiesSet();
+        return factory;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 连接池大小
+     *
+     * @return
+     */
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    /**
+     * 正在使用的连接数
+     *
+     * @return
+     */
+    public int getActive() {
+        return maxTotal - permits.availablePermits();
+    }
+
+    /**
+     * 正在等待连接的线程数
+     *
+     * @return
+     */
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    /**
+     * 获取连接的总次数, 包括超时的次数
+     *
+     * @return
+     */
+    public long getBorrowCount() {
+        return borrowCount.sum();
+    }
+
+    /**
+     * 等待超时的次数
+     *
+     * @return
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    /**
+     * 获取连接的平均等待时间(毫秒)
+     *
+     * @return
+     */
+    public double getMeanWaitMillis() {
+        long count = borrowCount.sum();
+        return count == 0 ? 0 : totalWaitNanos.sum() / 1e6 / count;
+    }
+
+    /**
+     * 获取连接的最长等待时间(毫秒)
+     *
+     * @return
+     */
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1e6;
+    }
+
+    /**
+     * 清零统计, 如每个监控周期读取后清零
+     */
+    public void resetMetrics() {
+        borrowCount.reset();
+        timeoutCount.reset();
+        totalWaitNanos.reset();
+        maxWaitNanos.set(0);
+    }
+
+    /**
+     * 关闭连接池, 已绑定该池的表不能再使用
+     */
+    public void close() {
+        connectionFactory.destroy();
+    }
+
+    StringRedisTemplate getRedisTemplate() {
+        return redisTemplate;
+    }
+
+    private void acquire() {
+        waiting.incrementAndGet();
+        long start = System.nanoTime();
+        boolean acquired = false;
+        try {
+            if (maxWaitMillis < 0) {
+                permits.acquire();
+                acquired = true;
+            } else {
+                acquired = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PoolException("Interrupted while waiting for connection pool " + name, e);
+        } finally {
+            waiting.decrementAndGet();
+            long waited = System.nanoTime() - start;
+            borrowCount.increment();
+            totalWaitNanos.add(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+        }
+        if (!acquired) {
+            timeoutCount.increment();
+            throw new PoolException("Could not get a connection from pool " + name + " within " + maxWaitMillis + "ms");
+        }
+    }
+
+    /**
+     * 关闭时归还许可的连接代理, 保留原连接实现的全部接口(如 RedisClusterConnection),
+     * 并实现 DecoratedRedisConnection, 需要原生连接的操作(如 LettuceConnection.execute)可通过 getDelegate 取得原连接
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends RedisConnection> T track(T connection) {
+        AtomicBoolean closed = new AtomicBoolean();
+        Set<Class<?>> interfaces = new LinkedHashSet<>(Arrays.asList(ClassUtils.getAllInterfaces(connection)));
+        interfaces.add(DecoratedRedisConnection.class);
+        return (T) Proxy.newProxyInstance(getClass().getClassLoader(),
+                interfaces.toArray(new Class<?>[0]), (proxy, method, args) -> {
+                    if ("getDelegate".equals(method.getName()) && method.getDeclaringClass() == DecoratedRedisConnection.class) {
+                        return connection;
+                    }
+                    if ("close".equals(method.getName()) && method.getParameterCount() == 0 && closed.compareAndSet(false, true)) {
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                    try {
+                        return method.invoke(connection, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    private class MeteredConnectionFactory implements RedisConnectionFactory {
+        @Override
+        public RedisConnection getConnection() {
+            acquire();
+            try {
+                return track(connectionFactory.getConnection());
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public RedisClusterConnection getClusterConnection() {
+            acquire();
+            try {
+                return track(connectionFactory.getClusterConnection());
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean getConvertPipelineAndTxResults() {
+            return connectionFactory.getConvertPipelineAndTxResults();
+        }
+
+        @Override
+        public RedisSentinelConnection getSentinelConnection() {
+            return connectionFactory.getSentinelConnection();
+        }
+
+        @Override
+        public DataAccessException translateExceptionIfPossible(RuntimeException ex) {
+            return connectionFactory.translateExceptionIfPossible(ex);
+        }
+    }
+}
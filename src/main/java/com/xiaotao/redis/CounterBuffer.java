@@ -0,0 +1,258 @@
+package com.xiaotao.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 计数器的本地合并缓冲
+ *
+ * 开启后 StringOperations.incrBy 和 HashOperations.increment 的增量先在本地按key累加,
+ * 定时或待刷新的key数量达到阈值时以pipeline批量写入Redis, 数据最多延迟一个刷新周期.
+ * 缓冲关闭后的增量由调用方直接写入Redis
+ *
+ * @author wxt366@126.com
+ */
+public class CounterBuffer extends AbstractWriteBuffer {
+    private final int maxPendingKeys;
+
+    private final ConcurrentHashMap<CounterKey, Cell> cells = new ConcurrentHashMap<>();
+
+    private final LongAdder increments = new LongAdder();
+
+    CounterBuffer(RedisTable redisTable, long flushInterval, TimeUnit unit, int maxPendingKeys) {
+        super(redisTable, "counter", flushInterval, unit);
+        this.maxPendingKeys = maxPendingKeys;
+    }
+
+    /**
+     * 累加整数增量
+     *
+     * @param storeKey 存储key
+     * @param field    哈希表字段, String类型为null
+     * @param delta
+     * @return 缓冲已关闭时返回false, 调用方需直接写入Redis
+     */
+    boolean add(String storeKey, String field, long delta) {
+        return add(new CounterKey(storeKey, field), delta, 0, true);
+    }
+
+    /**
+     * 累加浮点数增量
+     *
+     * @param storeKey 存储key
+     * @param field    哈希表字段, String类型为null
+     * @param delta
+     * @return 缓冲已关闭时返回false, 调用方需直接写入Redis
+     */
+    boolean add(String storeKey, String field, double delta) {
+        return add(new CounterKey(storeKey, field), 0, delta, true);
+    }
+
+    /**
+     * 在计数单元的读锁内累加, 保证增量要么被刷新取出, 要么写入仍在使用的计数单元
+     */
+    private boolean add(CounterKey key, long longs, double doubles, boolean count) {
+        while (true) {
+            Cell cell = cells.computeIfAbsent(key, k -> new Cell());
+            Lock lock = cell.lock.readLock();
+            lock.lock();
+            try {
+                if (cell.removed) {
+                    continue;
+                }
+                // 关闭时的最后一次刷新可能已取出该计数单元
+                if (count && isClosed()) {
+                    return false;
+                }
+                cell.longs.add(longs);
+                cell.doubles.add(doubles);
+            } finally {
+                lock.unlock();
+            }
+            if (count) {
+                increments.increment();
+                if (cells.size() >= maxPendingKeys) {
+                    requestFlush();
+                }
+            }
+            return true;
+        }
+    }
+
+    @Override
+    protected long doFlush() {
+        List<Pending> pending = new ArrayList<>();
+        for (Map.Entry<CounterKey, Cell> entry : cells.entrySet()) {
+            collect(entry.getKey(), entry.getValue(), pending);
+        }
+        if (pending.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            return write(pending);
+        } catch (RuntimeException e) {
+            for (Pending p : pending) {
+                add(p.key, p.longs, p.doubles, false);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 在计数单元的写锁内取出并清零增量, 没有增量的计数单元从缓冲中移除
+     */
+    private void collect(CounterKey key, Cell cell, List<Pending> pending) {
+        Lock lock = cell.lock.writeLock();
+        lock.lock();
+        try {
+            long longs = cell.longs.sumThenReset();
+            double doubles = cell.doubles.sumThenReset();
+            if (longs == 0 && doubles == 0) {
+                cell.removed = true;
+                cells.remove(key, cell);
+                return;
+            }
+            pending.add(new Pending(key, longs, doubles));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long write(List<Pending> pending) {
+        List<String> keys = new ArrayList<>(pending.size());
+        for (Pending p : pending) {
+            keys.add(p.key.storeKey);
+        }
+
+        AtomicLong count = new AtomicLong();
+        redisTable.getKeyRouter().pipelineByNode(keys, (connection, slots) -> {
+            for (List<Integer> slot : slots) {
+                for (Integer index : slot) {
+                    Pending p = pending.get(index);
+                    String storeKey = p.key.storeKey;
+                    if (p.key.field == null) {
+                        if (p.longs != 0) {
+                            connection.incrBy(storeKey, p.longs);
+                            count.incrementAndGet();
+                        }
+                        if (p.doubles != 0) {
+                            connection.incrBy(storeKey, p.doubles);
+                            count.incrementAndGet();
+                        }
+                        if (redisTable.isUpdateExpire(storeKey)) {
+                            connection.pExpire(storeKey, redisTable.getAutoWindow());
+                            count.incrementAndGet();
+                        }
+                    } else {
+                        if (p.longs != 0) {
+                            connection.hIncrBy(storeKey, p.key.field, p.longs);
+                            count.incrementAndGet();
+                        }
+                        if (p.doubles != 0) {
+                            connection.hIncrBy(storeKey, p.key.field, p.doubles);
+                            count.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        });
+        return count.get();
+    }
+
+    /**
+     * 累计的增量调用次数
+     *
+     * @return
+     */
+    public long getIncrements() {
+        return increments.sum();
+    }
+
+    /**
+     * 合并比例, 即增量调用次数与写入命令数之比
+     *
+     * @return
+     */
+    public double getCoalescingRatio() {
+        long written = getCommands();
+        return written == 0 ? 0 : (double) increments.sum() / written;
+    }
+
+    /**
+     * 当前待刷新的key数量
+     *
+     * @return
+     */
+    public int getPendingKeys() {
+        return cells.size();
+    }
+
+    private static class CounterKey {
+        final String storeKey;
+
+        final String field;
+
+        CounterKey(String storeKey, String field) {
+            this.storeKey = storeKey;
+            this.field = field;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CounterKey)) {
+                return false;
+            }
+            CounterKey that = (CounterKey) o;
+            return storeKey.equals(that.storeKey) && Objects.equals(field, that.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * storeKey.hashCode() + Objects.hashCode(field);
+        }
+    }
+
+    private static class Cell {
+        final LongAdder longs = new LongAdder();
+
+        final DoubleAdder doubles = new DoubleAdder();
+
+        /**
+         * 读锁用于累加, 写锁用于取出增量
+         */
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        /**
+         * 已从缓冲中移除, 累加时需重新获取计数单元
+         */
+        boolean removed;
+    }
+
+    private static class Pending {
+        final CounterKey key;
+
+        final long longs;
+
+        final double doubles;
+
+        Pending(CounterKey key, long longs, double doubles) {
+            this.key = key;
+            this.longs = longs;
+            this.doubles = doubles;
+        }
+    }
+}
@@ -1,33 +1,183 @@
 package com.xiaotao.redis;
 
+import com.xiaotao.redis.config.Constants;
+import org.springframework.data.redis.connection.DataType;
+import org.springframework.data.redis.connection.DefaultSortParameters;
+import org.springframework.data.redis.connection.SortParameters;
+import org.springframework.data.redis.connection.StringRedisConnection;
 import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
+ * 哈希表操作
+ *
+ * 表设置了分桶数量(RedisTable.setHashBuckets)时, 一个哈希表按字段拆分到多个分桶key中存储, 对调用方透明.
+ * 表声明了字段索引(RedisTable.addHashIndex)时, put、putAll、delete以脚本在修改哈希表的同时维护索引:
+ * 等值索引为每个字段值一个集合, 范围索引为每个字段一个以字段值为分数的有序集合, 成员均为哈希表的key
+ *
+ * 注：哈希表过期不会更新索引, 过期的key在查询时跳过, 索引项需调用delete删除; 有索引的表不能rename
+ *
  * @author wxt366@126.com
  */
 public class HashOperations extends BaseOperations {
+    /**
+     * 索引类型
+     */
+    public enum IndexType {
+        /**
+         * 等值索引, 按字段值查询
+         */
+        EQUALITY,
+
+        /**
+         * 范围索引, 字段值为数字, 按范围查询
+         */
+        RANGE
+    }
+
+    /**
+     * 重新分桶时每批迁移的字段数量
+     */
+    private static final int REBUCKET_BATCH_SIZE = 1000;
+
+    /**
+     * 索引key在表key之后的标记
+     */
+    private static final String INDEX_MARK = Constants.BUCKET_SEPARATOR + "idx" + Constants.KEY_SEPARATOR;
+
+    private static final String INDEX_HEADER =
+            "local prefix, id, n = ARGV[1], ARGV[2], tonumber(ARGV[3])\n" +
+            "local indexes = {}\n" +
+            "for i = 0, n - 1 do indexes[ARGV[4 + i * 2]] = ARGV[5 + i * 2] end\n" +
+            "local function unindex(field)\n" +
+            "  local kind = indexes[field]\n" +
+            "  if not kind then return end\n" +
+            "  local old = redis.call('HGET', KEYS[1], field)\n" +
+            "  if not old then return end\n" +
+            "  if kind == 'e' then redis.call('SREM', prefix .. field .. ':' .. old, id)\n" +
+            "  else redis.call('ZREM', prefix .. field, id) end\n" +
+            "end\n" +
+            "local first = 4 + n * 2\n";
+
+    /**
+     * ARGV: 索引key前缀, 哈希表key, 索引数量, 索引(字段, e/r)..., 字段, 值...
+     */
+    private static final RedisScript<Long> INDEXED_PUT_SCRIPT = new DefaultRedisScript<>(INDEX_HEADER +
+            "for i = first, #ARGV, 2 do\n" +
+            "  local field, value = ARGV[i], ARGV[i + 1]\n" +
+            "  unindex(field)\n" +
+            "  local kind = indexes[field]\n" +
+            "  if kind == 'e' then redis.call('SADD', prefix .. field .. ':' .. value, id)\n" +
+            "  elseif kind == 'r' and tonumber(value) then redis.call('ZADD', prefix .. field, tonumber(value), id) end\n" +
+            "  redis.call('HSET', KEYS[1], field, value)\n" +
+            "end\n" +
+            "return 1", Long.class);
+
+    /**
+     * ARGV: 索引key前缀, 哈希表key, 索引数量, 索引(字段, e/r)..., 删除的字段...; 没有字段时删除整个哈希表
+     */
+    private static final RedisScript<Long> INDEXED_DELETE_SCRIPT = new DefaultRedisScript<>(INDEX_HEADER +
+            "if first > #ARGV then\n" +
+            "  for field in pairs(indexes) do unindex(field) end\n" +
+            "  return redis.call('DEL', KEYS[1])\n" +
+            "end\n" +
+            "local deleted = 0\n" +
+            "for i = first, #ARGV do\n" +
+            "  unindex(ARGV[i])\n" +
+            "  deleted = deleted + redis.call('HDEL', KEYS[1], ARGV[i])\n" +
+            "end\n" +
+            "return deleted", Long.class);
+
+    private final CacheLoading cacheLoading;
+
     public HashOperations(StringRedisTemplate redisTemplate, RedisTable redisTable) {
         super(redisTemplate, redisTable);
+        this.cacheLoading = new CacheLoading(redisTable);
     }
 
     /**
-     * 获取存储在哈希表中指定字段的值
+     * 获取哈希表字段中缓存的值, 不存在或已过期时调用loader加载并缓存
+     *
+     * 哈希表字段没有过期时间, 缓存时间记录在值中, 过期的值在下次读取时重新加载
+     *
+     * @param key
+     * @param field
+     * @param loader  加载数据, 返回null时按空值缓存
+     * @param options 缓存时间、空值缓存时间、分布式互斥及提前刷新
+     * @return
+     */
+    public String getOrLoad(String key, String field, Supplier<String> loader, LoadOptions options) {
+        String flightKey = location(getStoreKey(key), field) + Constants.KEY_SEPARATOR + field;
+        return cacheLoading.getOrLoad(flightKey, () -> (String) getRaw(key, field),
+                (value, ttl) -> put(key, field, value), loader, options);
+    }
+
+    @Override
+    protected List<String> getStoreKeys(String key) {
+        return locations(getStoreKey(key));
+    }
+
+    /**
+     * 获取存储在哈希表中指定字段的值, getOrLoad缓存的值去掉过期时间等信息后返回
      *
      * @param key
      * @param field
      * @return
      */
     public Object get(String key, String field) {
+        return CacheLoading.unwrap(getRaw(key, field));
+    }
+
+    /**
+     * 读取字段在Redis中存储的值, 包括getOrLoad写入的过期时间等信息
+     */
+    private Object getRaw(String key, String field) {
         String newKey = getStoreKey(key);
+        String location = location(newKey, field);
+        String previous = previousLocation(newKey, field);
+        WriteBehindBuffer writeBehindBuffer = redisTable.getWriteBehindBuffer();
+        if (writeBehindBuffer != null) {
+            String value = writeBehindBuffer.get(location, field);
+            if (value != null) {
+                return value;
+            }
+        }
+        if (previous == null) {
+            return redisTemplate.opsForHash().get(location, field);
+        }
 
-        return redisTemplate.opsForHash().get(newKey, field);
+        List<Object> values = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.hGet(location, field);
+            conn.hGet(previous, field);
+            return null;
+        });
+        return values.get(0) != null ? values.get(0) : values.get(1);
     }
 
     /**
@@ -38,8 +188,59 @@ public class HashOperations extends BaseOperations {
      */
     public Map<Object, Object> getAll(String key) {
         String newKey = getStoreKey(key);
+        List<String> locations = locations(newKey);
+        flushPending(locations);
+        if (locations.size() == 1) {
+            return unwrap(templateFor(ConnectionPool.Group.BULK).opsForHash().entries(newKey));
+        }
+
+        Map<Object, Object> entries = new LinkedHashMap<>();
+        for (Object result : pipelineEach(locations, StringRedisConnection::hGetAll)) {
+            entries.putAll((Map<?, ?>) result);
+        }
+        return unwrap(entries);
+    }
 
-        return redisTemplate.opsForHash().entries(newKey);
+    /**
+     * 以 HSCAN 分页惰性迭代哈希表的键值对, 分桶存储时依次迭代每个分桶, 内存中只保留一页
+     *
+     * 注：不包括异步写缓冲中尚未写入的数据, 遍历期间修改哈希表时字段可能重复或遗漏
+     *
+     * @param key
+     * @param pageSize  每页数量(HSCAN的COUNT)
+     * @param readAhead 是否在线程池中预读下一页
+     * @return
+     */
+    public Iterator<Map.Entry<String, String>> getAllIterator(String key, int pageSize, boolean readAhead) {
+        PageIterator.checkPageSize(pageSize);
+        Executor executor = readAhead ? redisTable.getDatabase().getExecutor() : null;
+        List<Supplier<Iterator<Map.Entry<String, String>>>> iterators = new ArrayList<>();
+        for (String location : locations(getStoreKey(key))) {
+            iterators.add(() -> new PageIterator<>(0, cursor -> {
+                PageIterator.Page<String> page = PageIterator.scan(templateFor(ConnectionPool.Group.SCAN), "HSCAN", location, cursor, pageSize);
+                List<Map.Entry<String, String>> entries = new ArrayList<>(page.items.size() / 2);
+                for (int i = 0; i + 1 < page.items.size(); i += 2) {
+                    String value = CacheLoading.unwrap(page.items.get(i + 1));
+                    if (value != null) {
+                        entries.add(new AbstractMap.SimpleImmutableEntry<>(page.items.get(i), value));
+                    }
+                }
+                return new PageIterator.Page<>(entries, page.next, page.last);
+            }, executor));
+        }
+        return PageIterator.concat(iterators);
+    }
+
+    /**
+     * 以 HSCAN 分页惰性读取哈希表的键值对, 只需字段或值时对结果做map
+     *
+     * @param key
+     * @param pageSize  每页数量
+     * @param readAhead 是否预读下一页
+     * @return
+     */
+    public Stream<Map.Entry<String, String>> getAllStream(String key, int pageSize, boolean readAhead) {
+        return PageIterator.stream(getAllIterator(key, pageSize, readAhead));
     }
 
     /**
@@ -51,20 +252,102 @@ public class HashOperations extends BaseOperations {
      */
     public List<Object> multiGet(String key, Collection<Object> fields) {
         String newKey = getStoreKey(key);
+        List<Object> fieldList = new ArrayList<>(fields);
+        flushPending(newKey, fieldList);
+        Map<String, List<Integer>> groups = groupFields(newKey, fieldList, redisTable.getHashBuckets());
+        Map<String, List<Integer>> previousGroups = redisTable.getPreviousHashBuckets() > 0
+                ? groupFields(newKey, fieldList, redisTable.getPreviousHashBuckets()) : Collections.emptyMap();
+        if (groups.size() == 1 && previousGroups.isEmpty()) {
+            return redisTemplate.opsForHash().multiGet(groups.keySet().iterator().next(), fields).stream()
+                    .map(CacheLoading::unwrap).collect(Collectors.toList());
+        }
 
-        return redisTemplate.opsForHash().multiGet(newKey, fields);
+        List<Map.Entry<String, List<Integer>>> all = new ArrayList<>(previousGroups.entrySet());
+        all.addAll(groups.entrySet());
+        List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, List<Integer>> group : all) {
+                ((StringRedisConnection) connection).hMGet(group.getKey(), selectFields(fieldList, group.getValue()));
+            }
+            return null;
+        });
+
+        Object[] values = new Object[fieldList.size()];
+        for (int i = 0; i < all.size(); i++) {
+            List<Integer> indexes = all.get(i).getValue();
+            List<?> groupValues = (List<?>) results.get(i);
+            for (int j = 0; j < indexes.size(); j++) {
+                if (groupValues.get(j) != null) {
+                    values[indexes.get(j)] = CacheLoading.unwrap(groupValues.get(j));
+                }
+            }
+        }
+        return Arrays.asList(values);
     }
 
     public void put(String key, String hashKey, String value) {
+        if (!redisTable.getHashIndexes().isEmpty()) {
+            indexedPut(key, Collections.singletonMap(hashKey, value));
+            return;
+        }
         String newKey = getStoreKey(key);
+        String location = location(newKey, hashKey);
+        String previous = previousLocation(newKey, hashKey);
+        WriteBehindBuffer writeBehindBuffer = redisTable.getWriteBehindBuffer();
+        if (writeBehindBuffer != null && previous == null) {
+            writeBehindBuffer.put(location, hashKey, value);
+            return;
+        }
+        discardPending(newKey, Collections.singletonList(hashKey));
+        if (previous == null) {
+            redisTemplate.opsForHash().put(location, hashKey, value);
+            return;
+        }
 
-        redisTemplate.opsForHash().put(newKey, hashKey, value);
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.hSet(location, hashKey, value);
+            conn.hDel(previous, hashKey);
+            return null;
+        });
     }
 
     public void putAll(String key, Map<String, String> maps) {
+        if (!redisTable.getHashIndexes().isEmpty()) {
+            indexedPut(key, maps);
+            return;
+        }
         String newKey = getStoreKey(key);
+        List<Object> fieldList = new ArrayList<>(maps.keySet());
+        discardPending(newKey, fieldList);
+        Map<String, List<Integer>> groups = groupFields(newKey, fieldList, redisTable.getHashBuckets());
+        if (groups.size() == 1 && redisTable.getPreviousHashBuckets() == 0) {
+            redisTemplate.opsForHash().putAll(groups.keySet().iterator().next(), maps);
+            return;
+        }
+
+        Map<String, List<String>> removes = new LinkedHashMap<>();
+        for (Object field : fieldList) {
+            String previous = previousLocation(newKey, field);
+            if (previous != null) {
+                removes.computeIfAbsent(previous, k -> new ArrayList<>()).add((String) field);
+            }
+        }
 
-        redisTemplate.opsForHash().putAll(newKey, maps);
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+                Map<String, String> values = new LinkedHashMap<>(group.getValue().size());
+                for (Integer index : group.getValue()) {
+                    String field = (String) fieldList.get(index);
+                    values.put(field, maps.get(field));
+                }
+                conn.hMSet(group.getKey(), values);
+            }
+            for (Map.Entry<String, List<String>> remove : removes.entrySet()) {
+                conn.hDel(remove.getKey(), remove.getValue().toArray(new String[0]));
+            }
+            return null;
+        });
     }
 
     /**
@@ -77,8 +360,13 @@ public class HashOperations extends BaseOperations {
      */
     public Boolean putIfAbsent(String key, String hashKey, String value) {
         String newKey = getStoreKey(key);
+        flushPending(newKey, Collections.singletonList(hashKey));
+        String previous = previousLocation(newKey, hashKey);
+        if (previous != null && redisTemplate.opsForHash().hasKey(previous, hashKey)) {
+            return false;
+        }
 
-        return redisTemplate.opsForHash().putIfAbsent(newKey, hashKey, value);
+        return redisTemplate.opsForHash().putIfAbsent(location(newKey, hashKey), hashKey, value);
     }
 
     /**
@@ -89,9 +377,33 @@ public class HashOperations extends BaseOperations {
      * @return
      */
     public Long delete(String key, Object... fields) {
+        if (!redisTable.getHashIndexes().isEmpty()) {
+            return fields.length == 0 ? 0L : indexedDelete(key, fields);
+        }
         String newKey = getStoreKey(key);
+        List<Object> fieldList = Arrays.asList(fields);
+        discardPending(newKey, fieldList);
+        Map<String, List<Integer>> groups = groupFields(newKey, fieldList, redisTable.getHashBuckets());
+        if (groups.size() == 1 && redisTable.getPreviousHashBuckets() == 0) {
+            return redisTemplate.opsForHash().delete(groups.keySet().iterator().next(), fields);
+        }
+
+        List<Map.Entry<String, List<Integer>>> all = new ArrayList<>(groups.entrySet());
+        if (redisTable.getPreviousHashBuckets() > 0) {
+            all.addAll(groupFields(newKey, fieldList, redisTable.getPreviousHashBuckets()).entrySet());
+        }
+        List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, List<Integer>> group : all) {
+                ((StringRedisConnection) connection).hDel(group.getKey(), selectFields(fieldList, group.getValue()));
+            }
+            return null;
+        });
 
-        return redisTemplate.opsForHash().delete(newKey, fields);
+        long deleted = 0;
+        for (Object result : results) {
+            deleted += result == null ? 0 : (Long) result;
+        }
+        return deleted;
     }
 
     /**
@@ -103,8 +415,20 @@ public class HashOperations extends BaseOperations {
      */
     public boolean exists(String key, String field) {
         String newKey = getStoreKey(key);
+        flushPending(newKey, Collections.singletonList(field));
+        String location = location(newKey, field);
+        String previous = previousLocation(newKey, field);
+        if (previous == null) {
+            return redisTemplate.opsForHash().hasKey(location, field);
+        }
 
-        return redisTemplate.opsForHash().hasKey(newKey, field);
+        List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.hExists(location, field);
+            conn.hExists(previous, field);
+            return null;
+        });
+        return results.contains(Boolean.TRUE);
     }
 
     /**
@@ -113,12 +437,20 @@ public class HashOperations extends BaseOperations {
      * @param key
      * @param field
      * @param increment
-     * @return
+     * @return 开启计数器缓冲(RedisTable.enableCounterBuffer)时返回null
      */
     public Long increment(String key, Object field, long increment) {
         String newKey = getStoreKey(key);
+        flushPending(newKey, Collections.singletonList(field));
+        String location = location(newKey, field);
+        moveField(newKey, field, location);
+
+        CounterBuffer counterBuffer = redisTable.getCounterBuffer();
+        if (counterBuffer != null && counterBuffer.add(location, String.valueOf(field), increment)) {
+            return null;
+        }
 
-        return redisTemplate.opsForHash().increment(newKey, field, increment);
+        return redisTemplate.opsForHash().increment(location, field, increment);
     }
 
     /**
@@ -127,12 +459,20 @@ public class HashOperations extends BaseOperations {
      * @param key
      * @param field
      * @param delta
-     * @return
+     * @return 开启计数器缓冲(RedisTable.enableCounterBuffer)时返回null
      */
     public Double increment(String key, Object field, double delta) {
         String newKey = getStoreKey(key);
+        flushPending(newKey, Collections.singletonList(field));
+        String location = location(newKey, field);
+        moveField(newKey, field, location);
 
-        return redisTemplate.opsForHash().increment(newKey, field, delta);
+        CounterBuffer counterBuffer = redisTable.getCounterBuffer();
+        if (counterBuffer != null && counterBuffer.add(location, String.valueOf(field), delta)) {
+            return null;
+        }
+
+        return redisTemplate.opsForHash().increment(location, field, delta);
     }
 
     /**
@@ -143,8 +483,17 @@ public class HashOperations extends BaseOperations {
      */
     public Set<Object> hKeys(String key) {
         String newKey = getStoreKey(key);
+        List<String> locations = locations(newKey);
+        flushPending(locations);
+        if (locations.size() == 1) {
+            return redisTemplate.opsForHash().keys(newKey);
+        }
 
-        return redisTemplate.opsForHash().keys(newKey);
+        Set<Object> fields = new LinkedHashSet<>();
+        for (Object result : pipelineEach(locations, StringRedisConnection::hKeys)) {
+            fields.addAll((Collection<?>) result);
+        }
+        return fields;
     }
 
     /**
@@ -155,8 +504,17 @@ public class HashOperations extends BaseOperations {
      */
     public Long size(String key) {
         String newKey = getStoreKey(key);
+        List<String> locations = locations(newKey);
+        flushPending(locations);
+        if (locations.size() == 1) {
+            return redisTemplate.opsForHash().size(newKey);
+        }
 
-        return redisTemplate.opsForHash().size(newKey);
+        long size = 0;
+        for (Object result : pipelineEach(locations, StringRedisConnection::hLen)) {
+            size += result == null ? 0 : (Long) result;
+        }
+        return size;
     }
 
     /**
@@ -167,12 +525,23 @@ public class HashOperations extends BaseOperations {
      */
     public List<Object> values(String key) {
         String newKey = getStoreKey(key);
-
-        return redisTemplate.opsForHash().values(newKey);
+        List<String> locations = locations(newKey);
+        flushPending(locations);
+        List<Object> values = new ArrayList<>();
+        if (locations.size() == 1) {
+            values.addAll(redisTemplate.opsForHash().values(newKey));
+        } else {
+            for (Object result : pipelineEach(locations, StringRedisConnection::hVals)) {
+                values.addAll((Collection<?>) result);
+            }
+        }
+        return values.stream().map(CacheLoading::unwrap).filter(Objects::nonNull).collect(Collectors.toList());
     }
 
     /**
-     * 迭代哈希表中的键值对
+     * 迭代哈希表中的键值对, 分桶存储时依次迭代每个分桶
+     *
+     * 注：返回Redis中存储的值, 对getOrLoad缓存的值包括过期时间等信息
      *
      * @param key
      * @param options
@@ -180,7 +549,564 @@ public class HashOperations extends BaseOperations {
      */
     public Cursor<Map.Entry<Object, Object>> scan(String key, ScanOptions options) {
         String newKey = getStoreKey(key);
+        List<String> locations = locations(newKey);
+        flushPending(locations);
+        if (locations.size() == 1) {
+            return redisTemplate.opsForHash().scan(newKey, options);
+        }
+
+        List<Supplier<Cursor<Map.Entry<Object, Object>>>> cursors = new ArrayList<>(locations.size());
+        for (String location : locations) {
+            cursors.add(() -> redisTemplate.opsForHash().scan(location, options));
+        }
+        return new CompositeCursor<>(cursors);
+    }
+
+    /**
+     * 删除哈希表的全部分桶. 表声明了索引时以脚本删除哈希表, 同时从各字段的索引中移除该key
+     *
+     * @param key
+     */
+    @Override
+    public void delete(String key) {
+        if (redisTable.getHashIndexes().isEmpty()) {
+            super.delete(key);
+            return;
+        }
+        discardPending(getStoreKeys(key));
+        indexedDelete(key);
+    }
+
+    /**
+     * 批量删除哈希表. 表声明了索引时逐个以脚本删除, 同时从索引中移除各key
+     *
+     * @param keys
+     */
+    @Override
+    public void delete(Collection<String> keys) {
+        if (redisTable.getHashIndexes().isEmpty()) {
+            super.delete(keys);
+            return;
+        }
+        for (String key : keys) {
+            delete(key);
+        }
+    }
+
+    /**
+     * 修改哈希表的名称
+     *
+     * @param oldKey
+     * @param newKey
+     * @throws IllegalStateException 表声明了索引, 索引项中仍是原key
+     */
+    @Override
+    public void rename(String oldKey, String newKey) {
+        requireNoIndexes();
+        super.rename(oldKey, newKey);
+    }
+
+    /**
+     * 仅当 newKey 不存在时修改哈希表的名称
+     *
+     * @param oldKey
+     * @param newKey
+     * @return
+     * @throws IllegalStateException 表声明了索引, 索引项中仍是原key
+     */
+    @Override
+    public Boolean renameIfAbsent(String oldKey, String newKey) {
+        requireNoIndexes();
+        return super.renameIfAbsent(oldKey, newKey);
+    }
+
+    /**
+     * 按等值索引查询哈希表的key, 同一集合未修改时分页顺序稳定
+     *
+     * @param field  索引字段
+     * @param value  字段值
+     * @param offset
+     * @param count
+     * @return
+     */
+    public List<String> findKeys(String field, String value, long offset, int count) {
+        String indexKey = equalityKey(field, value);
+        SortParameters parameters = new DefaultSortParameters().by("nosort".getBytes(StandardCharsets.UTF_8)).limit(offset, count);
+        List<String> newKeys = redisTemplate.execute((RedisCallback<List<String>>) connection ->
+                ((StringRedisConnection) connection).sort(indexKey, parameters));
+        return newKeys == null ? new ArrayList<>() : newKeys;
+    }
+
+    /**
+     * 按范围索引查询哈希表的key, 按字段值从小到大排列
+     *
+     * @param field  索引字段
+     * @param min    最小值(包含)
+     * @param max    最大值(包含)
+     * @param offset
+     * @param count
+     * @return
+     */
+    public List<String> findKeys(String field, double min, double max, long offset, int count) {
+        String indexKey = rangeKey(field);
+        Set<String> newKeys = redisTemplate.opsForZSet().rangeByScore(indexKey, min, max, offset, count);
+        return newKeys == null ? new ArrayList<>() : new ArrayList<>(newKeys);
+    }
+
+    /**
+     * 按等值索引查询哈希表, 以pipeline读取各哈希表的全部字段
+     *
+     * @param field  索引字段
+     * @param value  字段值
+     * @param offset
+     * @param count
+     * @return key与字段的映射, 顺序与索引一致
+     */
+    public Map<String, Map<Object, Object>> find(String field, String value, long offset, int count) {
+        return hydrate(findKeys(field, value, offset, count));
+    }
+
+    /**
+     * 按范围索引查询哈希表, 以pipeline读取各哈希表的全部字段
+     *
+     * @param field  索引字段
+     * @param min    最小值(包含)
+     * @param max    最大值(包含)
+     * @param offset
+     * @param count
+     * @return key与字段的映射, 按字段值从小到大排列
+     */
+    public Map<String, Map<Object, Object>> find(String field, double min, double max, long offset, int count) {
+        return hydrate(findKeys(field, min, max, offset, count));
+    }
+
+    /**
+     * 等值索引中字段值为value的哈希表数量
+     *
+     * @param field
+     * @param value
+     * @return
+     */
+    public Long countIndexed(String field, String value) {
+        return redisTemplate.opsForSet().size(equalityKey(field, value));
+    }
+
+    /**
+     * 范围索引中字段值在[min, max]内的哈希表数量
+     *
+     * @param field
+     * @param min
+     * @param max
+     * @return
+     */
+    public Long countIndexed(String field, double min, double max) {
+        return redisTemplate.opsForZSet().count(rangeKey(field), min, max);
+    }
+
+    /**
+     * 为表中已有的哈希表建立全部索引, 用于在已有数据的表上声明索引之后
+     *
+     * @return 建立索引的哈希表数量
+     */
+    public long reindex() {
+        Map<String, IndexType> indexes = redisTable.getHashIndexes();
+        if (indexes.isEmpty()) {
+            return 0;
+        }
+
+        String indexPrefix = indexPrefix();
+        List<String> fields = new ArrayList<>(indexes.keySet());
+        long[] indexed = new long[1];
+        redisTable.getKeyRouter().scan(TableTransfer.pattern(redisTable.getTableKey()), REBUCKET_BATCH_SIZE, page -> {
+            List<String> rows = new ArrayList<>(page.size());
+            for (String storeKey : page) {
+                if (!storeKey.startsWith(indexPrefix)) {
+                    rows.add(storeKey);
+                }
+            }
+            List<Object> types = pipelineEach(rows, StringRedisConnection::type);
+            List<String> hashes = new ArrayList<>(rows.size());
+            for (int i = 0; i < rows.size(); i++) {
+                if (types.get(i) == DataType.HASH) {
+                    hashes.add(rows.get(i));
+                }
+            }
+            if (hashes.isEmpty()) {
+                return;
+            }
+
+            String[] fieldArray = fields.toArray(new String[0]);
+            List<Object> values = pipelineEach(hashes, (connection, storeKey) -> connection.hMGet(storeKey, fieldArray));
+            int tableKeyLength = redisTable.getTableKey().length();
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (int i = 0; i < hashes.size(); i++) {
+                    String id = hashes.get(i).substring(tableKeyLength);
+                    List<?> row = (List<?>) values.get(i);
+                    for (int j = 0; j < fieldArray.length; j++) {
+                        String value = (String) row.get(j);
+                        if (value == null) {
+                            continue;
+                        }
+                        if (indexes.get(fieldArray[j]) == IndexType.EQUALITY) {
+                            conn.sAdd(indexPrefix + fieldArray[j] + Constants.KEY_SEPARATOR + value, id);
+                        } else if (isNumber(value)) {
+                            conn.zAdd(indexPrefix + fieldArray[j], Double.parseDouble(value), id);
+                        }
+                    }
+                }
+                return null;
+            });
+            indexed[0] += hashes.size();
+        });
+        return indexed[0];
+    }
+
+    /**
+     * 删除一个字段的全部索引key
+     *
+     * @param field
+     */
+    void dropIndex(String field) {
+        String indexKey = indexPrefix() + field;
+        redisTemplate.delete(indexKey);
+        redisTable.getKeyRouter().scan(TableTransfer.pattern(indexKey + Constants.KEY_SEPARATOR), REBUCKET_BATCH_SIZE,
+                page -> redisTable.getKeyRouter().unlink(page));
+    }
+
+    private void indexedPut(String key, Map<String, String> maps) {
+        List<String> args = indexArgs(key);
+        for (Map.Entry<String, String> entry : maps.entrySet()) {
+            args.add(entry.getKey());
+            args.add(entry.getValue());
+        }
+        redisTemplate.execute(INDEXED_PUT_SCRIPT, Collections.singletonList(getStoreKey(key)), args.toArray());
+    }
+
+    private Long indexedDelete(String key, Object... fields) {
+        List<String> args = indexArgs(key);
+        for (Object field : fields) {
+            args.add(String.valueOf(field));
+        }
+        return redisTemplate.execute(INDEXED_DELETE_SCRIPT, Collections.singletonList(getStoreKey(key)), args.toArray());
+    }
+
+    private List<String> indexArgs(String key) {
+        Map<String, IndexType> indexes = redisTable.getHashIndexes();
+        List<String> args = new ArrayList<>();
+        args.add(indexPrefix());
+        args.add(key);
+        args.add(String.valueOf(indexes.size()));
+        for (Map.Entry<String, IndexType> index : indexes.entrySet()) {
+            args.add(index.getKey());
+            args.add(index.getValue() == IndexType.EQUALITY ? "e" : "r");
+        }
+        return args;
+    }
+
+    private Map<String, Map<Object, Object>> hydrate(List<String> keys) {
+        List<String> newKeys = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            newKeys.add(getStoreKey(key));
+        }
+        List<Object> rows = pipelineEach(newKeys, StringRedisConnection::hGetAll);
+
+        Map<String, Map<Object, Object>> result = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            Map<?, ?> row = (Map<?, ?>) rows.get(i);
+            // 过期的哈希表可能仍留在索引中, 跳过
+            if (row != null && !row.isEmpty()) {
+                result.put(keys.get(i), new LinkedHashMap<>(row));
+            }
+        }
+        return result;
+    }
+
+    private String indexPrefix() {
+        return redisTable.getTableKey() + INDEX_MARK;
+    }
+
+    private String equalityKey(String field, String value) {
+        requireIndex(field, IndexType.EQUALITY);
+        return indexPrefix() + field + Constants.KEY_SEPARATOR + value;
+    }
+
+    private String rangeKey(String field) {
+        requireIndex(field, IndexType.RANGE);
+        return indexPrefix() + field;
+    }
+
+    private void requireNoIndexes() {
+        if (!redisTable.getHashIndexes().isEmpty()) {
+            throw new IllegalStateException("Hashes in a table with hash indexes can't be renamed");
+        }
+    }
+
+    private void requireIndex(String field, IndexType type) {
+        if (redisTable.getHashIndexes().get(field) != type) {
+            throw new IllegalArgumentException("Field " + field + " doesn't have a " + type + " index");
+        }
+    }
+
+    private static boolean isNumber(String value) {
+        try {
+            Double.parseDouble(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 将表中的哈希表从多个分桶迁移到当前的分桶数量, 全部迁移完成后结束重新分桶
+     *
+     * 注：迁移期间可以正常读写, 多个应用实例共用一张表时只需在一个实例上执行.
+     * 从不分桶拆分时无法区分哈希表与表中其他结构(如布隆过滤器的元数据), 需使用 rebucket(pattern) 指定哈希表的key
+     */
+    public void rebucket() {
+        if (redisTable.getPreviousHashBuckets() == 1) {
+            throw new IllegalStateException("Splitting unbucketed hashes requires a key pattern, call rebucket(pattern)");
+        }
+        rebucket("*");
+    }
+
+    /**
+     * 将key(不含表前缀)匹配pattern的哈希表迁移到当前的分桶数量, 全部迁移完成后结束重新分桶
+     *
+     * 只迁移旧分桶布局的key: 从不分桶拆分时跳过已是当前分桶key(以"#0"至"#N-1"结尾)的哈希表,
+     * 从多个分桶迁移时只处理以"#0"至"#M-1"结尾的旧分桶key. 开始前等待各实例读取到新的分桶设置
+     *
+     * 注：从不分桶拆分时, 本身以"#数字"结尾的哈希表key会被当作分桶key跳过
+     *
+     * @param pattern 哈希表key(不含表前缀)的SCAN匹配模式, 如 "user:*"
+     */
+    public void rebucket(String pattern) {
+        int previousBuckets = redisTable.getPreviousHashBuckets();
+        if (previousBuckets == 0) {
+            return;
+        }
+        int buckets = redisTable.getHashBuckets();
+        awaitSettings();
+
+        String prefix = TableTransfer.pattern(redisTable.getTableKey());
+        String scanPattern = prefix.substring(0, prefix.length() - 1) + pattern
+                + (previousBuckets > 1 ? Constants.BUCKET_SEPARATOR + "*" : "");
+        redisTable.getKeyRouter().scan(scanPattern, REBUCKET_BATCH_SIZE, page -> {
+            List<Object> types = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String storeKey : page) {
+                    connection.type(redisTemplate.getStringSerializer().serialize(storeKey));
+                }
+                return null;
+            });
+            for (int i = 0; i < page.size(); i++) {
+                String storeKey = page.get(i);
+                String newKey = previousBuckets > 1 ? logicalKey(storeKey, previousBuckets)
+                        : (logicalKey(storeKey, buckets) == null ? storeKey : null);
+                if (types.get(i) == DataType.HASH && newKey != null) {
+                    rebucket(newKey, storeKey);
+                }
+            }
+        });
+        redisTable.finishHashRebucket();
+    }
+
+    /**
+     * 等到修改分桶数量后经过两个设置读取间隔, 各实例此后的写入都使用新分桶, 迁移不会遗漏旧分桶的写入
+     */
+    private void awaitSettings() {
+        long wait = redisTable.getHashBucketsChangeTime() + 2 * RedisTable.SETTINGS_REFRESH_MILLIS - System.currentTimeMillis();
+        if (wait <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for hash buckets to propagate", e);
+        }
+    }
+
+    /**
+     * 将一个旧分桶中的字段迁移到新分桶
+     *
+     * @param newKey   哈希表的存储key
+     * @param location 旧分桶的存储key
+     */
+    private void rebucket(String newKey, String location) {
+        ScanOptions options = ScanOptions.scanOptions().count(REBUCKET_BATCH_SIZE).build();
+        List<Map.Entry<Object, Object>> batch = new ArrayList<>(REBUCKET_BATCH_SIZE);
+        try (Cursor<Map.Entry<Object, Object>> cursor = redisTemplate.opsForHash().scan(location, options)) {
+            while (cursor.hasNext()) {
+                Map.Entry<Object, Object> entry = cursor.next();
+                if (!location.equals(location(newKey, entry.getKey()))) {
+                    batch.add(entry);
+                }
+                if (batch.size() >= REBUCKET_BATCH_SIZE) {
+                    moveFields(newKey, location, batch);
+                    batch.clear();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        moveFields(newKey, location, batch);
+    }
+
+    /**
+     * 将字段从旧分桶移到新分桶, 新分桶中已存在的字段不覆盖
+     */
+    private void moveFields(String newKey, String location, List<Map.Entry<Object, Object>> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Map.Entry<Object, Object> entry : entries) {
+                String field = (String) entry.getKey();
+                conn.hSetNX(location(newKey, field), field, (String) entry.getValue());
+                conn.hDel(location, field);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 重新分桶期间, 操作字段前先将其从旧分桶移到新分桶
+     */
+    private void moveField(String newKey, Object field, String location) {
+        String previous = previousLocation(newKey, field);
+        if (previous == null) {
+            return;
+        }
+
+        Object value = redisTemplate.opsForHash().get(previous, field);
+        if (value != null) {
+            Map.Entry<Object, Object> entry = new AbstractMap.SimpleEntry<>(field, value);
+            moveFields(newKey, previous, Collections.singletonList(entry));
+        }
+    }
+
+    /**
+     * 从分桶的存储key得到哈希表的存储key, 不是以"#0"至"#(buckets-1)"结尾时返回null
+     */
+    private String logicalKey(String storeKey, int buckets) {
+        int index = storeKey.lastIndexOf(Constants.BUCKET_SEPARATOR);
+        if (index < 0) {
+            return null;
+        }
+        try {
+            int bucket = Integer.parseInt(storeKey.substring(index + 1));
+            return bucket >= 0 && bucket < buckets && String.valueOf(bucket).equals(storeKey.substring(index + 1))
+                    ? storeKey.substring(0, index) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 字段所在分桶的存储key
+     */
+    private String location(String newKey, Object field) {
+        return Buckets.keyOf(newKey, field, redisTable.getHashBuckets());
+    }
+
+    /**
+     * 重新分桶期间字段在旧分桶中的存储key, 与新分桶相同或没有进行中的迁移时返回null
+     */
+    private String previousLocation(String newKey, Object field) {
+        int previousBuckets = redisTable.getPreviousHashBuckets();
+        if (previousBuckets == 0) {
+            return null;
+        }
+
+        String previous = Buckets.keyOf(newKey, field, previousBuckets);
+        return previous.equals(location(newKey, field)) ? null : previous;
+    }
+
+    /**
+     * 哈希表的全部存储key, 重新分桶期间包括旧分桶, 旧分桶在前
+     */
+    private List<String> locations(String newKey) {
+        Set<String> locations = new LinkedHashSet<>();
+        if (redisTable.getPreviousHashBuckets() > 0) {
+            locations.addAll(Buckets.bucketKeys(newKey, redisTable.getPreviousHashBuckets()));
+        }
+        locations.addAll(Buckets.bucketKeys(newKey, redisTable.getHashBuckets()));
+        return new ArrayList<>(locations);
+    }
+
+    /**
+     * 丢弃异步写缓冲中这些字段尚未写入的值, 直接写入或删除字段之前调用. 包括重新分桶前缓冲在旧分桶的值
+     */
+    private void discardPending(String newKey, Collection<?> fields) {
+        WriteBehindBuffer writeBehindBuffer = redisTable.getWriteBehindBuffer();
+        if (writeBehindBuffer == null) {
+            return;
+        }
+        Map<String, List<Object>> byLocation = new LinkedHashMap<>();
+        for (Object field : fields) {
+            byLocation.computeIfAbsent(location(newKey, field), k -> new ArrayList<>()).add(field);
+            String previous = previousLocation(newKey, field);
+            if (previous != null) {
+                byLocation.computeIfAbsent(previous, k -> new ArrayList<>()).add(field);
+            }
+        }
+        byLocation.forEach(writeBehindBuffer::discard);
+    }
+
+    /**
+     * 立即写入异步写缓冲中这些字段所在分桶尚未写入的值, 直接读取或修改字段之前调用
+     */
+    private void flushPending(String newKey, Collection<?> fields) {
+        if (redisTable.getWriteBehindBuffer() == null) {
+            return;
+        }
+        Set<String> locations = new LinkedHashSet<>();
+        for (Object field : fields) {
+            locations.add(location(newKey, field));
+            String previous = previousLocation(newKey, field);
+            if (previous != null) {
+                locations.add(previous);
+            }
+        }
+        flushPending(locations);
+    }
+
+    /**
+     * 按分桶对字段下标分组
+     */
+    private Map<String, List<Integer>> groupFields(String newKey, List<Object> fields, int buckets) {
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < fields.size(); i++) {
+            groups.computeIfAbsent(Buckets.keyOf(newKey, fields.get(i), buckets), k -> new ArrayList<>()).add(i);
+        }
+        return groups;
+    }
+
+    /**
+     * 去掉getOrLoad缓存的值中的过期时间等信息, 空值缓存和已过期的字段不返回
+     */
+    private static Map<Object, Object> unwrap(Map<Object, Object> entries) {
+        Map<Object, Object> result = new LinkedHashMap<>(entries.size());
+        for (Map.Entry<Object, Object> entry : entries.entrySet()) {
+            Object value = CacheLoading.unwrap(entry.getValue());
+            if (value != null) {
+                result.put(entry.getKey(), value);
+            }
+        }
+        return result;
+    }
+
+    private static String[] selectFields(List<Object> fields, List<Integer> indexes) {
+        String[] selected = new String[indexes.size()];
+        for (int i = 0; i < selected.length; i++) {
+            selected[i] = String.valueOf(fields.get(indexes.get(i)));
+        }
+        return selected;
+    }
 
-        return redisTemplate.opsForHash().scan(newKey, options);
+    private List<Object> pipelineEach(List<String> locations, BiConsumer<StringRedisConnection, String> command) {
+        return redisTable.getKeyRouter().pipelineEach(locations, command);
     }
 }
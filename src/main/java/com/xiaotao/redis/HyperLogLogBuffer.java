@@ -0,0 +1,142 @@
+package com.xiaotao.redis;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HyperLogLog的批量添加缓冲
+ *
+ * 添加的元素先按计数器在本地去重, 定时或待发送的元素数达到阈值时以pipeline批量 PFADD,
+ * 每条 PFADD 最多携带1000个元素. 计数结果最多延迟一个刷新周期
+ *
+ * @author wxt366@126.com
+ */
+public class HyperLogLogBuffer extends AbstractWriteBuffer {
+    /**
+     * 每条 PFADD 命令的最大元素数
+     */
+    private static final int PFADD_BATCH_SIZE = 1000;
+
+    private final HyperLogLogOperations operations;
+
+    private final int maxPendingValues;
+
+    private final ConcurrentHashMap<String, Set<String>> pending = new ConcurrentHashMap<>();
+
+    private final AtomicInteger pendingValues = new AtomicInteger();
+
+    private final LongAdder adds = new LongAdder();
+
+    HyperLogLogBuffer(HyperLogLogOperations operations, RedisTable redisTable, long flushInterval, TimeUnit unit, int maxPendingValues) {
+        super(redisTable, "hll", flushInterval, unit);
+        this.operations = operations;
+        this.maxPendingValues = maxPendingValues;
+    }
+
+    /**
+     * 添加元素
+     *
+     * @param key
+     * @param value
+     */
+    public void add(String key, String value) {
+        checkOpen();
+        adds.increment();
+        String storeKey = operations.getStoreKey(key);
+        pending.compute(storeKey, (k, values) -> {
+            if (values == null) {
+                values = new HashSet<>();
+            }
+            if (values.add(value)) {
+                pendingValues.incrementAndGet();
+            }
+            return values;
+        });
+        if (pendingValues.get() >= maxPendingValues) {
+            requestFlush();
+        }
+    }
+
+    @Override
+    protected long doFlush() {
+        Map<String, Set<String>> batch = new LinkedHashMap<>();
+        for (String storeKey : pending.keySet()) {
+            Set<String> values = pending.remove(storeKey);
+            if (values != null) {
+                pendingValues.addAndGet(-values.size());
+                batch.put(storeKey, values);
+            }
+        }
+        if (batch.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            return write(batch);
+        } catch (RuntimeException e) {
+            for (Map.Entry<String, Set<String>> entry : batch.entrySet()) {
+                pending.compute(entry.getKey(), (k, values) -> {
+                    if (values == null) {
+                        values = new HashSet<>();
+                    }
+                    for (String value : entry.getValue()) {
+                        if (values.add(value)) {
+                            pendingValues.incrementAndGet();
+                        }
+                    }
+                    return values;
+                });
+            }
+            throw e;
+        }
+    }
+
+    private long write(Map<String, Set<String>> batch) {
+        List<String> keys = new ArrayList<>(batch.keySet());
+        AtomicLong count = new AtomicLong();
+        redisTable.getKeyRouter().pipelineByNode(keys, (connection, slots) -> {
+            for (List<Integer> slot : slots) {
+                for (Integer index : slot) {
+                    String storeKey = keys.get(index);
+                    List<String> values = new ArrayList<>(batch.get(storeKey));
+                    for (int i = 0; i < values.size(); i += PFADD_BATCH_SIZE) {
+                        connection.pfAdd(storeKey, values.subList(i, Math.min(i + PFADD_BATCH_SIZE, values.size())).toArray(new String[0]));
+                        count.incrementAndGet();
+                    }
+                    if (redisTable.isUpdateExpire(storeKey)) {
+                        connection.pExpire(storeKey, redisTable.getAutoWindow());
+                        count.incrementAndGet();
+                    }
+                }
+            }
+        });
+        return count.get();
+    }
+
+    /**
+     * 累计的添加调用次数
+     *
+     * @return
+     */
+    public long getAdds() {
+        return adds.sum();
+    }
+
+    /**
+     * 当前待发送的元素数
+     *
+     * @return
+     */
+    public int getPendingValues() {
+        return pendingValues.get();
+    }
+}
@@ -0,0 +1,80 @@
+package com.xiaotao.redis;
+
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HyperLogLog相关操作, 用于近似的去重计数, 每个计数器约占用12KB, 标准误差0.81%
+ *
+ * @author wxt366@126.com
+ */
+public class HyperLogLogOperations extends BaseOperations {
+    public HyperLogLogOperations(StringRedisTemplate redisTemplate, RedisTable redisTable) {
+        super(redisTemplate, redisTable);
+    }
+
+    /**
+     * 添加元素
+     *
+     * @param key
+     * @param values
+     * @return 估计的基数发生变化时返回1, 否则返回0
+     */
+    public Long add(String key, String... values) {
+        String newKey = getStoreKey(key);
+        Long changed = redisTemplate.opsForHyperLogLog().add(newKey, values);
+        if (redisTable.isUpdateExpire(newKey)) {
+            redisTemplate.expire(newKey, redisTable.getAutoWindow(), TimeUnit.MILLISECONDS);
+        }
+        return changed;
+    }
+
+    /**
+     * 获取估计的基数
+     *
+     * @param key
+     * @return
+     */
+    public Long size(String key) {
+        String newKey = getStoreKey(key);
+        return redisTemplate.opsForHyperLogLog().size(newKey);
+    }
+
+    /**
+     * 获取多个计数器并集的估计基数, 集群模式下各key需在同一slot
+     *
+     * @param keys
+     * @return
+     */
+    public Long size(Collection<String> keys) {
+        String[] newKeys = keys.stream().map(this::getStoreKey).toArray(String[]::new);
+        return redisTemplate.opsForHyperLogLog().size(newKeys);
+    }
+
+    /**
+     * 合并多个计数器并存储到destKey, 集群模式下各key需在同一slot
+     *
+     * @param destKey
+     * @param keys
+     * @return
+     */
+    public Long union(String destKey, Collection<String> keys) {
+        String newDestKey = getStoreKey(destKey);
+        String[] newKeys = keys.stream().map(this::getStoreKey).toArray(String[]::new);
+        return redisTemplate.opsForHyperLogLog().union(newDestKey, newKeys);
+    }
+
+    /**
+     * 创建本地去重的批量添加缓冲, 同一计数器在一个刷新周期内的重复元素只发送一次
+     *
+     * @param flushInterval    刷新周期
+     * @param unit
+     * @param maxPendingValues 待发送的元素数达到该数量时立即刷新
+     * @return
+     */
+    public HyperLogLogBuffer buffer(long flushInterval, TimeUnit unit, int maxPendingValues) {
+        return new HyperLogLogBuffer(this, redisTable, flushInterval, unit, maxPendingValues);
+    }
+}
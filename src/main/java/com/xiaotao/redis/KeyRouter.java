@@ -0,0 +1,561 @@
+package com.xiaotao.redis;
+
+import org.springframework.data.redis.connection.ClusterSlotHashUtil;
+import org.springframework.data.redis.connection.RedisClusterConnection;
+import org.springframework.data.redis.connection.RedisClusterNode;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * 多key操作的路由: 按slot和master节点对key分组, 每个节点的分组使用独立的pipeline并发执行,
+ * 连接不支持pipeline时每个节点的分组逐条执行命令
+ *
+ * @author wxt366@126.com
+ */
+class KeyRouter {
+    /**
+     * 集群slot数量
+     */
+    private static final int SLOT_COUNT = 16384;
+
+    /**
+     * 集群拓扑缓存时间
+     */
+    private static final long TOPOLOGY_TTL_MILLIS = 60_000;
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final StringRedisTemplate bulkTemplate;
+
+    private final StringRedisTemplate scanTemplate;
+
+    private final Executor executor;
+
+    private volatile Boolean cluster;
+
+    private volatile RedisClusterNode[] slotNodes;
+
+    private volatile long topologyLoadTime;
+
+    private volatile int[] serverVersion;
+
+    /**
+     * 连接不支持pipeline(如 JedisClusterConnection)时为true, 之后逐条执行命令
+     */
+    private volatile boolean pipelineUnsupported;
+
+    KeyRouter(StringRedisTemplate redisTemplate, Executor executor) {
+        this(redisTemplate, redisTemplate, redisTemplate, executor);
+    }
+
+    /**
+     * @param redisTemplate 查询拓扑与版本
+     * @param bulkTemplate  执行pipeline
+     * @param scanTemplate  执行SCAN
+     * @param executor      多节点并发操作使用的线程池
+     */
+    KeyRouter(StringRedisTemplate redisTemplate, StringRedisTemplate bulkTemplate, StringRedisTemplate scanTemplate, Executor executor) {
+        this.redisTemplate = redisTemplate;
+        this.bulkTemplate = bulkTemplate;
+        this.scanTemplate = scanTemplate;
+        this.executor = executor;
+    }
+
+    /**
+     * 是否为集群连接
+     *
+     * @return
+     */
+    boolean isCluster() {
+        if (cluster == null) {
+            RedisConnection connection = redisTemplate.getRequiredConnectionFactory().getConnection();
+            try {
+                cluster = connection instanceof RedisClusterConnection;
+            } finally {
+                connection.close();
+            }
+        }
+        return cluster;
+    }
+
+    /**
+     * Redis服务端版本是否不低于指定版本, 集群模式下以版本最低的节点为准
+     *
+     * @param major
+     * @param minor
+     * @return
+     */
+    boolean isVersionAtLeast(int major, int minor) {
+        int[] version = serverVersion;
+        if (version == null) {
+            version = readServerVersion();
+            serverVersion = version;
+        }
+        return version[0] > major || (version[0] == major && version[1] >= minor);
+    }
+
+    private int[] readServerVersion() {
+        Properties info = redisTemplate.execute((RedisCallback<Properties>) connection -> connection.info("server"));
+        int[] version = null;
+        if (info != null) {
+            for (String name : info.stringPropertyNames()) {
+                if (!name.endsWith("redis_version")) {
+                    continue;
+                }
+                String[] parts = info.getProperty(name).split("\\.");
+                int[] nodeVersion = {Integer.parseInt(parts[0]), parts.length > 1 ? Integer.parseInt(parts[1]) : 0};
+                if (version == null || nodeVersion[0] < version[0]
+                        || (nodeVersion[0] == version[0] && nodeVersion[1] < version[1])) {
+                    version = nodeVersion;
+                }
+            }
+        }
+        return version == null ? new int[]{0, 0} : version;
+    }
+
+    /**
+     * 清除缓存的集群拓扑, 下次路由时重新加载
+     */
+    void refresh() {
+        slotNodes = null;
+    }
+
+    /**
+     * 按master节点对key分组, 每组在独立线程中以pipeline方式执行, 单节点时直接在当前线程执行
+     *
+     * @param keys     完整的存储key
+     * @param commands 对节点上的key发出命令, 参数为按slot划分的key下标
+     * @return 每个节点的分组及pipeline结果, keys为空时不发送命令, 返回空列表
+     */
+    List<NodeBatch> pipelineByNode(List<String> keys, BiConsumer<StringRedisConnection, List<List<Integer>>> commands) {
+        return pipelineByNode(keys, commands, redisTemplate.getValueSerializer());
+    }
+
+    /**
+     * 同pipelineByNode, 结果不反序列化, 用于 DUMP 等返回二进制数据的命令
+     *
+     * @param keys     完整的存储key
+     * @param commands 对节点上的key发出命令, 参数为按slot划分的key下标
+     * @return 每个节点的分组及pipeline结果
+     */
+    List<NodeBatch> pipelineByNodeRaw(List<String> keys, BiConsumer<StringRedisConnection, List<List<Integer>>> commands) {
+        return pipelineByNode(keys, commands, null);
+    }
+
+    private List<NodeBatch> pipelineByNode(List<String> keys, BiConsumer<StringRedisConnection, List<List<Integer>>> commands,
+                                           RedisSerializer<?> resultSerializer) {
+        List<NodeBatch> batches = new ArrayList<>();
+        for (List<Integer> indexes : groupByNode(keys)) {
+            batches.add(new NodeBatch(splitBySlot(keys, indexes)));
+        }
+
+        if (batches.size() == 1) {
+            execute(batches.get(0), commands, resultSerializer);
+            return batches;
+        }
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>(batches.size());
+        for (NodeBatch batch : batches) {
+            futures.add(CompletableFuture.runAsync(() -> execute(batch, commands, resultSerializer), executor));
+        }
+        join(futures);
+        return batches;
+    }
+
+    private static void join(List<CompletableFuture<Void>> futures) {
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 对每个key执行一条命令, 按节点并发pipeline执行
+     *
+     * 注：pipeline会丢弃状态回复(如OK), 不能用于返回状态回复的命令
+     *
+     * @param keys    完整的存储key
+     * @param command 对单个key发出的命令
+     * @return 与keys顺序一致的结果
+     */
+    List<Object> pipelineEach(List<String> keys, BiConsumer<StringRedisConnection, String> command) {
+        List<NodeBatch> batches = pipelineByNode(keys, (connection, slots) -> {
+            for (List<Integer> slot : slots) {
+                for (Integer index : slot) {
+                    command.accept(connection, keys.get(index));
+                }
+            }
+        });
+
+        Object[] results = new Object[keys.size()];
+        for (NodeBatch batch : batches) {
+            int i = 0;
+            for (List<Integer> slot : batch.slots) {
+                for (Integer index : slot) {
+                    results[index] = batch.results.get(i++);
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * 删除一批key, Redis 4.0及以上使用 UNLINK 在后台释放内存
+     *
+     * @param keys 完整的存储key
+     * @return 删除的key数量
+     */
+    long unlink(List<String> keys) {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        boolean unlink = isVersionAtLeast(4, 0);
+        long deleted = 0;
+        for (Object result : pipelineEach(keys, (connection, key) -> {
+            if (unlink) {
+                connection.unlink(key);
+            } else {
+                connection.del(key);
+            }
+        })) {
+            deleted += result == null ? 0 : (Long) result;
+        }
+        return deleted;
+    }
+
+    /**
+     * 使用SCAN分页遍历匹配的key, 集群模式下依次遍历每个master节点
+     *
+     * @param pattern  匹配模式
+     * @param count    每页数量
+     * @param consumer 每页key的处理
+     */
+    void scan(String pattern, int count, Consumer<List<String>> consumer) {
+        ScanOptions options = ScanOptions.scanOptions().match(pattern).count(count).build();
+        RedisConnectionFactory connectionFactory = scanTemplate.getRequiredConnectionFactory();
+        if (!isCluster()) {
+            RedisConnection connection = connectionFactory.getConnection();
+            try {
+                drain(connection.scan(options), count, consumer);
+            } finally {
+                connection.close();
+            }
+            return;
+        }
+
+        RedisClusterConnection connection = connectionFactory.getClusterConnection();
+        try {
+            for (RedisClusterNode node : connection.clusterGetNodes()) {
+                if (node.isMaster()) {
+                    drain(connection.scan(node, options), count, consumer);
+                }
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * 并发遍历匹配的key, 集群模式下每个master节点在独立线程中遍历, 单节点时同scan
+     *
+     * 注：consumer会被多个线程同时调用
+     *
+     * @param pattern  匹配模式
+     * @param count    每页数量
+     * @param consumer 每页key的处理
+     */
+    void parallelScan(String pattern, int count, Consumer<List<String>> consumer) {
+        parallelScan(pattern, count, consumer, executor);
+    }
+
+    /**
+     * 同parallelScan, 集群模式下各节点的遍历在指定线程池中执行
+     *
+     * @param pattern  匹配模式
+     * @param count    每页数量
+     * @param consumer 每页key的处理
+     * @param executor
+     */
+    void parallelScan(String pattern, int count, Consumer<List<String>> consumer, Executor executor) {
+        if (!isCluster()) {
+            scan(pattern, count, consumer);
+            return;
+        }
+
+        ScanOptions options = ScanOptions.scanOptions().match(pattern).count(count).build();
+        RedisConnectionFactory connectionFactory = scanTemplate.getRequiredConnectionFactory();
+        List<RedisClusterNode> masters = new ArrayList<>();
+        RedisClusterConnection connection = connectionFactory.getClusterConnection();
+        try {
+            for (RedisClusterNode node : connection.clusterGetNodes()) {
+                if (node.isMaster()) {
+                    masters.add(node);
+                }
+            }
+        } finally {
+            connection.close();
+        }
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>(masters.size());
+        for (RedisClusterNode node : masters) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                RedisClusterConnection nodeConnection = connectionFactory.getClusterConnection();
+                try {
+                    drain(nodeConnection.scan(node, options), count, consumer);
+                } finally {
+                    nodeConnection.close();
+                }
+            }, executor));
+        }
+        join(futures);
+    }
+
+    /**
+     * 遍历匹配的key, 每页交给线程池并发处理, 同时处理的页数不超过parallelism.
+     * 遍历本身同parallelScan, 单节点时只有一个游标, 每个key只处理一次(遍历期间rehash时SCAN本身可能重复返回)
+     *
+     * @param pattern     匹配模式
+     * @param count       每页数量
+     * @param parallelism 同时处理的页数
+     * @param executor    遍历与处理使用的线程池
+     * @param consumer    每页key的处理, 会被多个线程同时调用
+     */
+    void parallelScan(String pattern, int count, int parallelism, Executor executor, Consumer<List<String>> consumer) {
+        Semaphore permits = new Semaphore(parallelism);
+        AtomicReference<RuntimeException> error = new AtomicReference<>();
+        parallelScan(pattern, count, page -> {
+            permits.acquireUninterruptibly();
+            if (error.get() != null) {
+                permits.release();
+                throw error.get();
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        consumer.accept(page);
+                    } catch (RuntimeException e) {
+                        error.compareAndSet(null, e);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }, executor);
+        permits.acquireUninterruptibly(parallelism);
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    private void drain(Cursor<byte[]> cursor, int count, Consumer<List<String>> consumer) {
+        try (Cursor<byte[]> keys = cursor) {
+            List<String> page = new ArrayList<>(count);
+            while (keys.hasNext()) {
+                page.add(redisTemplate.getStringSerializer().deserialize(keys.next()));
+                if (page.size() >= count) {
+                    consumer.accept(page);
+                    page = new ArrayList<>(count);
+                }
+            }
+            if (!page.isEmpty()) {
+                consumer.accept(page);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 取出下标对应的key
+     *
+     * @param keys
+     * @param indexes
+     * @return
+     */
+    static String[] select(List<String> keys, List<Integer> indexes) {
+        String[] selected = new String[indexes.size()];
+        for (int i = 0; i < selected.length; i++) {
+            selected[i] = keys.get(indexes.get(i));
+        }
+        return selected;
+    }
+
+    private void execute(NodeBatch batch, BiConsumer<StringRedisConnection, List<List<Integer>>> commands,
+                         RedisSerializer<?> resultSerializer) {
+        if (!pipelineUnsupported) {
+            try {
+                batch.results = bulkTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    commands.accept((StringRedisConnection) connection, batch.slots);
+                    return null;
+                }, resultSerializer);
+                return;
+            } catch (UnsupportedOperationException e) {
+                // 开启pipeline时即抛出, 尚未发出命令
+                pipelineUnsupported = true;
+            }
+        }
+        batch.results = executeEach(batch, commands, resultSerializer);
+    }
+
+    /**
+     * 不使用pipeline逐条执行命令, 按发出顺序记录各命令的返回值, 与pipeline结果的顺序一致
+     */
+    private List<Object> executeEach(NodeBatch batch, BiConsumer<StringRedisConnection, List<List<Integer>>> commands,
+                                     RedisSerializer<?> resultSerializer) {
+        List<Object> results = new ArrayList<>();
+        bulkTemplate.execute((RedisCallback<Object>) connection -> {
+            StringRedisConnection target = (StringRedisConnection) connection;
+            StringRedisConnection recorder = (StringRedisConnection) Proxy.newProxyInstance(KeyRouter.class.getClassLoader(),
+                    new Class<?>[]{StringRedisConnection.class}, (proxy, method, args) -> {
+                        Object result;
+                        try {
+                            result = method.invoke(target, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                        if (method.getReturnType() != void.class) {
+                            results.add(result instanceof byte[] && resultSerializer != null
+                                    ? resultSerializer.deserialize((byte[]) result) : result);
+                        }
+                        return result;
+                    });
+            commands.accept(recorder, batch.slots);
+            return null;
+        });
+        return results;
+    }
+
+    /**
+     * 按master节点分组, 组内下标按slot排序
+     */
+    private List<List<Integer>> groupByNode(List<String> keys) {
+        if (keys.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Integer> all = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            all.add(i);
+        }
+        if (!isCluster()) {
+            return Collections.singletonList(all);
+        }
+
+        RedisClusterNode[] nodes = getSlotNodes();
+        int[] slots = new int[keys.size()];
+        Map<RedisClusterNode, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            slots[i] = ClusterSlotHashUtil.calculateSlot(keys.get(i));
+            groups.computeIfAbsent(nodes[slots[i]], n -> new ArrayList<>()).add(i);
+        }
+
+        List<List<Integer>> result = new ArrayList<>(groups.values());
+        for (List<Integer> group : result) {
+            group.sort(Comparator.comparingInt(i -> slots[i]));
+        }
+        return result;
+    }
+
+    /**
+     * 将同一节点的下标按slot拆分, 非集群模式下不拆分
+     */
+    private List<List<Integer>> splitBySlot(List<String> keys, List<Integer> indexes) {
+        if (!isCluster()) {
+            return Collections.singletonList(indexes);
+        }
+
+        List<List<Integer>> result = new ArrayList<>();
+        int lastSlot = -1;
+        List<Integer> current = null;
+        for (Integer index : indexes) {
+            int slot = ClusterSlotHashUtil.calculateSlot(keys.get(index));
+            if (current == null || slot != lastSlot) {
+                current = new ArrayList<>();
+                result.add(current);
+                lastSlot = slot;
+            }
+            current.add(index);
+        }
+        return result;
+    }
+
+    private RedisClusterNode[] getSlotNodes() {
+        RedisClusterNode[] nodes = slotNodes;
+        if (nodes == null || System.currentTimeMillis() - topologyLoadTime > TOPOLOGY_TTL_MILLIS) {
+            nodes = loadSlotNodes();
+            slotNodes = nodes;
+            topologyLoadTime = System.currentTimeMillis();
+        }
+        return nodes;
+    }
+
+    private RedisClusterNode[] loadSlotNodes() {
+        RedisConnectionFactory connectionFactory = redisTemplate.getRequiredConnectionFactory();
+        RedisClusterConnection connection = connectionFactory.getClusterConnection();
+        try {
+            RedisClusterNode[] nodes = new RedisClusterNode[SLOT_COUNT];
+            for (RedisClusterNode node : connection.clusterGetNodes()) {
+                if (!node.isMaster()) {
+                    continue;
+                }
+                for (int slot : node.getSlotRange().getSlotsArray()) {
+                    nodes[slot] = node;
+                }
+            }
+            return nodes;
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * 一个节点上的key分组及其pipeline结果
+     */
+    static class NodeBatch {
+        /**
+         * 按slot划分的key下标
+         */
+        final List<List<Integer>> slots;
+
+        /**
+         * pipeline结果, 顺序与发出命令的顺序一致
+         */
+        List<Object> results;
+
+        NodeBatch(List<List<Integer>> slots) {
+            this.slots = slots;
+        }
+    }
+}
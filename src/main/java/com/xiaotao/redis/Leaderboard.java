@@ -0,0 +1,269 @@
+package com.xiaotao.redis;
+
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations.TypedTuple;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 排行榜
+ *
+ * 在本地缓存前topN名的快照及其版本号. 快照在最大延迟时间内直接使用, 超过后读取一次版本号,
+ * 版本号未变化时继续使用原快照, 变化时重新读取前topN名. 同一时间只有一个线程刷新, 其他线程继续使用旧快照.
+ * 版本号由 ZSetOperations 在修改该有序集合时增加; 不经过 ZSetOperations 的修改不会增加版本号,
+ * 快照超过最长使用时间后无论版本号是否变化都重新读取
+ *
+ * @author wxt366@126.com
+ */
+public class Leaderboard {
+    private final ZSetOperations zSetOperations;
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final String key;
+
+    private final int topN;
+
+    private volatile long maxStalenessMillis = TimeUnit.SECONDS.toMillis(1);
+
+    private volatile long maxAgeMillis = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * 其他实例最迟在此时读取到排行榜的登记, 此前读取的快照不能只凭版本号判断是否过期
+     */
+    private final long versionedSince = System.currentTimeMillis() + RedisTable.SETTINGS_REFRESH_MILLIS;
+
+    private volatile Snapshot snapshot;
+
+    private final ReentrantLock refreshLock = new ReentrantLock();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder refreshes = new LongAdder();
+
+    Leaderboard(ZSetOperations zSetOperations, StringRedisTemplate redisTemplate, String key, int topN) {
+        this.zSetOperations = zSetOperations;
+        this.redisTemplate = redisTemplate;
+        this.key = key;
+        this.topN = topN;
+    }
+
+    /**
+     * 设置快照的最大延迟时间, 超过后检查版本号
+     *
+     * @param timeout
+     * @param unit
+     */
+    public void setMaxStaleness(long timeout, TimeUnit unit) {
+        this.maxStalenessMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * 设置快照的最长使用时间, 超过后即使版本号未变化也重新读取, 默认1分钟
+     *
+     * @param timeout
+     * @param unit
+     */
+    public void setMaxAge(long timeout, TimeUnit unit) {
+        this.maxAgeMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * 增加成员的分数
+     *
+     * @param member
+     * @param delta
+     * @return 增加后的分数
+     */
+    public Double incrementScore(String member, double delta) {
+        return zSetOperations.incrementScore(key, member, delta);
+    }
+
+    /**
+     * 设置成员的分数
+     *
+     * @param member
+     * @param score
+     * @return
+     */
+    public Boolean add(String member, double score) {
+        return zSetOperations.add(key, member, score);
+    }
+
+    /**
+     * 移除成员
+     *
+     * @param members
+     * @return
+     */
+    public Long remove(Object... members) {
+        return zSetOperations.remove(key, members);
+    }
+
+    /**
+     * 获取前n名, 从大到小排序, n不超过topN时从本地快照返回
+     *
+     * @param n
+     * @return
+     */
+    public List<TypedTuple<String>> top(int n) {
+        if (n > topN) {
+            return new ArrayList<>(zSetOperations.reverseRangeWithScores(key, 0, n - 1));
+        }
+
+        List<TypedTuple<String>> entries = current().entries;
+        return entries.subList(0, Math.min(n, entries.size()));
+    }
+
+    /**
+     * 获取成员的名次, 从大到小排序
+     *
+     * @param member
+     * @return 0表示第一名, 不存在时返回null
+     */
+    public Long reverseRank(String member) {
+        Snapshot current = current();
+        Integer rank = current.ranks.get(member);
+        if (rank != null) {
+            return rank.longValue();
+        }
+        if (current.entries.size() < topN) {
+            // 快照包含了全部成员
+            return null;
+        }
+        return zSetOperations.reverseRank(key, member);
+    }
+
+    /**
+     * 获取成员的分数
+     *
+     * @param member
+     * @return
+     */
+    public Double score(String member) {
+        Snapshot current = current();
+        Integer rank = current.ranks.get(member);
+        if (rank != null) {
+            return current.entries.get(rank).getScore();
+        }
+        if (current.entries.size() < topN) {
+            return null;
+        }
+        return zSetOperations.score(key, member);
+    }
+
+    /**
+     * 立即重新读取前topN名
+     */
+    public void refresh() {
+        refreshLock.lock();
+        try {
+            load(redisTemplate.opsForValue().get(zSetOperations.versionKey(key)), System.currentTimeMillis());
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    /**
+     * 当前快照的版本号
+     *
+     * @return
+     */
+    public String getVersion() {
+        Snapshot current = snapshot;
+        return current == null ? null : current.version;
+    }
+
+    /**
+     * 直接使用本地快照的次数
+     *
+     * @return
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * 重新读取前topN名的次数
+     *
+     * @return
+     */
+    public long getRefreshes() {
+        return refreshes.sum();
+    }
+
+    private Snapshot current() {
+        Snapshot current = snapshot;
+        long now = System.currentTimeMillis();
+        if (current != null && now - current.checkedAt < maxStalenessMillis) {
+            hits.increment();
+            return current;
+        }
+
+        if (!refreshLock.tryLock()) {
+            if (current != null) {
+                hits.increment();
+                return current;
+            }
+            refreshLock.lock();
+        }
+        try {
+            current = snapshot;
+            if (current != null && now - current.checkedAt < maxStalenessMillis) {
+                return current;
+            }
+
+            String version = redisTemplate.opsForValue().get(zSetOperations.versionKey(key));
+            if (current != null && Objects.equals(version, current.version)
+                    && current.loadedAt >= versionedSince && now - current.loadedAt < maxAgeMillis) {
+                snapshot = new Snapshot(version, now, current.loadedAt, current.entries, current.ranks);
+                return snapshot;
+            }
+            return load(version, now);
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    /**
+     * 读取前topN名, 版本号在读取之前获取, 读取期间的修改会在下次检查时发现
+     */
+    private Snapshot load(String version, long now) {
+        refreshes.increment();
+        List<TypedTuple<String>> entries = new ArrayList<>(zSetOperations.reverseRangeWithScores(key, 0, topN - 1));
+        Map<String, Integer> ranks = new HashMap<>(entries.size() * 2);
+        for (int i = 0; i < entries.size(); i++) {
+            ranks.put(entries.get(i).getValue(), i);
+        }
+        snapshot = new Snapshot(version, now, now, Collections.unmodifiableList(entries), ranks);
+        return snapshot;
+    }
+
+    private static class Snapshot {
+        final String version;
+
+        final long checkedAt;
+
+        final long loadedAt;
+
+        final List<TypedTuple<String>> entries;
+
+        final Map<String, Integer> ranks;
+
+        Snapshot(String version, long checkedAt, long loadedAt, List<TypedTuple<String>> entries, Map<String, Integer> ranks) {
+            this.version = version;
+            this.checkedAt = checkedAt;
+            this.loadedAt = loadedAt;
+            this.entries = entries;
+            this.ranks = ranks;
+        }
+    }
+}
@@ -1,15 +1,56 @@
 package com.xiaotao.redis;
 
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.output.ValueListOutput;
+import org.springframework.data.redis.connection.DecoratedRedisConnection;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.lettuce.LettuceConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 /**
  * @author wxt366@126.com
  */
 public class ListOperations extends BaseOperations {
+    /**
+     * drain每次弹出的最大数量
+     */
+    private static final long DRAIN_BATCH_SIZE = 1000;
+
+    /**
+     * 不支持LPOP count的服务端使用LRANGE+LTRIM原子弹出, ARGV[2]为滑动窗口过期时间(毫秒)
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> LEFT_POP_SCRIPT = new DefaultRedisScript<>(
+            "local items = redis.call('LRANGE', KEYS[1], 0, tonumber(ARGV[1]) - 1)\n" +
+            "if #items > 0 then\n" +
+            "  redis.call('LTRIM', KEYS[1], #items, -1)\n" +
+            "  if tonumber(ARGV[2]) > 0 then redis.call('PEXPIRE', KEYS[1], ARGV[2]) end\n" +
+            "end\n" +
+            "return items", List.class);
+
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> RIGHT_POP_SCRIPT = new DefaultRedisScript<>(
+            "local items = redis.call('LRANGE', KEYS[1], -tonumber(ARGV[1]), -1)\n" +
+            "if #items > 0 then\n" +
+            "  redis.call('LTRIM', KEYS[1], 0, -#items - 1)\n" +
+            "  if tonumber(ARGV[2]) > 0 then redis.call('PEXPIRE', KEYS[1], ARGV[2]) end\n" +
+            "end\n" +
+            "local popped = {}\n" +
+            "for i = #items, 1, -1 do popped[#popped + 1] = items[i] end\n" +
+            "return popped", List.class);
+
     public ListOperations(StringRedisTemplate redisTemplate, RedisTable redisTable) {
         super(redisTemplate, redisTable);
     }
@@ -39,6 +80,36 @@ public class ListOperations extends BaseOperations {
         return redisTemplate.opsForList().range(newKey, start, end);
     }
 
+    /**
+     * 以分段 LRANGE 惰性迭代列表的全部元素, 内存中只保留一段, 遍历期间在头部插入或删除元素时元素可能重复或遗漏
+     *
+     * @param key
+     * @param pageSize  每段数量
+     * @param readAhead 是否在线程池中预读下一段
+     * @return
+     */
+    public Iterator<String> rangeIterator(String key, int pageSize, boolean readAhead) {
+        PageIterator.checkPageSize(pageSize);
+        String newKey = getStoreKey(key);
+        return new PageIterator<>(0, offset -> {
+            List<String> items = templateFor(ConnectionPool.Group.SCAN).opsForList().range(newKey, offset, offset + pageSize - 1);
+            List<String> page = items == null ? new ArrayList<>() : items;
+            return new PageIterator.Page<>(page, offset + page.size(), page.size() < pageSize);
+        }, readAhead ? redisTable.getDatabase().getExecutor() : null);
+    }
+
+    /**
+     * 以分段 LRANGE 惰性读取列表的全部元素
+     *
+     * @param key
+     * @param pageSize  每段数量
+     * @param readAhead 是否预读下一段
+     * @return
+     */
+    public Stream<String> rangeStream(String key, int pageSize, boolean readAhead) {
+        return PageIterator.stream(rangeIterator(key, pageSize, readAhead));
+    }
+
     /**
      * 存储在list头部
      *
@@ -184,7 +255,7 @@ public class ListOperations extends BaseOperations {
      */
     public String leftPop(String key, long timeout, TimeUnit unit) {
         String newKey = getStoreKey(key);
-        return redisTemplate.opsForList().leftPop(newKey, timeout, unit);
+        return templateFor(ConnectionPool.Group.BLOCKING).opsForList().leftPop(newKey, timeout, unit);
     }
 
     /**
@@ -208,7 +279,97 @@ public class ListOperations extends BaseOperations {
      */
     public String rightPop(String key, long timeout, TimeUnit unit) {
         String newKey = getStoreKey(key);
-        return redisTemplate.opsForList().rightPop(newKey, timeout, unit);
+        return templateFor(ConnectionPool.Group.BLOCKING).opsForList().rightPop(newKey, timeout, unit);
+    }
+
+    /**
+     * 移出并获取列表头部的count个元素, 一次网络往返
+     *
+     * @param key
+     * @param count 最多获取的数量
+     * @return 按弹出顺序排列的元素, 列表不存在时返回空列表
+     */
+    public List<String> leftPop(String key, long count) {
+        return pop(key, count, true);
+    }
+
+    /**
+     * 移出并获取列表尾部的count个元素, 一次网络往返
+     *
+     * @param key
+     * @param count 最多获取的数量
+     * @return 按弹出顺序排列的元素(最后一个元素在前), 列表不存在时返回空列表
+     */
+    public List<String> rightPop(String key, long count) {
+        return pop(key, count, false);
+    }
+
+    /**
+     * 从列表头部分批移出元素, 直到列表为空或达到maxItems个
+     *
+     * @param key
+     * @param maxItems 最多获取的数量
+     * @return
+     */
+    public List<String> drain(String key, long maxItems) {
+        List<String> items = new ArrayList<>();
+        while (items.size() < maxItems) {
+            List<String> batch = leftPop(key, Math.min(maxItems - items.size(), DRAIN_BATCH_SIZE));
+            items.addAll(batch);
+            if (batch.isEmpty()) {
+                break;
+            }
+        }
+        return items;
+    }
+
+    private List<String> pop(String key, long count, boolean left) {
+        if (count <= 0) {
+            return Collections.emptyList();
+        }
+
+        String newKey = getStoreKey(key);
+        long autoWindow = redisTable.isUpdateExpire(newKey) ? redisTable.getAutoWindow() : 0;
+        if (!redisTable.getKeyRouter().isVersionAtLeast(6, 2)) {
+            return popByScript(newKey, count, autoWindow, left);
+        }
+
+        List<String> items = redisTemplate.execute((RedisCallback<List<String>>) connection -> {
+            // 去掉字符串连接及专用连接池代理的包装, 取得原生连接
+            RedisConnection nativeConnection = connection;
+            while (nativeConnection instanceof DecoratedRedisConnection) {
+                nativeConnection = ((DecoratedRedisConnection) nativeConnection).getDelegate();
+            }
+            if (!(nativeConnection instanceof LettuceConnection)) {
+                return null;
+            }
+
+            @SuppressWarnings("unchecked")
+            List<byte[]> values = (List<byte[]>) ((LettuceConnection) nativeConnection).execute(left ? "LPOP" : "RPOP",
+                    new ValueListOutput<>(ByteArrayCodec.INSTANCE),
+                    newKey.getBytes(StandardCharsets.UTF_8), String.valueOf(count).getBytes(StandardCharsets.UTF_8));
+            List<String> result = new ArrayList<>();
+            if (values != null) {
+                for (byte[] value : values) {
+                    result.add(new String(value, StandardCharsets.UTF_8));
+                }
+            }
+            return result;
+        });
+        if (items == null) {
+            return popByScript(newKey, count, autoWindow, left);
+        }
+        if (autoWindow > 0 && !items.isEmpty()) {
+            redisTemplate.expire(newKey, autoWindow, TimeUnit.MILLISECONDS);
+        }
+        return items;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> popByScript(String newKey, long count, long autoWindow, boolean left) {
+        List<String> items = redisTemplate.execute(left ? LEFT_POP_SCRIPT : RIGHT_POP_SCRIPT,
+                Collections.singletonList(newKey), String.valueOf(count), String.valueOf(autoWindow));
+        return items == null ? Collections.emptyList() : items;
     }
 
     /**
@@ -240,7 +401,7 @@ public class ListOperations extends BaseOperations {
         String newSourceKey = getStoreKey(sourceKey);
         String newDestinationKey = getStoreKey(destinationKey);
 
-        return redisTemplate.opsForList().rightPopAndLeftPush(newSourceKey,
+        return templateFor(ConnectionPool.Group.BLOCKING).opsForList().rightPopAndLeftPush(newSourceKey,
                                                               newDestinationKey, timeout, unit);
     }
 
@@ -0,0 +1,92 @@
+package com.xiaotao.redis;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * getOrLoad 的缓存加载选项
+ *
+ * @author wxt366@126.com
+ */
+public class LoadOptions {
+    private long ttlMillis;
+
+    private long negativeTtlMillis;
+
+    private boolean distributedLock;
+
+    private long lockTimeoutMillis = TimeUnit.SECONDS.toMillis(3);
+
+    private double beta = 1.0;
+
+    private LoadOptions(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = ttlMillis / 10;
+    }
+
+    /**
+     * 以缓存时间创建选项, 空值默认缓存其1/10的时间
+     *
+     * @param ttl
+     * @param unit
+     * @return
+     */
+    public static LoadOptions ttl(long ttl, TimeUnit unit) {
+        return new LoadOptions(unit.toMillis(ttl));
+    }
+
+    /**
+     * 设置加载结果为null时的缓存时间, 0不缓存空值
+     *
+     * @param ttl
+     * @param unit
+     * @return
+     */
+    public LoadOptions negativeTtl(long ttl, TimeUnit unit) {
+        this.negativeTtlMillis = unit.toMillis(ttl);
+        return this;
+    }
+
+    /**
+     * 使用分布式互斥, 同一时间只有一个节点加载, 其他节点等待加载结果, 等待超时后自行加载
+     *
+     * @param timeout 互斥的最长持有时间
+     * @param unit
+     * @return
+     */
+    public LoadOptions distributedLock(long timeout, TimeUnit unit) {
+        this.distributedLock = true;
+        this.lockTimeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * 设置提前刷新的系数, 越大越早刷新, 0不提前刷新. 临近过期时按概率在后台重新加载, 加载越慢越早开始
+     *
+     * @param beta
+     * @return
+     */
+    public LoadOptions beta(double beta) {
+        this.beta = beta;
+        return this;
+    }
+
+    long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    long getNegativeTtlMillis() {
+        return negativeTtlMillis;
+    }
+
+    boolean isDistributedLock() {
+        return distributedLock;
+    }
+
+    long getLockTimeoutMillis() {
+        return lockTimeoutMillis;
+    }
+
+    double getBeta() {
+        return beta;
+    }
+}
@@ -0,0 +1,201 @@
+package com.xiaotao.redis;
+
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * 分页读取集合的惰性迭代器
+ *
+ * 每页是一次独立的请求(SCAN类命令的一步或一段 LRANGE/ZRANGE), 不占用连接, 内存中只保留当前页.
+ * 开启预读时, 取得一页后立即在线程池中请求下一页, 最多多保留一页
+ *
+ * @author wxt366@126.com
+ */
+class PageIterator<T> implements Iterator<T> {
+    /**
+     * ARGV: 命令(SSCAN/HSCAN/ZSCAN), 游标, 每页数量
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> SCAN_SCRIPT = new DefaultRedisScript<>(
+            "return redis.call(ARGV[1], KEYS[1], ARGV[2], 'COUNT', ARGV[3])", List.class);
+
+    private final LongFunction<Page<T>> fetcher;
+
+    private final Executor readAheadExecutor;
+
+    private Iterator<T> current = Collections.emptyIterator();
+
+    private long next;
+
+    private boolean last;
+
+    private CompletableFuture<Page<T>> prefetch;
+
+    /**
+     * @param start             第一页的位置
+     * @param fetcher           读取指定位置的一页
+     * @param readAheadExecutor 预读下一页的线程池, null不预读
+     */
+    PageIterator(long start, LongFunction<Page<T>> fetcher, Executor readAheadExecutor) {
+        this.next = start;
+        this.fetcher = fetcher;
+        this.readAheadExecutor = readAheadExecutor;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (!advance()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    private boolean advance() {
+        Page<T> page;
+        if (prefetch != null) {
+            page = join(prefetch);
+            prefetch = null;
+        } else if (!last) {
+            page = fetcher.apply(next);
+        } else {
+            return false;
+        }
+
+        current = page.items.iterator();
+        next = page.next;
+        last = page.last;
+        if (readAheadExecutor != null && !last) {
+            long position = next;
+            prefetch = CompletableFuture.supplyAsync(() -> fetcher.apply(position), readAheadExecutor);
+            last = true;
+        }
+        return true;
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 以SCAN类命令读取一页, 元素按命令的返回顺序平铺
+     *
+     * @param redisTemplate
+     * @param command       SSCAN, HSCAN 或 ZSCAN
+     * @param storeKey
+     * @param cursor
+     * @param count         每页数量
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    static Page<String> scan(StringRedisTemplate redisTemplate, String command, String storeKey, long cursor, int count) {
+        List<Object> result = redisTemplate.execute(SCAN_SCRIPT, Collections.singletonList(storeKey),
+                command, Long.toUnsignedString(cursor), String.valueOf(count));
+        if (result == null || result.size() < 2) {
+            return new Page<>(new ArrayList<>(), 0, true);
+        }
+        long nextCursor = Long.parseUnsignedLong(String.valueOf(result.get(0)));
+        return new Page<>((List<String>) result.get(1), nextCursor, nextCursor == 0);
+    }
+
+    /**
+     * 依次迭代多个迭代器, 每个迭代器在用到时才创建
+     *
+     * @param iterators
+     * @return
+     */
+    static <T> Iterator<T> concat(List<Supplier<Iterator<T>>> iterators) {
+        if (iterators.size() == 1) {
+            return iterators.get(0).get();
+        }
+        return new Iterator<T>() {
+            private int index;
+
+            private Iterator<T> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    if (index >= iterators.size()) {
+                        return false;
+                    }
+                    current = iterators.get(index++).get();
+                }
+                return true;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    static void checkPageSize(int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+    }
+
+    static <T> Stream<T> stream(Iterator<T> iterator) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.NONNULL), false);
+    }
+
+    /**
+     * 一页数据
+     */
+    static class Page<T> {
+        final List<T> items;
+
+        /**
+         * 下一页的位置, 如SCAN游标或LRANGE偏移
+         */
+        final long next;
+
+        /**
+         * 是否为最后一页
+         */
+        final boolean last;
+
+        Page(List<T> items, long next, boolean last) {
+            this.items = items;
+            this.next = next;
+            this.last = last;
+        }
+    }
+}
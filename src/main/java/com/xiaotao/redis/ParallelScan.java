@@ -0,0 +1,178 @@
+package com.xiaotao.redis;
+
+import org.springframework.data.redis.connection.StringRedisConnection;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 并行遍历表中的key
+ *
+ * 集群模式下每个master节点在独立线程中遍历, 单节点时只用一个SCAN游标顺序遍历, 每个key只遍历一次.
+ * 每页key交给线程池并发处理: 以pipeline读取值后交给处理函数, 各页的结果用reducer合并
+ *
+ * @author wxt366@126.com
+ */
+public class ParallelScan {
+    private final RedisTable redisTable;
+
+    private String match = "*";
+
+    private int batchSize = 500;
+
+    private int parallelism = Math.max(Runtime.getRuntime().availableProcessors(), 1) * 2;
+
+    private Executor executor;
+
+    private BiConsumer<StringRedisConnection, String> fetch;
+
+    ParallelScan(RedisTable redisTable) {
+        this.redisTable = redisTable;
+        this.executor = redisTable.getDatabase().getExecutor();
+    }
+
+    /**
+     * 设置key(不含表前缀)的匹配模式, 默认遍历全部key
+     *
+     * @param pattern SCAN的匹配模式, 如 "order:*"
+     * @return
+     */
+    public ParallelScan match(String pattern) {
+        this.match = pattern;
+        return this;
+    }
+
+    /**
+     * 设置每页key的数量, 也是每个pipeline的大小
+     *
+     * @param batchSize
+     * @return
+     */
+    public ParallelScan batchSize(int batchSize) {
+        PageIterator.checkPageSize(batchSize);
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * 设置同时处理的页数, 默认为CPU核数的2倍. 处理慢于遍历时遍历会等待, 内存中最多保留该数量的页
+     *
+     * @param parallelism
+     * @return
+     */
+    public ParallelScan parallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be positive");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * 设置执行遍历和处理函数的线程池, 默认使用数据库的线程池, 可使用 ForkJoinPool
+     *
+     * @param executor
+     * @return
+     */
+    public ParallelScan executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * 设置读取值的命令, 如 StringRedisConnection::get 或 StringRedisConnection::hGetAll, 每页以pipeline执行.
+     * 不设置时值为null
+     *
+     * 注：pipeline会丢弃状态回复, 不能使用返回状态回复的命令; 类型不符的key会导致整页失败, 混合类型的表需用match限定
+     *
+     * @param fetch
+     * @return
+     */
+    public ParallelScan fetch(BiConsumer<StringRedisConnection, String> fetch) {
+        this.fetch = fetch;
+        return this;
+    }
+
+    /**
+     * 对每页执行处理函数并合并结果
+     *
+     * @param batchFunction 处理一页key(不含表前缀)与值
+     * @param identity      初始值
+     * @param reducer       合并两个结果, 需满足结合律
+     * @return
+     */
+    public <R> R reduce(Function<List<Map.Entry<String, Object>>, R> batchFunction, R identity, BinaryOperator<R> reducer) {
+        Object lock = new Object();
+        List<R> result = new ArrayList<>(1);
+        result.add(identity);
+        Consumer<List<String>> process = page -> {
+            if (page.isEmpty()) {
+                return;
+            }
+            R value = batchFunction.apply(load(page));
+            synchronized (lock) {
+                result.set(0, reducer.apply(result.get(0), value));
+            }
+        };
+
+        redisTable.getKeyRouter().parallelScan(pattern(), batchSize, parallelism, executor, process);
+        return result.get(0);
+    }
+
+    /**
+     * 对每个key执行处理函数并合并结果
+     *
+     * @param keyFunction 处理一个key(不含表前缀)与值
+     * @param identity    初始值
+     * @param reducer     合并两个结果, 需满足结合律
+     * @return
+     */
+    public <R> R mapReduce(BiFunction<String, Object, R> keyFunction, R identity, BinaryOperator<R> reducer) {
+        return reduce(batch -> {
+            R value = identity;
+            for (Map.Entry<String, Object> entry : batch) {
+                value = reducer.apply(value, keyFunction.apply(entry.getKey(), entry.getValue()));
+            }
+            return value;
+        }, identity, reducer);
+    }
+
+    /**
+     * 对每个key执行处理函数
+     *
+     * @param consumer 处理一个key(不含表前缀)与值, 会被多个线程同时调用
+     * @return 处理的key数量
+     */
+    public long forEach(BiConsumer<String, Object> consumer) {
+        return reduce(batch -> {
+            for (Map.Entry<String, Object> entry : batch) {
+                consumer.accept(entry.getKey(), entry.getValue());
+            }
+            return (long) batch.size();
+        }, 0L, Long::sum);
+    }
+
+    private List<Map.Entry<String, Object>> load(List<String> storeKeys) {
+        List<Object> values = fetch == null ? null : redisTable.getKeyRouter().pipelineEach(storeKeys, fetch);
+        int length = redisTable.getTableKey().length();
+        List<Map.Entry<String, Object>> entries = new ArrayList<>(storeKeys.size());
+        for (int i = 0; i < storeKeys.size(); i++) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(storeKeys.get(i).substring(length),
+                    values == null ? null : values.get(i)));
+        }
+        return entries;
+    }
+
+    private String pattern() {
+        String prefix = TableTransfer.pattern(redisTable.getTableKey());
+        return prefix.substring(0, prefix.length() - 1) + match;
+    }
+}
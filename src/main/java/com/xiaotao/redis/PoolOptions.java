@@ -0,0 +1,98 @@
+package com.xiaotao.redis;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 专用连接池的选项
+ *
+ * @author wxt366@126.com
+ */
+public class PoolOptions {
+    private int maxTotal = 8;
+
+    private int minIdle;
+
+    private long maxWaitMillis = -1;
+
+    private long commandTimeoutMillis = TimeUnit.SECONDS.toMillis(60);
+
+    private PoolOptions() {
+    }
+
+    /**
+     * 默认选项: 最多8个连接, 不保留最少空闲连接, 获取连接时一直等待, 命令超时60秒
+     *
+     * @return
+     */
+    public static PoolOptions defaults() {
+        return new PoolOptions();
+    }
+
+    /**
+     * 设置连接池的最大连接数
+     *
+     * @param maxTotal
+     * @return
+     */
+    public PoolOptions maxTotal(int maxTotal) {
+        if (maxTotal <= 0) {
+            throw new IllegalArgumentException("Max total must be positive");
+        }
+        this.maxTotal = maxTotal;
+        return this;
+    }
+
+    /**
+     * 设置最少保留的空闲连接数
+     *
+     * @param minIdle
+     * @return
+     */
+    public PoolOptions minIdle(int minIdle) {
+        this.minIdle = Math.max(minIdle, 0);
+        return this;
+    }
+
+    /**
+     * 设置获取连接的最长等待时间, 超时抛出 PoolException; 小于0时一直等待
+     *
+     * @param timeout
+     * @param unit
+     * @return
+     */
+    public PoolOptions maxWait(long timeout, TimeUnit unit) {
+        this.maxWaitMillis = timeout < 0 ? -1 : unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * 设置命令超时时间, 阻塞命令的等待时间需小于该值
+     *
+     * @param timeout
+     * @param unit
+     * @return
+     */
+    public PoolOptions commandTimeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Command timeout must be positive");
+        }
+        this.commandTimeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    int getMaxTotal() {
+        return maxTotal;
+    }
+
+    int getMinIdle() {
+        return minIdle;
+    }
+
+    long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    long getCommandTimeoutMillis() {
+        return commandTimeoutMillis;
+    }
+}
@@ -0,0 +1,281 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.config.Constants;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 限流器
+ *
+ * 每次判断只执行一个脚本, 使用Redis服务端时间. 开启本地租约后, 每次从Redis预取一批许可,
+ * 在租约有效期内本地扣减, 大部分判断不需要访问Redis. 未用完的租约到期后作废, 因此租约只会使实际速率偏低而不会超出限制.
+ * 到期的租约每个有效期清理一次, 本地只保留近期访问过的限流对象
+ *
+ * @author wxt366@126.com
+ */
+public class RateLimiter {
+    /**
+     * 限流算法
+     */
+    public enum Algorithm {
+        /**
+         * 滑动日志, 有序集合记录窗口内每次请求的时间, 精确但每个许可占用一个成员
+         */
+        SLIDING_LOG,
+
+        /**
+         * 滑动窗口计数, 按上一个固定窗口的计数与当前窗口的重叠比例估算, 每个key只有两个计数
+         */
+        SLIDING_WINDOW,
+
+        /**
+         * 令牌桶, 桶容量为permits, 每个窗口补充permits个令牌, 允许突发
+         */
+        TOKEN_BUCKET
+    }
+
+    private static final String NOW =
+            "redis.replicate_commands()\n" +
+            "local time = redis.call('TIME')\n" +
+            "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)\n" +
+            "local window = tonumber(ARGV[1])\n" +
+            "local limit = tonumber(ARGV[2])\n" +
+            "local permits = tonumber(ARGV[3])\n" +
+            "local partial = ARGV[4] == '1'\n";
+
+    /**
+     * ARGV: 窗口(毫秒), 许可数, 申请数, 是否部分授予, 成员前缀. 返回授予的许可数
+     */
+    private static final RedisScript<Long> SLIDING_LOG_SCRIPT = new DefaultRedisScript<>(NOW +
+            "redis.call('ZREMRANGEBYSCORE', KEYS[1], '-inf', now - window)\n" +
+            "local available = limit - redis.call('ZCARD', KEYS[1])\n" +
+            "local granted = permits\n" +
+            "if available < permits then\n" +
+            "  if not partial or available <= 0 then return 0 end\n" +
+            "  granted = available\n" +
+            "end\n" +
+            "for i = 1, granted do redis.call('ZADD', KEYS[1], now, ARGV[5] .. i) end\n" +
+            "redis.call('PEXPIRE', KEYS[1], window)\n" +
+            "return granted", Long.class);
+
+    private static final RedisScript<Long> SLIDING_WINDOW_SCRIPT = new DefaultRedisScript<>(NOW +
+            "local index = math.floor(now / window)\n" +
+            "local current = tonumber(redis.call('HGET', KEYS[1], tostring(index)) or '0')\n" +
+            "local previous = tonumber(redis.call('HGET', KEYS[1], tostring(index - 1)) or '0')\n" +
+            "local weight = 1 - (now - index * window) / window\n" +
+            "local available = math.floor(limit - previous * weight - current)\n" +
+            "local granted = permits\n" +
+            "if available < permits then\n" +
+            "  if not partial or available <= 0 then return 0 end\n" +
+            "  granted = available\n" +
+            "end\n" +
+            "redis.call('HINCRBY', KEYS[1], tostring(index), granted)\n" +
+            "redis.call('HDEL', KEYS[1], tostring(index - 2))\n" +
+            "redis.call('PEXPIRE', KEYS[1], window * 2)\n" +
+            "return granted", Long.class);
+
+    private static final RedisScript<Long> TOKEN_BUCKET_SCRIPT = new DefaultRedisScript<>(NOW +
+            "local bucket = redis.call('HMGET', KEYS[1], 'tokens', 'ts')\n" +
+            "local tokens = tonumber(bucket[1] or limit)\n" +
+            "local ts = tonumber(bucket[2] or now)\n" +
+            "tokens = math.min(limit, tokens + math.max(0, now - ts) * limit / window)\n" +
+            "local granted = permits\n" +
+            "if tokens < permits then\n" +
+            "  if not partial or tokens < 1 then return 0 end\n" +
+            "  granted = math.floor(tokens)\n" +
+            "end\n" +
+            "redis.call('HSET', KEYS[1], 'tokens', tostring(tokens - granted))\n" +
+            "redis.call('HSET', KEYS[1], 'ts', tostring(now))\n" +
+            "redis.call('PEXPIRE', KEYS[1], window * 2)\n" +
+            "return granted", Long.class);
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final String limiterKey;
+
+    private final Algorithm algorithm;
+
+    private final long permits;
+
+    private final long windowMillis;
+
+    private volatile int leaseSize;
+
+    private volatile long leaseMillis;
+
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+
+    private volatile long nextSweepAt;
+
+    private final LongAdder localDecisions = new LongAdder();
+
+    private final LongAdder remoteDecisions = new LongAdder();
+
+    RateLimiter(RedisTable redisTable, String name, Algorithm algorithm, long permits, long window, TimeUnit unit) {
+        if (permits <= 0 || window <= 0) {
+            throw new IllegalArgumentException("Permits and window must be positive");
+        }
+        this.redisTemplate = redisTable.getRedisTemplate();
+        this.limiterKey = redisTable.getFixedKey() + name + Constants.KEY_SEPARATOR;
+        this.algorithm = algorithm;
+        this.permits = permits;
+        this.windowMillis = unit.toMillis(window);
+    }
+
+    /**
+     * 开启本地租约, 每次从Redis预取leaseSize个许可, 租约在leaseTime后作废
+     *
+     * @param leaseSize 每次预取的许可数
+     * @param leaseTime 租约有效期, 不能超过限流窗口
+     * @param unit
+     */
+    public void enableLease(int leaseSize, long leaseTime, TimeUnit unit) {
+        long leaseMillis = unit.toMillis(leaseTime);
+        if (leaseSize <= 0 || leaseMillis <= 0) {
+            throw new IllegalArgumentException("Lease size and lease time must be positive");
+        }
+        if (leaseMillis > windowMillis) {
+            // 租约跨过窗口时, 上一个窗口预取的许可会在下一个窗口继续使用, 实际速率可能超出限制
+            throw new IllegalArgumentException("Lease time can't be longer than the window");
+        }
+        this.leaseMillis = leaseMillis;
+        this.leaseSize = leaseSize;
+    }
+
+    /**
+     * 关闭本地租约, 剩余的租约作废
+     */
+    public void disableLease() {
+        this.leaseSize = 0;
+        leases.clear();
+    }
+
+    /**
+     * 尝试获取一个许可
+     *
+     * @param key 限流对象, 如用户ID
+     * @return
+     */
+    public boolean tryAcquire(String key) {
+        return tryAcquire(key, 1);
+    }
+
+    /**
+     * 尝试获取多个许可, 要么全部获取, 要么不获取
+     *
+     * @param key     限流对象, 如用户ID
+     * @param permits 许可数
+     * @return
+     */
+    public boolean tryAcquire(String key, int permits) {
+        if (leaseSize <= 0) {
+            remoteDecisions.increment();
+            return acquire(key, permits, false) == permits;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now >= nextSweepAt) {
+            sweep(now);
+        }
+        while (true) {
+            Lease lease = leases.computeIfAbsent(key, k -> new Lease());
+            synchronized (lease) {
+                if (lease.removed) {
+                    continue;
+                }
+                return useLease(lease, key, permits, now);
+            }
+        }
+    }
+
+    /**
+     * 本地租约中完成的判断次数
+     *
+     * @return
+     */
+    public long getLocalDecisions() {
+        return localDecisions.sum();
+    }
+
+    /**
+     * 访问Redis完成的判断次数
+     *
+     * @return
+     */
+    public long getRemoteDecisions() {
+        return remoteDecisions.sum();
+    }
+
+    private boolean useLease(Lease lease, String key, int permits, long now) {
+        if (now >= lease.expiresAt) {
+            lease.remaining = 0;
+        }
+        if (lease.remaining >= permits) {
+            lease.remaining -= permits;
+            localDecisions.increment();
+            return true;
+        }
+
+        remoteDecisions.increment();
+        long granted = acquire(key, permits + leaseSize, true);
+        if (granted < permits) {
+            // 不足本次申请的许可数, 作为租约保留到有效期结束
+            lease.remaining += granted;
+            lease.expiresAt = Math.max(lease.expiresAt, now + leaseMillis);
+            return false;
+        }
+        lease.remaining = granted - permits;
+        lease.expiresAt = now + leaseMillis;
+        return true;
+    }
+
+    private void sweep(long now) {
+        nextSweepAt = now + leaseMillis;
+        for (Map.Entry<String, Lease> entry : leases.entrySet()) {
+            Lease lease = entry.getValue();
+            synchronized (lease) {
+                if (now >= lease.expiresAt) {
+                    lease.removed = true;
+                    leases.remove(entry.getKey(), lease);
+                }
+            }
+        }
+    }
+
+    private long acquire(String key, int requested, boolean partial) {
+        RedisScript<Long> script;
+        switch (algorithm) {
+            case SLIDING_LOG:
+                script = SLIDING_LOG_SCRIPT;
+                break;
+            case SLIDING_WINDOW:
+                script = SLIDING_WINDOW_SCRIPT;
+                break;
+            default:
+                script = TOKEN_BUCKET_SCRIPT;
+        }
+        Long granted = redisTemplate.execute(script, Collections.singletonList(limiterKey + key),
+                String.valueOf(windowMillis), String.valueOf(permits), String.valueOf(requested), partial ? "1" : "0",
+                UUID.randomUUID().toString() + Constants.KEY_SEPARATOR);
+        return granted == null ? 0 : granted;
+    }
+
+    private static class Lease {
+        long remaining;
+
+        long expiresAt;
+
+        /**
+         * 已从map中清理, 持有该租约的线程需重新获取
+         */
+        boolean removed;
+    }
+}
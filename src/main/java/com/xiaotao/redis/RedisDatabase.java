@@ -3,21 +3,66 @@ package com.xiaotao.redis;
 import com.xiaotao.redis.config.Constants;
 import com.xiaotao.redis.exception.ParameterException;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.data.redis.connection.MessageListener;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
-import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.listener.Topic;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author wxt366@126.com
  */
 public class RedisDatabase {
+    private static final Log log = LogFactory.getLog(RedisDatabase.class);
+
+    private static final long SUBSCRIBE_TIMEOUT_MILLIS = 5000;
+
     private String name;
 
     private RedisConnectionFactory redisConnectionFactory;
 
+    private ExecutorService executor = createExecutor();
+
+    private volatile RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 监听容器的订阅连接确认建立前排队的订阅和取消订阅, 建立后按顺序执行
+     */
+    private final List<Runnable> pendingSubscriptions = new ArrayList<>();
+
+    private boolean subscriptionReady;
+
+    private volatile ScheduledExecutorService scheduler;
+
+    private volatile boolean compactKeys;
+
+    private final Map<String, ConnectionPool> connectionPools = new ConcurrentHashMap<>();
+
+    private final Map<String, TableGeneration.Watch> generationWatches = new ConcurrentHashMap<>();
+
     public RedisDatabase(String name, RedisConnectionFactory redisConnectionFactory) throws ParameterException {
+        // 空数据库名的普通布局key以":"开头, 会与紧凑布局的key冲突
+        if (name.isEmpty()) {
+            throw new ParameterException("Database name can't be empty");
+        }
         if (name.contains(Constants.KEY_SEPARATOR)) {
             throw new ParameterException("Database name can't contain the String: " + Constants.KEY_SEPARATOR);
         }
@@ -41,17 +86,264 @@ public class RedisDatabase {
         this.redisConnectionFactory = redisConnectionFactory;
     }
 
+    /**
+     * 多节点并发操作使用的线程池
+     *
+     * @return
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * 设置多节点并发操作使用的线程池, 需在创建表之前设置
+     *
+     * @param executor
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * 新建的表是否使用紧凑的key布局
+     *
+     * @return
+     */
+    public boolean isCompactKeys() {
+        return compactKeys;
+    }
+
+    /**
+     * 设置新建的表是否使用紧凑的key布局, 需在创建表之前设置. 紧凑布局的表在管理库的目录中分配数字ID,
+     * key前缀为":"加变长编码的ID(前32个表为2个字符), 不再重复数据库名和表名, 重命名表只需修改目录
+     *
+     * 注：目录中已有ID的表总是使用紧凑布局, 普通布局的已有数据不会迁移, 可使用 RedisTable.copyTo 复制到紧凑布局的表
+     *
+     * @param compactKeys
+     */
+    public void setCompactKeys(boolean compactKeys) {
+        this.compactKeys = compactKeys;
+    }
+
+    /**
+     * 创建专用连接池, 与数据库连接工厂连接同一个Redis, 但连接数和超时独立, 可绑定到表或表的某类操作.
+     * 数据库连接工厂需为 LettuceConnectionFactory
+     *
+     * @param name    连接池名称, 数据库内唯一
+     * @param options
+     * @return
+     */
+    public synchronized ConnectionPool createConnectionPool(String name, PoolOptions options) {
+        if (connectionPools.containsKey(name)) {
+            throw new IllegalStateException("Connection pool " + name + " already exists");
+        }
+        ConnectionPool pool = new ConnectionPool(name, redisConnectionFactory, options);
+        connectionPools.put(name, pool);
+        return pool;
+    }
+
+    /**
+     * 获取已创建的专用连接池
+     *
+     * @param name
+     * @return 不存在时返回null
+     */
+    public ConnectionPool getConnectionPool(String name) {
+        return connectionPools.get(name);
+    }
+
+    /**
+     * 全部专用连接池, 用于读取各池的等待时间等统计
+     *
+     * @return
+     */
+    public Collection<ConnectionPool> getConnectionPools() {
+        return Collections.unmodifiableCollection(connectionPools.values());
+    }
+
+    /**
+     * 订阅使用的监听容器, 同一数据库的所有频道共用一个订阅连接
+     *
+     * @return
+     */
+    RedisMessageListenerContainer getListenerContainer() {
+        if (listenerContainer == null) {
+            synchronized (this) {
+                if (listenerContainer == null) {
+                    RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+                    container.setConnectionFactory(redisConnectionFactory);
+                    container.setTaskExecutor(executor);
+                    container.afterPropertiesSet();
+                    container.start();
+                    listenerContainer = container;
+                    confirmSubscription(container);
+                }
+            }
+        }
+        return listenerContainer;
+    }
+
+    /**
+     * 订阅频道, 在线程池中执行, 不阻塞调用线程
+     *
+     * 监听容器的订阅连接是异步建立的, 建立期间加入的频道可能丢失, 因此订阅连接确认建立前的订阅先排队
+     *
+     * @param listener
+     * @param topic
+     */
+    void subscribe(MessageListener listener, Topic topic) {
+        RedisMessageListenerContainer container = getListenerContainer();
+        whenSubscriptionReady(() -> container.addMessageListener(listener, topic));
+    }
+
+    /**
+     * 取消订阅, 与订阅按调用顺序执行
+     *
+     * @param listener
+     * @param topic
+     */
+    void unsubscribe(MessageListener listener, Topic topic) {
+        RedisMessageListenerContainer container = getListenerContainer();
+        whenSubscriptionReady(() -> container.removeMessageListener(listener, topic));
+    }
+
+    private void whenSubscriptionReady(Runnable action) {
+        synchronized (pendingSubscriptions) {
+            if (!subscriptionReady) {
+                pendingSubscriptions.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * 订阅本实例的探测频道, 确认订阅连接已建立后再执行排队的订阅
+     */
+    private void confirmSubscription(RedisMessageListenerContainer container) {
+        String probeChannel = Constants.ADMIN_DATABASE + Constants.KEY_SEPARATOR + "probe" + Constants.KEY_SEPARATOR + UUID.randomUUID();
+        CompletableFuture<Void> confirmed = new CompletableFuture<>();
+        container.addMessageListener((message, pattern) -> confirmed.complete(null), new ChannelTopic(probeChannel));
+        confirmed.whenComplete((result, e) -> {
+            List<Runnable> actions;
+            synchronized (pendingSubscriptions) {
+                subscriptionReady = true;
+                actions = new ArrayList<>(pendingSubscriptions);
+                pendingSubscriptions.clear();
+            }
+            actions.forEach(Runnable::run);
+        });
+        probeSubscription(createRedisTemplate(redisConnectionFactory), probeChannel, confirmed);
+    }
+
+    /**
+     * 订阅是异步生效的: 在定时线程中反复向频道发布"0", 直到订阅方收到(confirmed完成)或超时.
+     * 超时后confirmed同样完成, 排队的订阅仍会执行
+     *
+     * @param redisTemplate
+     * @param channel
+     * @param confirmed     订阅方收到探测消息时完成
+     */
+    void probeSubscription(StringRedisTemplate redisTemplate, String channel, CompletableFuture<Void> confirmed) {
+        long deadline = System.currentTimeMillis() + SUBSCRIBE_TIMEOUT_MILLIS;
+        getScheduler().execute(() -> probe(redisTemplate, channel, confirmed, deadline));
+    }
+
+    private void probe(StringRedisTemplate redisTemplate, String channel, CompletableFuture<Void> confirmed, long deadline) {
+        if (confirmed.isDone()) {
+            return;
+        }
+        if (System.currentTimeMillis() >= deadline) {
+            log.warn("Subscription to " + channel + " not confirmed within " + SUBSCRIBE_TIMEOUT_MILLIS + "ms");
+            confirmed.complete(null);
+            return;
+        }
+        try {
+            redisTemplate.convertAndSend(channel, "0");
+        } catch (RuntimeException e) {
+            // 超时后统一告警
+            log.debug("Probe subscription to " + channel + " failed", e);
+        }
+        getScheduler().schedule(() -> probe(redisTemplate, channel, confirmed, deadline), 100, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 表的代数, 同名的表共用一个订阅, 第一次使用时订阅
+     *
+     * @param generationKey 管理表中的代数key
+     * @return
+     */
+    TableGeneration.Watch watchGeneration(String generationKey) {
+        return generationWatches.computeIfAbsent(generationKey, key ->
+                new TableGeneration.Watch(this, createRedisTemplate(redisConnectionFactory), key));
+    }
+
+    /**
+     * 定时任务使用的线程池, 如锁的续期
+     *
+     * @return
+     */
+    ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            synchronized (this) {
+                if (scheduler == null) {
+                    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread thread = new Thread(r, "redis-helper-scheduler-" + name);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return scheduler;
+    }
+
     public RedisTable createTable(String name) throws ParameterException {
         return new RedisTable(name, this);
     }
 
     /**
-     * 删除数据库
+     * 创建阻塞弹出的多路复用消费管理器, 阻塞等待只占用指定数量的专用连接
+     *
+     * @param connections 专用连接数
+     * @return
+     */
+    public BlockingPopManager createBlockingPopManager(int connections) {
+        return createBlockingPopManager(this.redisConnectionFactory, connections);
+    }
+
+    /**
+     * 创建阻塞弹出的多路复用消费管理器, 使用单独的连接工厂, 与普通操作的连接池完全隔离
+     *
+     * @param connectionFactory
+     * @param connections       专用连接数
+     * @return
+     */
+    public BlockingPopManager createBlockingPopManager(RedisConnectionFactory connectionFactory, int connections) {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("Connections must be positive");
+        }
+        return new BlockingPopManager(this, connectionFactory, connections);
+    }
+
+    /**
+     * 删除数据库, 包括紧凑key布局的表及其在目录中的ID
      */
     public void delete() {
-        RedisTemplate redisTemplate = createRedisTemplate(this.redisConnectionFactory);
+        StringRedisTemplate redisTemplate = createRedisTemplate(this.redisConnectionFactory);
         Set<String> keys = redisTemplate.keys(this.name + Constants.KEY_SEPARATOR + "*");
         redisTemplate.delete(keys);
+
+        // 紧凑布局的表key不以数据库名开头, 逐个删除各表全部代数的数据
+        Map<String, Long> tables = TableCatalog.tables(redisTemplate, this.name);
+        for (String table : tables.keySet()) {
+            try {
+                createTable(table).delete();
+            } catch (ParameterException e) {
+                throw new IllegalStateException("Invalid table name in catalog: " + table, e);
+            }
+        }
+        TableCatalog.remove(redisTemplate, this.name, tables.keySet());
     }
     private StringRedisTemplate createRedisTemplate(RedisConnectionFactory connectionFactory) {
         StringRedisTemplate template = new StringRedisTemplate();
@@ -60,4 +352,12 @@ public class RedisDatabase {
         return template;
     }
 
+    private static ExecutorService createExecutor() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "redis-helper-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
 }
@@ -8,30 +8,86 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.TimeoutUtils;
 import org.springframework.util.StringUtils;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @author wxt366@126.com
  */
 public class RedisTable {
+    /**
+     * 共享设置(如哈希分桶)的重新读取间隔, 其他进程修改设置后最迟经过该时间生效
+     */
+    static final long SETTINGS_REFRESH_MILLIS = 1000;
+
     private String name;
 
     private RedisDatabase database;
 
     private StringRedisTemplate redisTemplate;
 
-    private String tableKey;
+    private volatile String tableKey;
+
+    private String baseKey;
+
+    private long tableId;
+
+    private volatile long generation;
+
+    private volatile TableGeneration.Watch generationWatch;
 
     private long autoWindows;
 
+    private volatile int hashBuckets;
+
+    private volatile int previousHashBuckets;
+
+    private volatile long hashBucketsChangeTime;
+
+    private volatile long settingsReadTime;
+
+    private volatile int zSetShards;
+
+    private volatile Set<String> versionedZSets = Collections.emptySet();
+
+    private volatile Map<String, HashOperations.IndexType> hashIndexes;
+
+    private KeyRouter keyRouter;
+
+    private volatile CounterBuffer counterBuffer;
+
+    private volatile WriteBehindBuffer writeBehindBuffer;
+
+    private final Map<String, TableLock> locks = new ConcurrentHashMap<>();
+
+    private final Map<String, TableChannel> channels = new ConcurrentHashMap<>();
+
+    private final Map<ConnectionPool.Group, StringRedisTemplate> groupTemplates = new ConcurrentHashMap<>();
+
     private StringOperations stringOperations;
     private HashOperations hashOperations;
     private ListOperations listOperations;
     private SetOperations setOperations;
     private ZSetOperations zSetOperations;
+    private StreamOperations streamOperations;
+    private BitfieldOperations bitfieldOperations;
+    private HyperLogLogOperations hyperLogLogOperations;
+    private BloomOperations bloomOperations;
 
     public RedisTable(String name, RedisDatabase database) throws ParameterException {
+        // 空表名的key前缀为"数据库名::", 与截断后代数前缀的格式相同
+        if (name.isEmpty()) {
+            throw new ParameterException("Table name can't be empty");
+        }
         if (name.contains(Constants.KEY_SEPARATOR)) {
             throw new ParameterException("Table name can't contain the String: " + Constants.KEY_SEPARATOR);
         }
@@ -42,15 +98,32 @@ public class RedisTable {
         this.name = name;
         this.database = database;
         this.redisTemplate = createRedisTemplate(database.getRedisConnectionFactory());
-        this.tableKey = this.database.getName() + Constants.KEY_SEPARATOR + this.name + Constants.KEY_SEPARATOR;
+        this.tableId = TableCatalog.tableId(this.redisTemplate, database.getName(), name, database.isCompactKeys());
+        this.baseKey = this.tableId > 0 ? TableCatalog.tableKey(this.tableId)
+                : this.database.getName() + Constants.KEY_SEPARATOR + this.name + Constants.KEY_SEPARATOR;
+        this.tableKey = this.baseKey;
+        this.generationWatch = database.watchGeneration(getAdminKey(Constants.GENERATION_TABLE));
         this.autoWindows = this.readAutoWindow();
+        this.readSettings();
+        this.keyRouter = createKeyRouter();
+        this.createOperations();
+    }
 
-
+    private void createOperations() {
         this.stringOperations = new StringOperations(this.redisTemplate, this);
         this.hashOperations = new HashOperations(this.redisTemplate, this);
         this.listOperations = new ListOperations(this.redisTemplate, this);
         this.setOperations = new SetOperations(this.redisTemplate, this);
         this.zSetOperations = new ZSetOperations(this.redisTemplate, this);
+        this.streamOperations = new StreamOperations(this.redisTemplate, this);
+        this.bitfieldOperations = new BitfieldOperations(this.redisTemplate, this);
+        this.hyperLogLogOperations = new HyperLogLogOperations(this.redisTemplate, this);
+        this.bloomOperations = new BloomOperations(this.redisTemplate, this);
+    }
+
+    private KeyRouter createKeyRouter() {
+        return new KeyRouter(this.redisTemplate, getRedisTemplate(ConnectionPool.Group.BULK),
+                getRedisTemplate(ConnectionPool.Group.SCAN), database.getExecutor());
     }
 
     /**
@@ -93,6 +166,185 @@ public class RedisTable {
         return zSetOperations;
     }
 
+    /**
+     * Stream类型相关操作
+     * @return
+     */
+    public StreamOperations streamOps() {
+        return streamOperations;
+    }
+
+    /**
+     * 位域(定长整数数组)相关操作
+     * @return
+     */
+    public BitfieldOperations bitfieldOps() {
+        return bitfieldOperations;
+    }
+
+    /**
+     * HyperLogLog相关操作
+     * @return
+     */
+    public HyperLogLogOperations hllOps() {
+        return hyperLogLogOperations;
+    }
+
+    /**
+     * 布隆过滤器相关操作
+     * @return
+     */
+    public BloomOperations bloomOps() {
+        return bloomOperations;
+    }
+
+    /**
+     * 获取基于List的可靠队列, 每次调用返回一个新的消费者
+     *
+     * @param name 队列名称
+     * @return
+     */
+    public TableQueue queue(String name) {
+        return new TableQueue(this, name);
+    }
+
+    /**
+     * 获取分布式锁, 同一表内同名的锁返回同一个实例, 本地线程在实例内排队, 只有一个线程与其他节点竞争
+     *
+     * @param name 锁名称
+     * @return
+     */
+    public TableLock lock(String name) {
+        return locks.computeIfAbsent(name, n -> new TableLock(this, n));
+    }
+
+    /**
+     * 并行遍历表中的key, 集群模式下各节点并发遍历, 每页在线程池中以pipeline读取值后处理并合并结果
+     *
+     * @return
+     */
+    public ParallelScan parallelScan() {
+        return new ParallelScan(this);
+    }
+
+    /**
+     * 获取限流器, 同一名称的限流器在各节点间共享计数
+     *
+     * @param name      限流器名称
+     * @param algorithm 限流算法
+     * @param permits   每个窗口的许可数, 令牌桶为桶容量
+     * @param window    窗口时间, 令牌桶为补满的时间
+     * @param unit
+     * @return
+     */
+    public RateLimiter rateLimiter(String name, RateLimiter.Algorithm algorithm, long permits, long window, TimeUnit unit) {
+        return new RateLimiter(this, name, algorithm, permits, window, unit);
+    }
+
+    /**
+     * 获取表内的发布订阅频道, 发布的消息在本地合并后批量发送
+     *
+     * @param name 频道名称
+     * @return
+     */
+    public TableChannel channel(String name) {
+        return channel(name, 10, TimeUnit.MILLISECONDS, 100);
+    }
+
+    /**
+     * 获取表内的发布订阅频道, 同名频道返回同一个实例, 合并参数以第一次获取时为准; 关闭后再获取时重新创建
+     *
+     * @param name          频道名称
+     * @param flushInterval 发布消息的最长合并时间
+     * @param unit
+     * @param batchSize     合并的消息数达到该数量时立即发送
+     * @return
+     */
+    public TableChannel channel(String name, long flushInterval, TimeUnit unit, int batchSize) {
+        return channels.compute(name, (n, channel) -> channel == null || channel.isClosed()
+                ? new TableChannel(this, n, flushInterval, unit, batchSize) : channel);
+    }
+
+    /**
+     * 导出表中的全部key到文件, 文件中只保存去掉表前缀的key, 可以导入到任意表
+     *
+     * 注：导出期间的写入不保证一致, 表的过期时间等管理表中的设置不导出
+     *
+     * @param path 导出文件
+     * @return 导出的key数量
+     * @throws IOException
+     */
+    public long exportTo(Path path) throws IOException {
+        return new TableTransfer(this).exportTo(path);
+    }
+
+    /**
+     * 从导出文件导入key到本表, 覆盖已存在的key
+     *
+     * @param path 导出文件
+     * @return 导入的key数量
+     * @throws IOException
+     */
+    public long importFrom(Path path) throws IOException {
+        return importFrom(path, true);
+    }
+
+    /**
+     * 从导出文件导入key到本表, 本表的哈希表分桶数和有序集合分片数需与导出时一致
+     *
+     * @param path    导出文件
+     * @param replace 是否覆盖已存在的key, 为false时已存在的key导致抛出异常
+     * @return 导入的key数量
+     * @throws IOException
+     */
+    public long importFrom(Path path, boolean replace) throws IOException {
+        return new TableTransfer(this).importFrom(path, replace);
+    }
+
+    /**
+     * 复制表中的全部key到目标表, 保留剩余过期时间, 目标表可以在其他数据库或其他连接工厂上
+     *
+     * @param target 目标表, 哈希表分桶数和有序集合分片数需与本表一致
+     * @return 复制的key数量
+     */
+    public long copyTo(RedisTable target) {
+        return copyTo(target, TransferOptions.defaults());
+    }
+
+    /**
+     * 复制表中的全部key到目标表
+     *
+     * @param target  目标表
+     * @param options 并发数、限速、是否覆盖及是否校验
+     * @return 复制的key数量
+     */
+    public long copyTo(RedisTable target, TransferOptions options) {
+        return new TableTransfer(this).copyTo(target, options, false);
+    }
+
+    /**
+     * 迁移表中的全部key到目标表, 复制并校验后删除本表中的key
+     *
+     * 注：迁移期间应停止写入本表, 校验后仍不一致的key保留在本表中
+     *
+     * @param target 目标表
+     * @return 迁移的key数量
+     */
+    public long migrateTo(RedisTable target) {
+        return migrateTo(target, TransferOptions.defaults());
+    }
+
+    /**
+     * 迁移表中的全部key到目标表
+     *
+     * @param target  目标表
+     * @param options 并发数、限速及是否覆盖
+     * @return 迁移的key数量
+     */
+    public long migrateTo(RedisTable target, TransferOptions options) {
+        return new TableTransfer(this).copyTo(target, options, true);
+    }
+
     private StringRedisTemplate createRedisTemplate(RedisConnectionFactory connectionFactory) {
         StringRedisTemplate template = new StringRedisTemplate();
         template.setConnectionFactory(connectionFactory);
@@ -146,6 +398,423 @@ public class RedisTable {
         return StringUtils.isEmpty(expire) ? -1 : Long.valueOf(expire);
     }
 
+    /**
+     * 设置哈希表的分桶数量, 大于1时一个哈希表按字段拆分到多个key中存储
+     *
+     * 注：修改分桶数量后需调用 hashOps().rebucket() 迁移已有数据, 迁移期间读写同时兼容新旧分桶.
+     * 分桶设置保存在Redis中, 各进程的表实例每次操作前检查, 最迟 SETTINGS_REFRESH_MILLIS 毫秒后使用新的分桶
+     *
+     * @param buckets
+     */
+    public synchronized void setHashBuckets(int buckets) {
+        buckets = Math.max(buckets, 1);
+        // 以Redis中的设置为准, 本实例的缓存可能已过期
+        readSettings();
+        if (buckets == this.hashBuckets) {
+            return;
+        }
+        if (!hashIndexes.isEmpty()) {
+            throw new IllegalStateException("Tables with hash indexes can't use hash buckets");
+        }
+        if (this.previousHashBuckets > 0) {
+            throw new IllegalStateException("Hash rebucket is in progress, call hashOps().rebucket() first");
+        }
+
+        this.previousHashBuckets = this.hashBuckets;
+        this.hashBuckets = buckets;
+        this.hashBucketsChangeTime = System.currentTimeMillis();
+        writeHashBuckets();
+    }
+
+    /**
+     * 获取哈希表的分桶数量
+     *
+     * @return
+     */
+    public int getHashBuckets() {
+        refreshSettings();
+        return this.hashBuckets;
+    }
+
+    /**
+     * 获取迁移前的哈希表分桶数量, 没有进行中的迁移时返回0
+     *
+     * @return
+     */
+    public int getPreviousHashBuckets() {
+        refreshSettings();
+        return this.previousHashBuckets;
+    }
+
+    /**
+     * 最近一次修改分桶数量的时间
+     *
+     * @return
+     */
+    long getHashBucketsChangeTime() {
+        refreshSettings();
+        return this.hashBucketsChangeTime;
+    }
+
+    /**
+     * 结束哈希表的重新分桶
+     */
+    synchronized void finishHashRebucket() {
+        this.previousHashBuckets = 0;
+        writeHashBuckets();
+    }
+
+    /**
+     * 距上次读取超过 SETTINGS_REFRESH_MILLIS 时重新读取共享设置, 其他进程或表实例的修改由此生效
+     */
+    private void refreshSettings() {
+        if (System.currentTimeMillis() - settingsReadTime < SETTINGS_REFRESH_MILLIS) {
+            return;
+        }
+        synchronized (this) {
+            if (System.currentTimeMillis() - settingsReadTime >= SETTINGS_REFRESH_MILLIS) {
+                readSettings();
+            }
+        }
+    }
+
+    private void readSettings() {
+        readHashBuckets();
+        readHashIndexes();
+        readVersionedZSets();
+        this.zSetShards = readZSetShards();
+        this.settingsReadTime = System.currentTimeMillis();
+    }
+
+    private void readHashBuckets() {
+        String value = redisTemplate.opsForValue().get(getAdminKey(Constants.HASH_BUCKETS_TABLE));
+        if (StringUtils.isEmpty(value)) {
+            this.hashBuckets = 1;
+            this.previousHashBuckets = 0;
+            this.hashBucketsChangeTime = 0;
+            return;
+        }
+
+        // 格式: 分桶数量[,迁移前的分桶数量[,修改时间]]
+        String[] values = value.split(",");
+        int previous = values.length > 1 ? Integer.parseInt(values[1]) : 0;
+        this.previousHashBuckets = previous;
+        this.hashBuckets = Integer.parseInt(values[0]);
+        this.hashBucketsChangeTime = values.length > 2 ? Long.parseLong(values[2]) : 0;
+    }
+
+    private void writeHashBuckets() {
+        String value = previousHashBuckets > 0 ? hashBuckets + "," + previousHashBuckets + "," + hashBucketsChangeTime
+                : String.valueOf(hashBuckets);
+        redisTemplate.opsForValue().set(getAdminKey(Constants.HASH_BUCKETS_TABLE), value);
+    }
+
+    /**
+     * 设置有序集合的分片数量, 大于1时一个有序集合按成员拆分到多个key中存储, 读取时并发查询各分片后合并
+     *
+     * 注：分片数量需在写入数据之前设置, 修改分片数量不会迁移已有数据.
+     * 分片设置保存在Redis中, 其他进程的表实例最迟 SETTINGS_REFRESH_MILLIS 毫秒后使用新的分片数量
+     *
+     * @param shards
+     */
+    public void setZSetShards(int shards) {
+        this.zSetShards = Math.max(shards, 1);
+        redisTemplate.opsForValue().set(getAdminKey(Constants.ZSET_SHARDS_TABLE), String.valueOf(this.zSetShards));
+    }
+
+    /**
+     * 获取有序集合的分片数量
+     *
+     * @return
+     */
+    public int getZSetShards() {
+        refreshSettings();
+        return this.zSetShards;
+    }
+
+    /**
+     * 登记修改时需增加版本号的有序集合(开启了排行榜), 保存在管理表中, 各实例读取后对其修改都会增加版本号
+     *
+     * @param key
+     */
+    synchronized void addVersionedZSet(String key) {
+        if (versionedZSets.contains(key)) {
+            return;
+        }
+        redisTemplate.opsForSet().add(getAdminKey(Constants.LEADERBOARD_TABLE), key);
+        Set<String> keys = new HashSet<>(versionedZSets);
+        keys.add(key);
+        this.versionedZSets = keys;
+    }
+
+    /**
+     * 有序集合修改时是否需要增加版本号, 其他实例的登记最迟在 SETTINGS_REFRESH_MILLIS 后生效
+     *
+     * @param key
+     * @return
+     */
+    boolean isVersionedZSet(String key) {
+        refreshSettings();
+        return versionedZSets.contains(key);
+    }
+
+    private void readVersionedZSets() {
+        Set<String> keys = redisTemplate.opsForSet().members(getAdminKey(Constants.LEADERBOARD_TABLE));
+        this.versionedZSets = keys == null ? Collections.emptySet() : keys;
+    }
+
+    private int readZSetShards() {
+        String shards = redisTemplate.opsForValue().get(getAdminKey(Constants.ZSET_SHARDS_TABLE));
+        return StringUtils.isEmpty(shards) ? 1 : Integer.parseInt(shards);
+    }
+
+    /**
+     * 声明哈希表字段的索引, 之后 hashOps() 的 put、putAll、delete 同时维护索引, 可按字段值查询哈希表.
+     * 表中已有数据时需调用 hashOps().reindex() 建立索引
+     *
+     * 注：索引由脚本原子维护, 仅支持非集群模式且不分桶的表; increment、putIfAbsent不维护索引, put、putAll不再经过异步写缓冲
+     *
+     * @param field 字段名, 不能包含","、"="和":"
+     * @param type  等值索引或范围索引
+     */
+    public synchronized void addHashIndex(String field, HashOperations.IndexType type) {
+        if (field.contains(",") || field.contains("=") || field.contains(Constants.KEY_SEPARATOR)) {
+            throw new IllegalArgumentException("Index field can't contain ',', '=' or '" + Constants.KEY_SEPARATOR + "'");
+        }
+        if (keyRouter.isCluster()) {
+            throw new IllegalStateException("Hash indexes are not supported in cluster mode, index keys are in different slots");
+        }
+        // 以Redis中的设置为准, 避免覆盖其他实例的修改
+        readSettings();
+        if (this.hashBuckets > 1 || this.previousHashBuckets > 0) {
+            throw new IllegalStateException("Tables with hash buckets can't use hash indexes");
+        }
+
+        Map<String, HashOperations.IndexType> indexes = new LinkedHashMap<>(this.hashIndexes);
+        indexes.put(field, type);
+        writeHashIndexes(indexes);
+    }
+
+    /**
+     * 删除哈希表字段的索引及其全部索引key
+     *
+     * @param field
+     */
+    public synchronized void removeHashIndex(String field) {
+        readSettings();
+        if (!this.hashIndexes.containsKey(field)) {
+            return;
+        }
+        Map<String, HashOperations.IndexType> indexes = new LinkedHashMap<>(this.hashIndexes);
+        indexes.remove(field);
+        writeHashIndexes(indexes);
+        hashOperations.dropIndex(field);
+    }
+
+    /**
+     * 获取哈希表字段的索引
+     *
+     * @return 字段与索引类型
+     */
+    public Map<String, HashOperations.IndexType> getHashIndexes() {
+        refreshSettings();
+        return this.hashIndexes;
+    }
+
+    private void readHashIndexes() {
+        String value = redisTemplate.opsForValue().get(getAdminKey(Constants.HASH_INDEXES_TABLE));
+        Map<String, HashOperations.IndexType> indexes = new LinkedHashMap<>();
+        if (!StringUtils.isEmpty(value)) {
+            for (String index : value.split(",")) {
+                String[] parts = index.split("=");
+                indexes.put(parts[0], HashOperations.IndexType.valueOf(parts[1]));
+            }
+        }
+        this.hashIndexes = Collections.unmodifiableMap(indexes);
+    }
+
+    private void writeHashIndexes(Map<String, HashOperations.IndexType> indexes) {
+        StringBuilder value = new StringBuilder();
+        for (Map.Entry<String, HashOperations.IndexType> index : indexes.entrySet()) {
+            if (value.length() > 0) {
+                value.append(',');
+            }
+            value.append(index.getKey()).append('=').append(index.getValue().name());
+        }
+        if (indexes.isEmpty()) {
+            redisTemplate.delete(getAdminKey(Constants.HASH_INDEXES_TABLE));
+        } else {
+            redisTemplate.opsForValue().set(getAdminKey(Constants.HASH_INDEXES_TABLE), value.toString());
+        }
+        this.hashIndexes = Collections.unmodifiableMap(indexes);
+    }
+
+    /**
+     * 开启计数器的本地合并缓冲, 开启后 valueOps().incrBy 和 hashOps().increment 的增量在本地累加后批量写入,
+     * 调用返回null
+     *
+     * @param flushInterval  刷新周期, 即数据的最大延迟
+     * @param unit
+     * @param maxPendingKeys 待刷新的key数量达到该值时立即刷新
+     * @return
+     */
+    public synchronized CounterBuffer enableCounterBuffer(long flushInterval, TimeUnit unit, int maxPendingKeys) {
+        if (this.counterBuffer == null) {
+            this.counterBuffer = new CounterBuffer(this, flushInterval, unit, maxPendingKeys);
+        }
+        return this.counterBuffer;
+    }
+
+    /**
+     * 关闭计数器的本地合并缓冲, 并写入剩余的增量
+     */
+    public synchronized void disableCounterBuffer() {
+        CounterBuffer buffer = this.counterBuffer;
+        this.counterBuffer = null;
+        if (buffer != null) {
+            buffer.close();
+        }
+    }
+
+    /**
+     * 获取计数器的本地合并缓冲, 未开启时返回null
+     *
+     * @return
+     */
+    public CounterBuffer getCounterBuffer() {
+        return this.counterBuffer;
+    }
+
+    /**
+     * 开启异步写缓冲, 开启后 valueOps().set 和 hashOps().put 的写入在本地合并后批量写入,
+     * 同一key(字段)在一个刷新周期内的多次写入只写最后一次
+     *
+     * @param flushInterval  刷新周期, 即数据的最大延迟
+     * @param unit
+     * @param batchSize      待写入数量达到该值时立即刷新, 也是每个pipeline的大小
+     * @param maxPendingKeys 待写入数量的上限, 达到上限时写入方阻塞等待
+     * @return
+     */
+    public synchronized WriteBehindBuffer enableWriteBehind(long flushInterval, TimeUnit unit, int batchSize, int maxPendingKeys) {
+        if (this.writeBehindBuffer == null) {
+            this.writeBehindBuffer = new WriteBehindBuffer(this, flushInterval, unit, batchSize, maxPendingKeys);
+        }
+        return this.writeBehindBuffer;
+    }
+
+    /**
+     * 关闭异步写缓冲, 并写入剩余的数据
+     */
+    public synchronized void disableWriteBehind() {
+        WriteBehindBuffer buffer = this.writeBehindBuffer;
+        this.writeBehindBuffer = null;
+        if (buffer != null) {
+            buffer.close();
+        }
+    }
+
+    /**
+     * 获取异步写缓冲, 未开启时返回null
+     *
+     * @return
+     */
+    public WriteBehindBuffer getWriteBehindBuffer() {
+        return this.writeBehindBuffer;
+    }
+
+    /**
+     * 重命名表, 只修改目录中的名称, 表中的数据不需要改写. 仅支持紧凑布局的表
+     *
+     * 注：其他客户端已创建的同一表的实例仍可正常读写, 重新创建时需使用新名称
+     *
+     * @param newName
+     * @throws ParameterException
+     */
+    public synchronized void rename(String newName) throws ParameterException {
+        if (newName.isEmpty()) {
+            throw new ParameterException("Table name can't be empty");
+        }
+        if (newName.contains(Constants.KEY_SEPARATOR)) {
+            throw new ParameterException("Table name can't contain the String: " + Constants.KEY_SEPARATOR);
+        }
+        if (newName.length() > Constants.KEY_MAX_LENGTH) {
+            throw new ParameterException(String.format("Table name length can't longer than %d character", Constants.KEY_MAX_LENGTH));
+        }
+        if (this.tableId <= 0) {
+            throw new IllegalStateException("Only tables in compact key layout can be renamed");
+        }
+        // 目录只记录紧凑布局的表, 普通布局的同名表需查找其key
+        String classicKey = database.getName() + Constants.KEY_SEPARATOR + newName + Constants.KEY_SEPARATOR;
+        AtomicBoolean classicExists = new AtomicBoolean();
+        keyRouter.scan(TableTransfer.pattern(classicKey), 1000, keys -> classicExists.set(true));
+        if (classicExists.get()) {
+            throw new IllegalStateException("Table " + database.getName() + Constants.KEY_SEPARATOR + newName + " already exists");
+        }
+
+        TableCatalog.rename(redisTemplate, database.getName(), this.name, newName);
+        String oldName = this.name;
+        this.name = newName;
+        // 管理表中的设置按名称保存, 随目录一起改名
+        for (String adminTable : new String[]{Constants.EXPIRED_TABLE, Constants.AUTO_WINDOWS_TABLE,
+                Constants.HASH_BUCKETS_TABLE, Constants.ZSET_SHARDS_TABLE, Constants.GENERATION_TABLE,
+                Constants.HASH_INDEXES_TABLE}) {
+            String oldKey = getAdminKey(adminTable, oldName);
+            String value = redisTemplate.opsForValue().get(oldKey);
+            if (value != null) {
+                redisTemplate.opsForValue().set(getAdminKey(adminTable), value);
+                redisTemplate.delete(oldKey);
+            }
+        }
+        String oldLeaderboardKey = getAdminKey(Constants.LEADERBOARD_TABLE, oldName);
+        Set<String> versioned = redisTemplate.opsForSet().members(oldLeaderboardKey);
+        if (versioned != null && !versioned.isEmpty()) {
+            redisTemplate.opsForSet().add(getAdminKey(Constants.LEADERBOARD_TABLE), versioned.toArray(new String[0]));
+            redisTemplate.delete(oldLeaderboardKey);
+        }
+        this.generationWatch = database.watchGeneration(getAdminKey(Constants.GENERATION_TABLE));
+    }
+
+    /**
+     * 获取表名
+     *
+     * @return
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 获取紧凑布局下表的ID, 普通布局返回0
+     *
+     * @return
+     */
+    public long getTableId() {
+        return tableId;
+    }
+
+    /**
+     * 获取管理表中本表的Key
+     *
+     * @param adminTable
+     * @return
+     */
+    private String getAdminKey(String adminTable) {
+        return getAdminKey(adminTable, this.name);
+    }
+
+    private String getAdminKey(String adminTable, String tableName) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(Constants.ADMIN_DATABASE);
+        sb.append(Constants.KEY_SEPARATOR);
+        sb.append(adminTable);
+        sb.append(Constants.KEY_SEPARATOR);
+        sb.append(this.database.getName());
+        sb.append(Constants.KEY_SEPARATOR);
+        sb.append(tableName);
+
+        return sb.toString();
+    }
+
     /**
      * 获取过期时间的Key
      *
@@ -183,11 +852,51 @@ public class RedisTable {
     }
 
     /**
-     * 删除表，同时删除表中的数据
+     * 截断表, 表立即为空, 旧数据在后台每秒最多删除10000个key
+     *
+     * @return 后台删除的key数量
      */
-    public void delete(){
-        Set<String> keys = redisTemplate.keys(getTableKey() + "*");
-        redisTemplate.delete(keys);
+    public CompletableFuture<Long> truncate() {
+        return truncate(10000);
+    }
+
+    /**
+     * 截断表: 表key前缀中的代数加1并通知各客户端, 表立即为空, 旧代数的key在后台以SCAN分页限速删除
+     *
+     * 注：其他客户端在收到通知前的写入仍写入旧代数, 会被一起删除; 锁、限流器和频道的key不随代数变化, 截断后保持不变; 队列随表一起清空
+     *
+     * @param maxKeysPerSecond 每秒最多删除的key数量, 0不限速
+     * @return 后台删除的key数量
+     */
+    public CompletableFuture<Long> truncate(long maxKeysPerSecond) {
+        generationWatch.update(TableGeneration.increment(redisTemplate, getAdminKey(Constants.GENERATION_TABLE)));
+        return reapTruncated(maxKeysPerSecond);
+    }
+
+    /**
+     * 删除已截断的旧代数的key, 用于截断后的后台删除未完成(如进程退出)时重新执行
+     *
+     * @param maxKeysPerSecond 每秒最多删除的key数量, 0不限速
+     * @return 删除的key数量
+     */
+    public CompletableFuture<Long> reapTruncated(long maxKeysPerSecond) {
+        return TableGeneration.reap(this, baseKey, getAdminKey(Constants.GENERATION_TABLE), maxKeysPerSecond);
+    }
+
+    /**
+     * 获取表的代数, 每次截断加1
+     *
+     * @return
+     */
+    public long getGeneration() {
+        return generationWatch.get();
+    }
+
+    /**
+     * 删除表，同时删除表中的数据, 包括截断后尚未清理的旧代数的数据. 以SCAN分页删除, 不阻塞Redis
+     */
+    public void delete() {
+        TableGeneration.deleteAll(this, baseKey, getAdminKey(Constants.GENERATION_TABLE));
     }
 
     /**
@@ -196,9 +905,27 @@ public class RedisTable {
      * @return
      */
     public String getTableKey() {
+        long current = generationWatch.get();
+        if (current != generation) {
+            synchronized (this) {
+                if (current > generation) {
+                    this.tableKey = TableGeneration.tableKey(baseKey, current);
+                    this.generation = current;
+                }
+            }
+        }
         return tableKey;
     }
 
+    /**
+     * 获取不随代数变化的key前缀, 截断表后仍然有效
+     *
+     * @return
+     */
+    String getFixedKey() {
+        return TableGeneration.fixedKey(baseKey);
+    }
+
     //    private static Map<String, Long> autoWindowUpdateCache = new Hashtable<>();
 
     public boolean isUpdateExpire(String key) {
@@ -209,11 +936,67 @@ public class RedisTable {
         return true;
     }
 
+    public RedisDatabase getDatabase() {
+        return database;
+    }
+
+    KeyRouter getKeyRouter() {
+        return keyRouter;
+    }
+
     public StringRedisTemplate getRedisTemplate() {
         return redisTemplate;
     }
 
+    /**
+     * 切换表使用的连接, 已取得的操作对象继续使用并改用新连接, 其本地状态(如布隆过滤器的参数缓存)保留
+     *
+     * @param redisTemplate
+     */
     public void setRedisTemplate(StringRedisTemplate redisTemplate) {
         this.redisTemplate = redisTemplate;
+        this.keyRouter = createKeyRouter();
+        for (BaseOperations operations : new BaseOperations[]{stringOperations, hashOperations, listOperations,
+                setOperations, zSetOperations, streamOperations, bitfieldOperations, hyperLogLogOperations, bloomOperations}) {
+            operations.setRedisTemplate(redisTemplate);
+        }
+    }
+
+    /**
+     * 将表的全部操作绑定到专用连接池, 需在使用表之前设置, 已取得的操作对象同样改用该池
+     *
+     * @param connectionPool
+     */
+    public void setConnectionPool(ConnectionPool connectionPool) {
+        setRedisTemplate(connectionPool.getRedisTemplate());
+    }
+
+    /**
+     * 将表的一类操作绑定到专用连接池, 其他操作仍使用表的连接, 如将阻塞弹出与SCAN隔离到各自的池,
+     * 避免占满普通操作的连接
+     *
+     * 注：遍历时每页的处理(如 parallelScan 的pipeline读取)在持有SCAN连接的同时取得批量连接,
+     * 两类绑定到同一个池时池大小需大于并发遍历数
+     *
+     * @param group          操作类别
+     * @param connectionPool 专用连接池, null解除绑定
+     */
+    public void setConnectionPool(ConnectionPool.Group group, ConnectionPool connectionPool) {
+        if (connectionPool == null) {
+            groupTemplates.remove(group);
+        } else {
+            groupTemplates.put(group, connectionPool.getRedisTemplate());
+        }
+        this.keyRouter = createKeyRouter();
+    }
+
+    /**
+     * 一类操作使用的连接, 未绑定专用连接池时为表的连接
+     *
+     * @param group
+     * @return
+     */
+    StringRedisTemplate getRedisTemplate(ConnectionPool.Group group) {
+        return groupTemplates.getOrDefault(group, redisTemplate);
     }
 }
@@ -5,9 +5,11 @@ import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
 
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author wxt366@126.com
@@ -273,7 +275,34 @@ public class SetOperations extends BaseOperations {
      */
     public Set<String> members(String key) {
         String newKey = getStoreKey(key);
-        return redisTemplate.opsForSet().members(newKey);
+        return templateFor(ConnectionPool.Group.BULK).opsForSet().members(newKey);
+    }
+
+    /**
+     * 以 SSCAN 分页惰性迭代集合的元素, 内存中只保留一页, 遍历期间修改集合时元素可能重复或遗漏
+     *
+     * @param key
+     * @param pageSize  每页数量(SSCAN的COUNT)
+     * @param readAhead 是否在线程池中预读下一页
+     * @return
+     */
+    public Iterator<String> membersIterator(String key, int pageSize, boolean readAhead) {
+        PageIterator.checkPageSize(pageSize);
+        String newKey = getStoreKey(key);
+        return new PageIterator<>(0, cursor -> PageIterator.scan(templateFor(ConnectionPool.Group.SCAN), "SSCAN", newKey, cursor, pageSize),
+                readAhead ? redisTable.getDatabase().getExecutor() : null);
+    }
+
+    /**
+     * 以 SSCAN 分页惰性读取集合的元素
+     *
+     * @param key
+     * @param pageSize  每页数量
+     * @param readAhead 是否预读下一页
+     * @return
+     */
+    public Stream<String> membersStream(String key, int pageSize, boolean readAhead) {
+        return PageIterator.stream(membersIterator(key, pageSize, readAhead));
     }
 
     /**
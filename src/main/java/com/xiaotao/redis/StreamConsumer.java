@@ -0,0 +1,128 @@
+package com.xiaotao.redis;
+
+import org.springframework.data.redis.connection.stream.StringRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 消费组的消费者
+ *
+ * 启动后先处理本消费者之前未确认的记录, 然后以 XREADGROUP COUNT 批量读取新记录交给线程池处理,
+ * 处理成功的记录以pipeline批量 XACK 确认. 处理失败的记录保持待确认状态,
+ * 空闲时间超过接管时间后由组内的消费者通过 XCLAIM 接管重新处理
+ *
+ * @author wxt366@126.com
+ */
+public class StreamConsumer extends AbstractConsumer<StringRecord> {
+    private final StreamOperations streamOperations;
+
+    private final String key;
+
+    private final String group;
+
+    private final String name;
+
+    private long claimIdleMillis = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * 下次读取本消费者未确认记录的起始ID, 未确认的记录处理完后为null
+     */
+    private String pendingId;
+
+    private long lastClaim;
+
+    StreamConsumer(StreamOperations streamOperations, RedisTable redisTable, String key, String group, String name) {
+        super(redisTable.getDatabase().getExecutor());
+        this.streamOperations = streamOperations;
+        this.key = key;
+        this.group = group;
+        this.name = name;
+    }
+
+    /**
+     * 设置每次读取的数量, 也是本地同时处理中的最大数量
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        setCapacity(batchSize);
+    }
+
+    /**
+     * 设置接管时间, 其他消费者超过该时间未确认的记录会被本消费者接管
+     *
+     * @param timeout
+     * @param unit
+     */
+    public void setClaimIdle(long timeout, TimeUnit unit) {
+        this.claimIdleMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * 消费者名称
+     *
+     * @return
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 开始消费, 消费组不存在时从流的开头创建
+     *
+     * @param handler
+     */
+    public synchronized void start(Consumer<StringRecord> handler) {
+        if (isRunning()) {
+            return;
+        }
+        streamOperations.createGroup(key, group, "0");
+        pendingId = "0";
+        lastClaim = System.currentTimeMillis();
+        start("redis-helper-stream-" + key + "-" + group + "-" + name, handler);
+    }
+
+    @Override
+    protected List<StringRecord> fetch(int count) {
+        List<StringRecord> records;
+        if (pendingId != null) {
+            // 先处理本消费者之前未确认的记录
+            records = streamOperations.readPending(key, group, name, pendingId, count);
+            pendingId = records.isEmpty() ? null : records.get(records.size() - 1).getId().getValue();
+        } else if (System.currentTimeMillis() - lastClaim >= claimIdleMillis) {
+            records = streamOperations.claimIdle(key, group, name, claimIdleMillis, TimeUnit.MILLISECONDS, count);
+            lastClaim = System.currentTimeMillis();
+        } else {
+            records = streamOperations.readGroup(key, group, name, count, 1, TimeUnit.SECONDS);
+        }
+        return records;
+    }
+
+    @Override
+    protected void acknowledge(List<StringRecord> acked, List<StringRecord> failed) {
+        List<String> ids = new ArrayList<>(acked.size());
+        for (StringRecord record : acked) {
+            ids.add(record.getId().getValue());
+        }
+        streamOperations.acknowledge(key, group, ids);
+    }
+
+    @Override
+    protected void failed(StringRecord record, RuntimeException e) {
+        // 保持待确认状态, 由组内的消费者接管
+        log.warn("Handle record " + record.getId() + " of stream " + key + " failed, it will be claimed later", e);
+    }
+
+    @Override
+    protected long closeTimeoutMillis() {
+        return claimIdleMillis;
+    }
+
+    @Override
+    protected String description() {
+        return "stream " + key + " of group " + group;
+    }
+}
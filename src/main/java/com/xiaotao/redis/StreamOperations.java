@@ -0,0 +1,415 @@
+package com.xiaotao.redis;
+
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.connection.stream.StringRecord;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stream类型相关操作
+ *
+ * @author wxt366@126.com
+ */
+public class StreamOperations extends BaseOperations {
+    /**
+     * 每条 XACK 命令确认的最大数量
+     */
+    private static final int ACK_BATCH_SIZE = 1000;
+
+    /**
+     * 批量 XADD, ARGV[1]为最大长度(0不裁剪), ARGV[2]为'~'时近似裁剪, 之后每条记录为字段数及字段和值
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> ADD_SCRIPT = new DefaultRedisScript<>(
+            "redis.replicate_commands()\n" +
+            "local ids = {}\n" +
+            "local i = 3\n" +
+            "while i <= #ARGV do\n" +
+            "  local n = tonumber(ARGV[i])\n" +
+            "  local args = {'XADD', KEYS[1]}\n" +
+            "  if tonumber(ARGV[1]) > 0 then\n" +
+            "    args[#args + 1] = 'MAXLEN'\n" +
+            "    if ARGV[2] == '~' then args[#args + 1] = '~' end\n" +
+            "    args[#args + 1] = ARGV[1]\n" +
+            "  end\n" +
+            "  args[#args + 1] = '*'\n" +
+            "  for j = 1, n * 2 do args[#args + 1] = ARGV[i + j] end\n" +
+            "  ids[#ids + 1] = redis.call(unpack(args))\n" +
+            "  i = i + n * 2 + 1\n" +
+            "end\n" +
+            "return ids", List.class);
+
+    /**
+     * 创建消费组, 流不存在时创建流, 消费组已存在时返回0
+     */
+    private static final RedisScript<Long> CREATE_GROUP_SCRIPT = new DefaultRedisScript<>(
+            "local result = redis.pcall('XGROUP', 'CREATE', KEYS[1], ARGV[1], ARGV[2], 'MKSTREAM')\n" +
+            "if type(result) == 'table' and result.err then\n" +
+            "  if string.find(result.err, 'BUSYGROUP') then return 0 end\n" +
+            "  return result\n" +
+            "end\n" +
+            "return 1", Long.class);
+
+    private static final RedisScript<Long> PENDING_COUNT_SCRIPT = new DefaultRedisScript<>(
+            "return redis.call('XPENDING', KEYS[1], ARGV[1])[1]", Long.class);
+
+    /**
+     * 将空闲时间超过ARGV[3]毫秒的待确认记录转给消费者ARGV[2], ARGV[4]为最多检查的数量
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> CLAIM_SCRIPT = new DefaultRedisScript<>(
+            "redis.replicate_commands()\n" +
+            "local pending = redis.call('XPENDING', KEYS[1], ARGV[1], '-', '+', ARGV[4])\n" +
+            "local ids = {}\n" +
+            "for _, entry in ipairs(pending) do\n" +
+            "  if tonumber(entry[3]) >= tonumber(ARGV[3]) then ids[#ids + 1] = entry[1] end\n" +
+            "end\n" +
+            "if #ids == 0 then return {} end\n" +
+            "local claimed = redis.call('XCLAIM', KEYS[1], ARGV[1], ARGV[2], ARGV[3], unpack(ids))\n" +
+            "local records = {}\n" +
+            "for _, record in ipairs(claimed) do\n" +
+            "  if record then records[#records + 1] = record end\n" +
+            "end\n" +
+            "return records", List.class);
+
+    public StreamOperations(StringRedisTemplate redisTemplate, RedisTable redisTable) {
+        super(redisTemplate, redisTable);
+    }
+
+    /**
+     * 添加记录
+     *
+     * @param key
+     * @param fields
+     * @return 记录ID
+     */
+    public RecordId add(String key, Map<String, String> fields) {
+        String newKey = getStoreKey(key);
+        return redisTemplate.opsForStream().add(newKey, fields);
+    }
+
+    /**
+     * 添加记录并裁剪流的长度
+     *
+     * @param key
+     * @param fields
+     * @param maxLen      最大长度
+     * @param approximate 是否近似裁剪, 近似裁剪只删除完整的宏节点, 开销远小于精确裁剪
+     * @return 记录ID
+     */
+    public RecordId add(String key, Map<String, String> fields, long maxLen, boolean approximate) {
+        List<RecordId> ids = addAll(key, Collections.singletonList(fields), maxLen, approximate);
+        return ids.isEmpty() ? null : ids.get(0);
+    }
+
+    /**
+     * 一次请求批量添加记录并裁剪流的长度
+     *
+     * @param key
+     * @param records
+     * @param maxLen      最大长度, 0不裁剪
+     * @param approximate 是否近似裁剪
+     * @return 记录ID
+     */
+    @SuppressWarnings("unchecked")
+    public List<RecordId> addAll(String key, List<Map<String, String>> records, long maxLen, boolean approximate) {
+        if (records.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        String newKey = getStoreKey(key);
+        List<String> args = new ArrayList<>();
+        args.add(String.valueOf(maxLen));
+        args.add(approximate ? "~" : "=");
+        for (Map<String, String> fields : records) {
+            args.add(String.valueOf(fields.size()));
+            for (Map.Entry<String, String> entry : fields.entrySet()) {
+                args.add(entry.getKey());
+                args.add(entry.getValue());
+            }
+        }
+
+        List<String> ids = redisTemplate.execute(ADD_SCRIPT, Collections.singletonList(newKey), args.toArray());
+        List<RecordId> recordIds = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            recordIds.add(RecordId.of(id));
+        }
+        return recordIds;
+    }
+
+    /**
+     * 将流裁剪到指定长度
+     *
+     * @param key
+     * @param maxLen
+     * @return 删除的记录数
+     */
+    public Long trim(String key, long maxLen) {
+        String newKey = getStoreKey(key);
+        return redisTemplate.opsForStream().trim(newKey, maxLen);
+    }
+
+    /**
+     * 获取流的长度
+     *
+     * @param key
+     * @return
+     */
+    public Long size(String key) {
+        String newKey = getStoreKey(key);
+        return redisTemplate.opsForStream().size(newKey);
+    }
+
+    /**
+     * 删除记录
+     *
+     * @param key
+     * @param recordIds
+     * @return
+     */
+    public Long delete(String key, String... recordIds) {
+        String newKey = getStoreKey(key);
+        return redisTemplate.opsForStream().delete(newKey, recordIds);
+    }
+
+    /**
+     * 按ID范围获取记录
+     *
+     * @param key
+     * @param range
+     * @param count 最大数量
+     * @return
+     */
+    public List<StringRecord> range(String key, Range<String> range, int count) {
+        String newKey = getStoreKey(key);
+        return toRecords(key, redisTemplate.opsForStream().range(newKey, range, RedisZSetCommands.Limit.limit().count(count)));
+    }
+
+    /**
+     * 读取指定ID之后的记录
+     *
+     * @param key
+     * @param recordId 从该ID之后开始读取, "0"从头读取
+     * @param count    最大数量
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public List<StringRecord> read(String key, String recordId, int count) {
+        String newKey = getStoreKey(key);
+        return toRecords(key, redisTemplate.opsForStream().read(StreamReadOptions.empty().count(count),
+                StreamOffset.create(newKey, ReadOffset.from(recordId))));
+    }
+
+    /**
+     * 创建消费组, 流不存在时同时创建流
+     *
+     * @param key
+     * @param group
+     * @param recordId 从该ID之后开始消费, "$"只消费新记录, "0"消费全部记录
+     * @return 消费组已存在时返回false
+     */
+    public Boolean createGroup(String key, String group, String recordId) {
+        String newKey = getStoreKey(key);
+        Long created = redisTemplate.execute(CREATE_GROUP_SCRIPT, Collections.singletonList(newKey), group, recordId);
+        return created != null && created == 1;
+    }
+
+    /**
+     * 删除消费组
+     *
+     * @param key
+     * @param group
+     * @return
+     */
+    public Boolean destroyGroup(String key, String group) {
+        String newKey = getStoreKey(key);
+        return redisTemplate.opsForStream().destroyGroup(newKey, group);
+    }
+
+    /**
+     * 以消费组方式读取新记录, 不等待
+     *
+     * @param key
+     * @param group
+     * @param consumer 消费者名称
+     * @param count    最大数量
+     * @return
+     */
+    public List<StringRecord> readGroup(String key, String group, String consumer, int count) {
+        return readGroup(key, group, consumer, count, ReadOffset.lastConsumed(), null);
+    }
+
+    /**
+     * 以消费组方式读取新记录, 没有新记录时最多等待timeout
+     *
+     * @param key
+     * @param group
+     * @param consumer 消费者名称
+     * @param count    最大数量
+     * @param timeout
+     * @param unit
+     * @return
+     */
+    public List<StringRecord> readGroup(String key, String group, String consumer, int count, long timeout, TimeUnit unit) {
+        return readGroup(key, group, consumer, count, ReadOffset.lastConsumed(), Duration.ofMillis(unit.toMillis(timeout)));
+    }
+
+    /**
+     * 读取已投递给该消费者但尚未确认的记录, 用于消费者重启后继续处理
+     *
+     * @param key
+     * @param group
+     * @param consumer 消费者名称
+     * @param recordId 从该ID之后开始读取, "0"从头读取
+     * @param count    最大数量
+     * @return
+     */
+    public List<StringRecord> readPending(String key, String group, String consumer, String recordId, int count) {
+        return readGroup(key, group, consumer, count, ReadOffset.from(recordId), null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<StringRecord> readGroup(String key, String group, String consumer, int count, ReadOffset offset, Duration block) {
+        String newKey = getStoreKey(key);
+        StreamReadOptions options = StreamReadOptions.empty().count(count);
+        if (block != null) {
+            options = options.block(block);
+        }
+        StringRedisTemplate template = block == null ? redisTemplate : templateFor(ConnectionPool.Group.BLOCKING);
+        return toRecords(key, template.opsForStream().read(Consumer.from(group, consumer), options,
+                StreamOffset.create(newKey, offset)));
+    }
+
+    /**
+     * 确认记录已处理
+     *
+     * @param key
+     * @param group
+     * @param recordIds
+     * @return 确认的数量
+     */
+    public Long acknowledge(String key, String group, String... recordIds) {
+        String newKey = getStoreKey(key);
+        return redisTemplate.opsForStream().acknowledge(newKey, group, recordIds);
+    }
+
+    /**
+     * 批量确认记录已处理, 每批最多1000条, 以pipeline一次发送
+     *
+     * @param key
+     * @param group
+     * @param recordIds
+     * @return 确认的数量
+     */
+    public Long acknowledge(String key, String group, Collection<String> recordIds) {
+        if (recordIds.isEmpty()) {
+            return 0L;
+        }
+
+        String newKey = getStoreKey(key);
+        List<String> ids = new ArrayList<>(recordIds);
+        List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < ids.size(); i += ACK_BATCH_SIZE) {
+                List<String> batch = ids.subList(i, Math.min(i + ACK_BATCH_SIZE, ids.size()));
+                ((StringRedisConnection) connection).xAck(newKey, group, batch.toArray(new String[0]));
+            }
+            return null;
+        });
+        long acked = 0;
+        for (Object result : results) {
+            if (result != null) {
+                acked += (Long) result;
+            }
+        }
+        return acked;
+    }
+
+    /**
+     * 消费组中待确认的记录数
+     *
+     * @param key
+     * @param group
+     * @return
+     */
+    public Long pendingCount(String key, String group) {
+        String newKey = getStoreKey(key);
+        return redisTemplate.execute(PENDING_COUNT_SCRIPT, Collections.singletonList(newKey), group);
+    }
+
+    /**
+     * 将其他消费者长时间未确认的记录转给指定消费者, 用于接管失效消费者的记录
+     *
+     * @param key
+     * @param group
+     * @param consumer 接管的消费者名称
+     * @param minIdle  最小空闲时间
+     * @param unit
+     * @param count    最多检查的待确认记录数
+     * @return 转移成功的记录
+     */
+    @SuppressWarnings("unchecked")
+    public List<StringRecord> claimIdle(String key, String group, String consumer, long minIdle, TimeUnit unit, int count) {
+        String newKey = getStoreKey(key);
+        List<Object> claimed = redisTemplate.execute(CLAIM_SCRIPT, Collections.singletonList(newKey),
+                group, consumer, String.valueOf(unit.toMillis(minIdle)), String.valueOf(count));
+
+        List<StringRecord> records = new ArrayList<>(claimed.size());
+        for (Object item : claimed) {
+            List<Object> entry = (List<Object>) item;
+            List<Object> values = (List<Object>) entry.get(1);
+            Map<String, String> fields = new LinkedHashMap<>();
+            for (int i = 0; i + 1 < values.size(); i += 2) {
+                fields.put((String) values.get(i), (String) values.get(i + 1));
+            }
+            records.add(StreamRecords.newRecord().in(key).withId((String) entry.get(0)).ofStrings(fields));
+        }
+        return records;
+    }
+
+    /**
+     * 创建消费组的消费者, 调用start后开始在线程池中批量消费
+     *
+     * @param key
+     * @param group
+     * @param consumer 消费者名称, 重启后使用相同名称可继续处理之前未确认的记录
+     * @return
+     */
+    public StreamConsumer consumer(String key, String group, String consumer) {
+        return new StreamConsumer(this, redisTable, key, group, consumer);
+    }
+
+    private static List<StringRecord> toRecords(String key, List<MapRecord<String, Object, Object>> records) {
+        List<StringRecord> result = new ArrayList<>();
+        if (records == null) {
+            return result;
+        }
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<String, String> fields = new LinkedHashMap<>();
+            for (Map.Entry<Object, Object> entry : record.getValue().entrySet()) {
+                fields.put((String) entry.getKey(), (String) entry.getValue());
+            }
+            result.add(StreamRecords.newRecord().in(key).withId(record.getId()).ofStrings(fields));
+        }
+        return result;
+    }
+}
@@ -1,24 +1,78 @@
 package com.xiaotao.redis;
 
 import com.google.gson.Gson;
+import org.springframework.data.redis.connection.ClusterSlotHashUtil;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.util.StringUtils;
 
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * @author wxt366@126.com
  */
 public class StringOperations extends BaseOperations {
+    private final CacheLoading cacheLoading;
+
     public StringOperations(StringRedisTemplate redisTemplate, RedisTable redisTable) {
         super(redisTemplate, redisTable);
+        this.cacheLoading = new CacheLoading(redisTable);
+    }
+
+    /**
+     * 获取缓存的值, 不存在时调用loader加载并缓存. 本地同一key的并发加载合并为一次
+     *
+     * @param key
+     * @param loader 加载数据, 返回null时按空值缓存
+     * @param ttl    缓存时间
+     * @param unit
+     * @return
+     */
+    public String getOrLoad(String key, Supplier<String> loader, long ttl, TimeUnit unit) {
+        return getOrLoad(key, loader, LoadOptions.ttl(ttl, unit));
+    }
+
+    /**
+     * 获取缓存的值, 不存在时调用loader加载并缓存
+     *
+     * 缓存值带有过期时间等信息, get、multiGet 读取时去掉这些信息, 只返回缓存的值
+     *
+     * @param key
+     * @param loader  加载数据, 返回null时按空值缓存
+     * @param options 缓存时间、空值缓存时间、分布式互斥及提前刷新
+     * @return
+     */
+    public String getOrLoad(String key, Supplier<String> loader, LoadOptions options) {
+        String newKey = getStoreKey(key);
+        flushPending(Collections.singletonList(newKey));
+        return cacheLoading.getOrLoad(newKey, () -> redisTemplate.opsForValue().get(newKey),
+                (value, ttl) -> redisTemplate.opsForValue().set(newKey, value, ttl, TimeUnit.MILLISECONDS), loader, options);
+    }
+
+    /**
+     * 获取缓存的对象, 不存在时调用loader加载并以json缓存
+     *
+     * @param key
+     * @param loader   加载数据, 返回null时按空值缓存
+     * @param classOfT
+     * @param options
+     * @return
+     */
+    public <T> T getOrLoad(String key, Supplier<T> loader, Class<T> classOfT, LoadOptions options) {
+        String value = getOrLoad(key, () -> {
+            T loaded = loader.get();
+            return loaded == null ? null : new Gson().toJson(loaded);
+        }, options);
+        return value == null ? null : new Gson().fromJson(value, classOfT);
     }
 
     /**
@@ -30,6 +84,12 @@ public class StringOperations extends BaseOperations {
     public void set(String key, String value) {
         String newKey = getStoreKey(key);
 
+        WriteBehindBuffer writeBehindBuffer = redisTable.getWriteBehindBuffer();
+        if (writeBehindBuffer != null) {
+            writeBehindBuffer.put(newKey, null, value);
+            return;
+        }
+
         long expire = redisTable.getTableExpire();
         if (expire <= 0) {
             expire = redisTable.getAutoWindow();
@@ -63,6 +123,7 @@ public class StringOperations extends BaseOperations {
      */
     public void set(String key, String value, long timeout, TimeUnit unit) {
         String newKey = getStoreKey(key);
+        discardPending(Collections.singletonList(newKey));
 
         redisTemplate.opsForValue().set(newKey, value, timeout, unit);
     }
@@ -81,7 +142,7 @@ public class StringOperations extends BaseOperations {
     }
 
     /**
-     * 获取指定 key 的值
+     * 获取指定 key 的值, getOrLoad缓存的值去掉过期时间等信息后返回
      *
      * @param key
      * @return
@@ -89,10 +150,18 @@ public class StringOperations extends BaseOperations {
     public String get(String key) {
         String newKey = getStoreKey(key);
 
+        WriteBehindBuffer writeBehindBuffer = redisTable.getWriteBehindBuffer();
+        if (writeBehindBuffer != null) {
+            String value = writeBehindBuffer.get(newKey, null);
+            if (value != null) {
+                return value;
+            }
+        }
+
         if (redisTable.isUpdateExpire(newKey)) {
             redisTemplate.expire(newKey, redisTable.getAutoWindow(), TimeUnit.MILLISECONDS);
         }
-        return redisTemplate.opsForValue().get(newKey);
+        return CacheLoading.unwrap(redisTemplate.opsForValue().get(newKey));
     }
 
     /**
@@ -130,6 +199,8 @@ public class StringOperations extends BaseOperations {
     /**
      * 返回 key 中字符串值的子字符
      *
+     * 注：按Redis中存储的值截取, 对getOrLoad缓存的值包括过期时间等信息
+     *
      * @param key
      * @param start
      * @param end
@@ -137,6 +208,7 @@ public class StringOperations extends BaseOperations {
      */
     public String getRange(String key, long start, long end) {
         String newKey = getStoreKey(key);
+        flushPending(Collections.singletonList(newKey));
         if (redisTable.isUpdateExpire(newKey)) {
             redisTemplate.expire(newKey, redisTable.getAutoWindow(), TimeUnit.MILLISECONDS);
         }
@@ -153,11 +225,12 @@ public class StringOperations extends BaseOperations {
      */
     public String getAndSet(String key, String value) {
         String newKey = getStoreKey(key);
+        flushPending(Collections.singletonList(newKey));
         if (redisTable.isUpdateExpire(newKey)) {
             redisTemplate.expire(newKey, redisTable.getAutoWindow(), TimeUnit.MILLISECONDS);
         }
 
-        return redisTemplate.opsForValue().getAndSet(newKey, value);
+        return CacheLoading.unwrap(redisTemplate.opsForValue().getAndSet(newKey, value));
     }
 
     /**
@@ -169,26 +242,46 @@ public class StringOperations extends BaseOperations {
      */
     public Boolean getBit(String key, long offset) {
         String newKey = getStoreKey(key);
+        flushPending(Collections.singletonList(newKey));
 
         return redisTemplate.opsForValue().getBit(newKey, offset);
     }
 
     /**
-     * 批量获取
+     * 批量获取, 集群模式下按节点并发执行
      *
      * @param keys
-     * @return
+     * @return 与keys顺序一致的值
      */
     public List<String> multiGet(Collection<String> keys) {
-        Stream<String> newKeys = keys.parallelStream().map(this::getStoreKey);
+        List<String> newKeys = keys.stream().map(this::getStoreKey).collect(Collectors.toList());
+        flushPending(newKeys);
 
-        newKeys.forEach(k -> {
-            if (redisTable.isUpdateExpire(k)) {
-                redisTemplate.expire(k, redisTable.getAutoWindow(), TimeUnit.MILLISECONDS);
+        List<KeyRouter.NodeBatch> batches = redisTable.getKeyRouter().pipelineByNode(newKeys, (connection, slots) -> {
+            for (List<Integer> slot : slots) {
+                connection.mGet(KeyRouter.select(newKeys, slot));
+            }
+            for (List<Integer> slot : slots) {
+                for (Integer index : slot) {
+                    String newKey = newKeys.get(index);
+                    if (redisTable.isUpdateExpire(newKey)) {
+                        connection.pExpire(newKey, redisTable.getAutoWindow());
+                    }
+                }
             }
         });
 
-        return redisTemplate.opsForValue().multiGet(newKeys.collect(Collectors.toList()));
+        String[] values = new String[newKeys.size()];
+        for (KeyRouter.NodeBatch batch : batches) {
+            for (int i = 0; i < batch.slots.size(); i++) {
+                List<Integer> slot = batch.slots.get(i);
+                List<?> slotValues = (List<?>) batch.results.get(i);
+                for (int j = 0; j < slot.size(); j++) {
+                    values[slot.get(j)] = CacheLoading.unwrap((String) slotValues.get(j));
+                }
+            }
+        }
+        return Arrays.asList(values);
     }
 
     /**
@@ -201,6 +294,7 @@ public class StringOperations extends BaseOperations {
      */
     public boolean setBit(String key, long offset, boolean value) {
         String newKey = getStoreKey(key);
+        flushPending(Collections.singletonList(newKey));
 
         return redisTemplate.opsForValue().setBit(newKey, offset, value);
     }
@@ -214,6 +308,7 @@ public class StringOperations extends BaseOperations {
      */
     public boolean setIfAbsent(String key, String value) {
         String newKey = getStoreKey(key);
+        flushPending(Collections.singletonList(newKey));
 
         return redisTemplate.opsForValue().setIfAbsent(newKey, value);
     }
@@ -227,6 +322,7 @@ public class StringOperations extends BaseOperations {
      */
     public void setRange(String key, String value, long offset) {
         String newKey = getStoreKey(key);
+        flushPending(Collections.singletonList(newKey));
 
         redisTemplate.opsForValue().set(newKey, value, offset);
     }
@@ -239,43 +335,77 @@ public class StringOperations extends BaseOperations {
      */
     public Long size(String key) {
         String newKey = getStoreKey(key);
+        flushPending(Collections.singletonList(newKey));
 
         return redisTemplate.opsForValue().size(newKey);
     }
 
     /**
-     * 批量添加
+     * 批量添加, 集群模式下按节点并发执行
      *
      * @param maps
      */
     public void multiSet(Map<String, String> maps) {
-        Map<String, String> newMaps = new HashMap<>(maps.size());
+        List<String> newKeys = new ArrayList<>(maps.size());
+        List<String> values = new ArrayList<>(maps.size());
         for (Map.Entry<String, String> entry : maps.entrySet()) {
-            String key = entry.getKey();
-            String value = entry.getValue();
-            newMaps.put(getStoreKey(key), value);
+            newKeys.add(getStoreKey(entry.getKey()));
+            values.add(entry.getValue());
         }
-        maps = null;
 
-        redisTemplate.opsForValue().multiSet(newMaps);
+        discardPending(newKeys);
+
+        redisTable.getKeyRouter().pipelineByNode(newKeys, (connection, slots) -> {
+            for (List<Integer> slot : slots) {
+                connection.mSetString(toMap(newKeys, values, slot));
+            }
+        });
     }
 
     /**
      * 同时设置一个或多个 key-value 对，当且仅当所有给定 key 都不存在
      *
+     * 注：集群模式下所有key需在同一slot(可使用相同的hash tag, 如 {user}a、{user}b), 否则无法保证原子性, 抛出 IllegalArgumentException
+     *
      * @param maps
      * @return 之前已经存在返回false, 不存在返回true
      */
     public boolean multiSetIfAbsent(Map<String, String> maps) {
-        Map<String, String> newMaps = new HashMap<>(maps.size());
+        List<String> newKeys = new ArrayList<>(maps.size());
+        List<String> values = new ArrayList<>(maps.size());
         for (Map.Entry<String, String> entry : maps.entrySet()) {
-            String key = entry.getKey();
-            String value = entry.getValue();
-            newMaps.put(getStoreKey(key), value);
+            newKeys.add(getStoreKey(entry.getKey()));
+            values.add(entry.getValue());
+        }
+
+        if (redisTable.getKeyRouter().isCluster()
+                && newKeys.stream().mapToInt(ClusterSlotHashUtil::calculateSlot).distinct().count() > 1) {
+            throw new IllegalArgumentException("Keys of multiSetIfAbsent must be in the same slot in cluster mode");
+        }
+
+        flushPending(newKeys);
+
+        List<KeyRouter.NodeBatch> batches = redisTable.getKeyRouter().pipelineByNode(newKeys, (connection, slots) -> {
+            for (List<Integer> slot : slots) {
+                connection.mSetNXString(toMap(newKeys, values, slot));
+            }
+        });
+
+        boolean result = true;
+        for (KeyRouter.NodeBatch batch : batches) {
+            for (Object slotResult : batch.results) {
+                result &= Boolean.TRUE.equals(slotResult);
+            }
         }
-        maps = null;
+        return result;
+    }
 
-        return redisTemplate.opsForValue().multiSetIfAbsent(newMaps);
+    private static Map<String, String> toMap(List<String> keys, List<String> values, List<Integer> indexes) {
+        Map<String, String> map = new LinkedHashMap<>(indexes.size());
+        for (Integer index : indexes) {
+            map.put(keys.get(index), values.get(index));
+        }
+        return map;
     }
 
     /**
@@ -283,10 +413,15 @@ public class StringOperations extends BaseOperations {
      *
      * @param key
      * @param increment
-     * @return
+     * @return 开启计数器缓冲(RedisTable.enableCounterBuffer)时返回null
      */
     public Long incrBy(String key, long increment) {
         String newKey = getStoreKey(key);
+        flushPending(Collections.singletonList(newKey));
+        CounterBuffer counterBuffer = redisTable.getCounterBuffer();
+        if (counterBuffer != null && counterBuffer.add(newKey, null, increment)) {
+            return null;
+        }
         if (redisTable.isUpdateExpire(newKey)) {
             redisTemplate.expire(newKey, redisTable.getAutoWindow(), TimeUnit.MILLISECONDS);
         }
@@ -296,10 +431,15 @@ public class StringOperations extends BaseOperations {
     /**
      * @param key
      * @param increment
-     * @return
+     * @return 开启计数器缓冲(RedisTable.enableCounterBuffer)时返回null
      */
     public Double incrByFloat(String key, double increment) {
         String newKey = getStoreKey(key);
+        flushPending(Collections.singletonList(newKey));
+        CounterBuffer counterBuffer = redisTable.getCounterBuffer();
+        if (counterBuffer != null && counterBuffer.add(newKey, null, increment)) {
+            return null;
+        }
         if (redisTable.isUpdateExpire(newKey)) {
             redisTemplate.expire(newKey, redisTable.getAutoWindow(), TimeUnit.MILLISECONDS);
         }
@@ -315,6 +455,7 @@ public class StringOperations extends BaseOperations {
      */
     public Integer append(String key, String value) {
         String newKey = getStoreKey(key);
+        flushPending(Collections.singletonList(newKey));
         if (redisTable.isUpdateExpire(newKey)) {
             redisTemplate.expire(newKey, redisTable.getAutoWindow(), TimeUnit.MILLISECONDS);
         }
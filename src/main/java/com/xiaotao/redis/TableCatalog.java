@@ -0,0 +1,146 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.config.Constants;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 紧凑key布局的表ID目录
+ *
+ * 目录是管理库中的一个哈希表, 字段为"数据库名:表名", 值为全局唯一的数字ID, 字段seq为ID的序列.
+ * 紧凑布局下表的key前缀为":"加变长编码的ID, 数据库名不能包含":", 因此不会与普通布局的key冲突.
+ * ID每5位编码为一个字符, 低位在前, 非末位字符与末位字符使用不同的字符集, 任何ID的编码都不是其他ID编码的前缀
+ *
+ * @author wxt366@126.com
+ */
+class TableCatalog {
+    /**
+     * 末位字符
+     */
+    private static final String LAST_DIGITS = "0123456789abcdefghijklmnopqrstuv";
+
+    /**
+     * 非末位字符, 不含SCAN匹配模式的通配符
+     */
+    private static final String MORE_DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ-_.~+=";
+
+    /**
+     * 返回表的ID, 不存在且ARGV[2]为1时分配新ID, 否则返回0
+     */
+    private static final RedisScript<Long> ALLOCATE_SCRIPT = new DefaultRedisScript<>(
+            "local id = redis.call('HGET', KEYS[1], ARGV[1])\n" +
+            "if id then return tonumber(id) end\n" +
+            "if ARGV[2] ~= '1' then return 0 end\n" +
+            "id = redis.call('HINCRBY', KEYS[1], 'seq', 1)\n" +
+            "redis.call('HSET', KEYS[1], ARGV[1], id)\n" +
+            "return id", Long.class);
+
+    /**
+     * 原名称不存在返回-1, 新名称已存在返回0, 成功返回1
+     */
+    private static final RedisScript<Long> RENAME_SCRIPT = new DefaultRedisScript<>(
+            "local id = redis.call('HGET', KEYS[1], ARGV[1])\n" +
+            "if not id then return -1 end\n" +
+            "if redis.call('HEXISTS', KEYS[1], ARGV[2]) == 1 then return 0 end\n" +
+            "redis.call('HSET', KEYS[1], ARGV[2], id)\n" +
+            "redis.call('HDEL', KEYS[1], ARGV[1])\n" +
+            "return 1", Long.class);
+
+    private static final String CATALOG_KEY = Constants.ADMIN_DATABASE + Constants.KEY_SEPARATOR + Constants.TABLE_ID_TABLE;
+
+    private TableCatalog() {
+    }
+
+    /**
+     * 获取表的ID
+     *
+     * @param redisTemplate
+     * @param database
+     * @param table
+     * @param allocate      不存在时是否分配新ID
+     * @return 不存在且不分配时返回0
+     */
+    static long tableId(StringRedisTemplate redisTemplate, String database, String table, boolean allocate) {
+        Long id = redisTemplate.execute(ALLOCATE_SCRIPT, Collections.singletonList(CATALOG_KEY),
+                field(database, table), allocate ? "1" : "0");
+        return id == null ? 0 : id;
+    }
+
+    /**
+     * 在目录中重命名表, ID及数据不变
+     *
+     * @param redisTemplate
+     * @param database
+     * @param table
+     * @param newTable
+     */
+    static void rename(StringRedisTemplate redisTemplate, String database, String table, String newTable) {
+        Long result = redisTemplate.execute(RENAME_SCRIPT, Collections.singletonList(CATALOG_KEY),
+                field(database, table), field(database, newTable));
+        if (result == null || result < 0) {
+            throw new IllegalStateException("Table " + field(database, table) + " doesn't exist in catalog");
+        }
+        if (result == 0) {
+            throw new IllegalStateException("Table " + field(database, newTable) + " already exists");
+        }
+    }
+
+    /**
+     * 数据库在目录中的全部表
+     *
+     * @param redisTemplate
+     * @param database
+     * @return 表名与ID
+     */
+    static Map<String, Long> tables(StringRedisTemplate redisTemplate, String database) {
+        String prefix = database + Constants.KEY_SEPARATOR;
+        Map<String, Long> tables = new HashMap<>();
+        for (Map.Entry<Object, Object> entry : redisTemplate.opsForHash().entries(CATALOG_KEY).entrySet()) {
+            String field = (String) entry.getKey();
+            if (field.startsWith(prefix)) {
+                tables.put(field.substring(prefix.length()), Long.valueOf((String) entry.getValue()));
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * 从目录中删除表, 删除后同名表会分配新ID
+     *
+     * @param redisTemplate
+     * @param database
+     * @param tables
+     */
+    static void remove(StringRedisTemplate redisTemplate, String database, Collection<String> tables) {
+        if (tables.isEmpty()) {
+            return;
+        }
+        Object[] fields = tables.stream().map(table -> field(database, table)).toArray();
+        redisTemplate.opsForHash().delete(CATALOG_KEY, fields);
+    }
+
+    /**
+     * 紧凑布局的表key
+     *
+     * @param id
+     * @return
+     */
+    static String tableKey(long id) {
+        StringBuilder key = new StringBuilder(Constants.KEY_SEPARATOR);
+        while (id >= 32) {
+            key.append(MORE_DIGITS.charAt((int) (id & 31)));
+            id >>>= 5;
+        }
+        return key.append(LAST_DIGITS.charAt((int) id)).toString();
+    }
+
+    private static String field(String database, String table) {
+        return database + Constants.KEY_SEPARATOR + table;
+    }
+}
@@ -0,0 +1,192 @@
+package com.xiaotao.redis;
+
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.listener.ChannelTopic;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 表内的发布订阅频道
+ *
+ * 发布的消息先在本地合并, 定时或合并数量达到批量大小时打包成一帧以一条 PUBLISH 发送,
+ * 订阅方拆包后在线程池中逐条交给监听器. 帧格式为若干个"消息长度:消息"首尾相接
+ *
+ * @author wxt366@126.com
+ */
+public class TableChannel extends AbstractWriteBuffer {
+    private final String channelKey;
+
+    private final int batchSize;
+
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pendingSize = new AtomicInteger();
+
+    /**
+     * 上次发送失败的消息, 下次刷新时优先发送
+     */
+    private volatile List<String> failed = new ArrayList<>();
+
+    private final Map<Consumer<String>, MessageListener> listeners = new ConcurrentHashMap<>();
+
+    private volatile Executor executor;
+
+    TableChannel(RedisTable redisTable, String name, long flushInterval, TimeUnit unit, int batchSize) {
+        super(redisTable, "channel", flushInterval, unit);
+        this.channelKey = redisTable.getFixedKey() + name;
+        this.batchSize = batchSize;
+        this.executor = redisTable.getDatabase().getExecutor();
+    }
+
+    /**
+     * 设置执行监听器的线程池, 默认使用数据库的线程池
+     *
+     * @param executor
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * 发布消息, 消息合并后批量发送
+     *
+     * @param message
+     */
+    public void publish(String message) {
+        checkOpen();
+        pending.add(message);
+        if (pendingSize.incrementAndGet() >= batchSize) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * 订阅频道
+     *
+     * @param listener
+     */
+    public void subscribe(Consumer<String> listener) {
+        MessageListener messageListener = (message, pattern) -> {
+            List<String> messages;
+            try {
+                messages = decode(new String(message.getBody(), StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException e) {
+                // 其他客户端直接 PUBLISH 到该频道的消息不是帧格式, 跳过
+                log.warn("Skip malformed message on channel " + channelKey + ": " + e.getMessage());
+                return;
+            }
+            executor.execute(() -> {
+                for (String item : messages) {
+                    try {
+                        listener.accept(item);
+                    } catch (RuntimeException e) {
+                        log.warn("Listener of channel " + channelKey + " failed", e);
+                    }
+                }
+            });
+        };
+        if (listeners.putIfAbsent(listener, messageListener) == null) {
+            redisTable.getDatabase().subscribe(messageListener, new ChannelTopic(channelKey));
+        }
+    }
+
+    /**
+     * 取消订阅
+     *
+     * @param listener
+     */
+    public void unsubscribe(Consumer<String> listener) {
+        MessageListener messageListener = listeners.remove(listener);
+        if (messageListener != null) {
+            redisTable.getDatabase().unsubscribe(messageListener, new ChannelTopic(channelKey));
+        }
+    }
+
+    /**
+     * 发送剩余的消息并取消全部订阅
+     */
+    @Override
+    public void close() {
+        for (Consumer<String> listener : new ArrayList<>(listeners.keySet())) {
+            unsubscribe(listener);
+        }
+        super.close();
+    }
+
+    @Override
+    protected long doFlush() {
+        List<String> messages = failed;
+        failed = new ArrayList<>();
+        String message;
+        while ((message = pending.poll()) != null) {
+            pendingSize.decrementAndGet();
+            messages.add(message);
+        }
+        if (messages.isEmpty()) {
+            return 0;
+        }
+
+        List<String> frames = new ArrayList<>();
+        for (int i = 0; i < messages.size(); i += batchSize) {
+            frames.add(encode(messages.subList(i, Math.min(i + batchSize, messages.size()))));
+        }
+        try {
+            redisTable.getRedisTemplate().executePipelined((RedisCallback<Object>) connection -> {
+                for (String frame : frames) {
+                    ((StringRedisConnection) connection).publish(channelKey, frame);
+                }
+                return null;
+            });
+        } catch (RuntimeException e) {
+            failed = messages;
+            throw e;
+        }
+        return frames.size();
+    }
+
+    /**
+     * 当前待发送的消息数
+     *
+     * @return
+     */
+    public int getPendingMessages() {
+        return pendingSize.get() + failed.size();
+    }
+
+    static String encode(List<String> messages) {
+        StringBuilder frame = new StringBuilder();
+        for (String message : messages) {
+            frame.append(message.length()).append(':').append(message);
+        }
+        return frame.toString();
+    }
+
+    static List<String> decode(String frame) {
+        List<String> messages = new ArrayList<>();
+        int position = 0;
+        while (position < frame.length()) {
+            int separator = frame.indexOf(':', position);
+            if (separator < 0) {
+                throw new IllegalArgumentException("Malformed channel frame");
+            }
+            int length = Integer.parseInt(frame.substring(position, separator));
+            if (length < 0 || length > frame.length() - separator - 1) {
+                throw new IllegalArgumentException("Malformed channel frame");
+            }
+            messages.add(frame.substring(separator + 1, separator + 1 + length));
+            position = separator + 1 + length;
+        }
+        return messages;
+    }
+}
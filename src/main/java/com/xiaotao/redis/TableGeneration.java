@@ -0,0 +1,226 @@
+package com.xiaotao.redis;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.util.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 表的代数
+ *
+ * 代数是表key前缀的一部分, 截断表时代数加1并发布通知, 各客户端收到后改用新前缀, 表立即为空.
+ * 旧代数的key由后台任务以SCAN分页限速删除. 管理表中的值为"当前代数,最早未清理的代数".
+ * 代数为0时前缀不变, 否则在前缀的第一个":"后插入":代数:", 如 "app:user:" 变为 "app::3:user:"
+ *
+ * @author wxt366@126.com
+ */
+class TableGeneration {
+    private static final Log log = LogFactory.getLog(TableGeneration.class);
+
+    private static final String PARSE =
+            "local current, oldest = 0, 0\n" +
+            "local value = redis.call('GET', KEYS[1])\n" +
+            "if value then current, oldest = string.match(value, '^(%d+),(%d+)$') end\n" +
+            "current = tonumber(current)\n" +
+            "oldest = tonumber(oldest)\n";
+
+    /**
+     * 代数加1并发布新代数, 返回新代数
+     */
+    private static final RedisScript<Long> TRUNCATE_SCRIPT = new DefaultRedisScript<>(PARSE +
+            "current = current + 1\n" +
+            "redis.call('SET', KEYS[1], current .. ',' .. oldest)\n" +
+            "redis.call('PUBLISH', KEYS[1], current)\n" +
+            "return current", Long.class);
+
+    /**
+     * 记录ARGV[1]之前的代数已清理
+     */
+    private static final RedisScript<Long> REAPED_SCRIPT = new DefaultRedisScript<>(PARSE +
+            "if tonumber(ARGV[1]) > oldest then\n" +
+            "  redis.call('SET', KEYS[1], current .. ',' .. ARGV[1])\n" +
+            "end\n" +
+            "return current", Long.class);
+
+    /**
+     * 每页SCAN的key数量, 也是每个 UNLINK pipeline的大小
+     */
+    private static final int REAP_BATCH_SIZE = 500;
+
+    private TableGeneration() {
+    }
+
+    /**
+     * 一张表的代数: 订阅截断通知并保存当前代数. 同一数据库中同名的表共用一个,
+     * 表对象本身不注册监听器, 不会因订阅而无法回收
+     */
+    static class Watch implements MessageListener {
+        private final AtomicLong generation = new AtomicLong();
+
+        private final CompletableFuture<Void> subscribed = new CompletableFuture<>();
+
+        Watch(RedisDatabase database, StringRedisTemplate redisTemplate, String generationKey) {
+            database.subscribe(this, new ChannelTopic(generationKey));
+            update(read(redisTemplate, generationKey)[0]);
+            // 订阅生效后再读取一次, 补上订阅生效前错过的截断. 代数0的探测消息只增不减, 其他客户端收到后忽略
+            subscribed.thenRunAsync(() -> update(read(redisTemplate, generationKey)[0]), database.getScheduler());
+            database.probeSubscription(redisTemplate, generationKey, subscribed);
+        }
+
+        @Override
+        public void onMessage(Message message, byte[] pattern) {
+            long value;
+            try {
+                value = Long.parseLong(new String(message.getBody(), StandardCharsets.UTF_8));
+            } catch (NumberFormatException e) {
+                // 频道上的其他消息, 忽略
+                return;
+            }
+            if (value == 0) {
+                subscribed.complete(null);
+            } else {
+                update(value);
+            }
+        }
+
+        long get() {
+            return generation.get();
+        }
+
+        void update(long value) {
+            generation.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * 读取当前代数和最早未清理的代数
+     *
+     * @param redisTemplate
+     * @param generationKey 管理表中的代数key, 也是通知的频道
+     * @return
+     */
+    static long[] read(StringRedisTemplate redisTemplate, String generationKey) {
+        String value = redisTemplate.opsForValue().get(generationKey);
+        if (StringUtils.isEmpty(value)) {
+            return new long[]{0, 0};
+        }
+        String[] values = value.split(",");
+        return new long[]{Long.parseLong(values[0]), Long.parseLong(values[1])};
+    }
+
+    /**
+     * 代数加1并通知各客户端
+     *
+     * @param redisTemplate
+     * @param generationKey
+     * @return 新代数
+     */
+    static long increment(StringRedisTemplate redisTemplate, String generationKey) {
+        Long generation = redisTemplate.execute(TRUNCATE_SCRIPT, Collections.singletonList(generationKey));
+        if (generation == null) {
+            throw new IllegalStateException("Increment generation " + generationKey + " failed");
+        }
+        return generation;
+    }
+
+    /**
+     * 指定代数的表key
+     *
+     * @param baseKey    代数为0时的表key
+     * @param generation
+     * @return
+     */
+    static String tableKey(String baseKey, long generation) {
+        if (generation == 0) {
+            return baseKey;
+        }
+        int index = baseKey.indexOf(':') + 1;
+        return baseKey.substring(0, index) + ":" + generation + ":" + baseKey.substring(index);
+    }
+
+    /**
+     * 不随代数变化的key前缀, 用于锁、频道、限流器等截断表后仍需保持的数据
+     *
+     * 使用代数0的前缀形式, 代数0本身不带该前缀, 因此不会被截断清理
+     *
+     * @param baseKey
+     * @return
+     */
+    static String fixedKey(String baseKey) {
+        int index = baseKey.indexOf(':') + 1;
+        return baseKey.substring(0, index) + ":0:" + baseKey.substring(index);
+    }
+
+    /**
+     * 以SCAN分页删除表在全部代数中的key, 包括尚未清理的旧代数和不随代数变化的key, 完成后记录旧代数已清理
+     *
+     * @param redisTable
+     * @param baseKey
+     * @param generationKey
+     * @return 删除的key数量
+     */
+    static long deleteAll(RedisTable redisTable, String baseKey, String generationKey) {
+        StringRedisTemplate redisTemplate = redisTable.getRedisTemplate();
+        KeyRouter keyRouter = redisTable.getKeyRouter();
+        long[] generations = read(redisTemplate, generationKey);
+        AtomicLong deleted = new AtomicLong();
+        for (long generation = generations[1]; generation <= generations[0]; generation++) {
+            keyRouter.scan(TableTransfer.pattern(tableKey(baseKey, generation)), REAP_BATCH_SIZE,
+                    page -> deleted.addAndGet(keyRouter.unlink(page)));
+        }
+        keyRouter.scan(TableTransfer.pattern(fixedKey(baseKey)), REAP_BATCH_SIZE,
+                page -> deleted.addAndGet(keyRouter.unlink(page)));
+        if (generations[1] < generations[0]) {
+            redisTemplate.execute(REAPED_SCRIPT, Collections.singletonList(generationKey), String.valueOf(generations[0]));
+        }
+        return deleted.get();
+    }
+
+    /**
+     * 在线程池中删除当前代数之前各代的key
+     *
+     * @param redisTable
+     * @param baseKey
+     * @param generationKey
+     * @param maxKeysPerSecond 每秒最多删除的key数量, 0不限速
+     * @return 删除的key数量
+     */
+    static CompletableFuture<Long> reap(RedisTable redisTable, String baseKey, String generationKey, long maxKeysPerSecond) {
+        StringRedisTemplate redisTemplate = redisTable.getRedisTemplate();
+        long[] generations = read(redisTemplate, generationKey);
+        if (generations[1] >= generations[0]) {
+            return CompletableFuture.completedFuture(0L);
+        }
+
+        CompletableFuture<Long> future = CompletableFuture.supplyAsync(() -> {
+            KeyRouter keyRouter = redisTable.getKeyRouter();
+            TableTransfer.Throttle throttle = new TableTransfer.Throttle(maxKeysPerSecond);
+            AtomicLong deleted = new AtomicLong();
+            for (long generation = generations[1]; generation < generations[0]; generation++) {
+                String prefix = tableKey(baseKey, generation);
+                keyRouter.scan(TableTransfer.pattern(prefix), REAP_BATCH_SIZE, page -> {
+                    throttle.acquire(page.size());
+                    deleted.addAndGet(keyRouter.unlink(page));
+                });
+                redisTemplate.execute(REAPED_SCRIPT, Collections.singletonList(generationKey), String.valueOf(generation + 1));
+            }
+            return deleted.get();
+        }, redisTable.getDatabase().getExecutor());
+        future.whenComplete((deleted, e) -> {
+            if (e != null) {
+                log.warn("Reap truncated generations of " + baseKey + " failed", e);
+            }
+        });
+        return future;
+    }
+}
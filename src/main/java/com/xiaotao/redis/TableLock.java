@@ -0,0 +1,295 @@
+package com.xiaotao.redis;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 分布式锁
+ *
+ * 锁key的值为持有者标识, 以 SET NX PX 获取, 获取成功时 INCR 生成单调递增的防护令牌(fencing token).
+ * 释放时以脚本比较持有者后删除并发布解锁通知, 等待方订阅通知而不是轮询. 持有期间后台定时续期,
+ * 本地线程先在本地可重入锁上排队, 同一时间只有一个本地线程与其他节点竞争
+ *
+ * @author wxt366@126.com
+ */
+public class TableLock implements Lock {
+    private static final Log log = LogFactory.getLog(TableLock.class);
+
+    /**
+     * 获取成功返回防护令牌, 失败返回 -(剩余毫秒数) - 1
+     */
+    private static final RedisScript<Long> ACQUIRE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('SET', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) then\n" +
+            "  return redis.call('INCR', KEYS[2])\n" +
+            "end\n" +
+            "local ttl = redis.call('PTTL', KEYS[1])\n" +
+            "if ttl < 0 then ttl = 0 end\n" +
+            "return -ttl - 1", Long.class);
+
+    private static final RedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then\n" +
+            "  redis.call('DEL', KEYS[1])\n" +
+            "  redis.call('PUBLISH', ARGV[2], 'unlock')\n" +
+            "  return 1\n" +
+            "end\n" +
+            "return 0", Long.class);
+
+    private static final RedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then\n" +
+            "  return redis.call('PEXPIRE', KEYS[1], ARGV[2])\n" +
+            "end\n" +
+            "return 0", Long.class);
+
+    private final RedisTable redisTable;
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final String lockKey;
+
+    private final String fenceKey;
+
+    private final String channelKey;
+
+    private final String owner;
+
+    private final ReentrantLock localLock = new ReentrantLock(true);
+
+    private final Object unlocked = new Object();
+
+    private volatile long notifications;
+
+    private volatile boolean subscribed;
+
+    private volatile long leaseMillis = TimeUnit.SECONDS.toMillis(30);
+
+    private volatile long fencingToken;
+
+    private volatile ScheduledFuture<?> watchdog;
+
+    TableLock(RedisTable redisTable, String name) {
+        this.redisTable = redisTable;
+        this.redisTemplate = redisTable.getRedisTemplate();
+        // 锁key与令牌key使用相同的hash tag, 集群模式下在同一slot
+        this.lockKey = redisTable.getFixedKey() + "{" + name + "}";
+        this.fenceKey = lockKey + "#fence";
+        this.channelKey = lockKey + "#unlock";
+        this.owner = UUID.randomUUID().toString();
+    }
+
+    /**
+     * 设置锁的租期, 持有期间每过租期的1/3续期一次, 进程退出后最多经过一个租期锁自动释放
+     *
+     * @param leaseTime
+     * @param unit
+     */
+    public void setLeaseTime(long leaseTime, TimeUnit unit) {
+        this.leaseMillis = unit.toMillis(leaseTime);
+    }
+
+    /**
+     * 当前持有锁时的防护令牌, 每次从Redis获取锁时递增, 写入外部存储时携带该令牌可拒绝过期持有者的写入
+     *
+     * @return
+     */
+    public long getFencingToken() {
+        return fencingToken;
+    }
+
+    /**
+     * 当前线程是否持有锁
+     *
+     * @return
+     */
+    public boolean isHeldByCurrentThread() {
+        return localLock.isHeldByCurrentThread();
+    }
+
+    @Override
+    public void lock() {
+        localLock.lock();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    acquireRemote(Long.MAX_VALUE);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (RuntimeException e) {
+            localLock.unlock();
+            throw e;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        localLock.lockInterruptibly();
+        try {
+            acquireRemote(Long.MAX_VALUE);
+        } catch (InterruptedException | RuntimeException e) {
+            localLock.unlock();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean tryLock() {
+        if (!localLock.tryLock()) {
+            return false;
+        }
+        if (localLock.getHoldCount() > 1 || tryAcquireRemote() > 0) {
+            return true;
+        }
+        localLock.unlock();
+        return false;
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(time);
+        if (!localLock.tryLock(time, unit)) {
+            return false;
+        }
+        boolean acquired = false;
+        try {
+            acquired = acquireRemote(deadline);
+            return acquired;
+        } finally {
+            if (!acquired) {
+                localLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void unlock() {
+        if (!localLock.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("Lock " + lockKey + " is not held by current thread");
+        }
+        try {
+            if (localLock.getHoldCount() == 1) {
+                stopWatchdog();
+                Long released = redisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(lockKey), owner, channelKey);
+                if (released == null || released == 0) {
+                    log.warn("Lock " + lockKey + " expired before unlock, fencing token " + fencingToken);
+                }
+            }
+        } finally {
+            localLock.unlock();
+        }
+    }
+
+    @Override
+    public Condition newCondition() {
+        throw new UnsupportedOperationException("Distributed lock doesn't support conditions");
+    }
+
+    /**
+     * 本地已持有锁时获取Redis中的锁, 重入时直接返回
+     *
+     * @param deadline 截止时间, 超过后返回false
+     */
+    private boolean acquireRemote(long deadline) throws InterruptedException {
+        if (localLock.getHoldCount() > 1) {
+            return true;
+        }
+        subscribe();
+        while (true) {
+            long seen = notifications;
+            long result = tryAcquireRemote();
+            if (result > 0) {
+                return true;
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            // 等待解锁通知, 最多等到锁过期
+            long wait = Math.min(remaining, Math.max(-result - 1, 1));
+            synchronized (unlocked) {
+                if (notifications == seen) {
+                    unlocked.wait(wait);
+                }
+            }
+        }
+    }
+
+    /**
+     * 执行一次获取脚本, 成功时启动续期并返回防护令牌
+     */
+    private long tryAcquireRemote() {
+        Long result = redisTemplate.execute(ACQUIRE_SCRIPT, Arrays.asList(lockKey, fenceKey), owner, String.valueOf(leaseMillis));
+        if (result == null) {
+            return -1;
+        }
+        if (result > 0) {
+            fencingToken = result;
+            startWatchdog();
+        }
+        return result;
+    }
+
+    private void subscribe() {
+        if (subscribed) {
+            return;
+        }
+        synchronized (unlocked) {
+            if (subscribed) {
+                return;
+            }
+            MessageListener listener = (message, pattern) -> {
+                synchronized (unlocked) {
+                    notifications++;
+                    unlocked.notifyAll();
+                }
+            };
+            redisTable.getDatabase().subscribe(listener, new ChannelTopic(channelKey));
+            subscribed = true;
+        }
+    }
+
+    private void startWatchdog() {
+        long period = Math.max(leaseMillis / 3, 1);
+        long lease = leaseMillis;
+        watchdog = redisTable.getDatabase().getScheduler().scheduleAtFixedRate(() -> {
+            try {
+                Long renewed = redisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(lockKey), owner, String.valueOf(lease));
+                if (renewed == null || renewed == 0) {
+                    log.warn("Lock " + lockKey + " was lost, fencing token " + fencingToken);
+                    stopWatchdog();
+                }
+            } catch (RuntimeException e) {
+                log.warn("Renew lock " + lockKey + " failed", e);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopWatchdog() {
+        ScheduledFuture<?> current = watchdog;
+        if (current != null) {
+            current.cancel(false);
+            watchdog = null;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.config.Constants;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 基于List的可靠队列
+ *
+ * 消费时使用 RPOPLPUSH 将元素原子地移到本消费者的处理中列表, 批量预取后交给线程池处理,
+ * 处理完成后以pipeline批量 LREM 确认. 消费者定时写入心跳, 心跳过期的消费者的处理中列表会被移回队列.
+ * 队列的全部key以队列名为hash tag, 集群模式下在同一slot
+ *
+ * @author wxt366@126.com
+ */
+public class TableQueue extends AbstractConsumer<String> {
+    private final RedisTable redisTable;
+
+    private final String name;
+
+    /**
+     * 带hash tag的队列名, 即队列列表在表中的key
+     */
+    private final String listKey;
+
+    private final String consumerId;
+
+    private int prefetch = 100;
+
+    private long heartbeatMillis = TimeUnit.SECONDS.toMillis(30);
+
+    private long lastHeartbeat;
+
+    TableQueue(RedisTable redisTable, String name) {
+        super(redisTable.getDatabase().getExecutor());
+        this.redisTable = redisTable;
+        this.name = name;
+        this.consumerId = UUID.randomUUID().toString();
+        this.listKey = "{" + name + "}";
+    }
+
+    /**
+     * 设置每次预取的数量, 也是本地同时处理中的最大数量
+     *
+     * @param prefetch
+     */
+    public void setPrefetch(int prefetch) {
+        setCapacity(prefetch);
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * 设置心跳周期, 超过3个周期没有心跳的消费者被认为已经失效
+     *
+     * @param timeout
+     * @param unit
+     */
+    public void setHeartbeat(long timeout, TimeUnit unit) {
+        this.heartbeatMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * 队列名称
+     *
+     * @return
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 加入队列
+     *
+     * @param item
+     * @return 队列长度
+     */
+    public Long push(String item) {
+        return redisTable.listOps().leftPush(listKey, item);
+    }
+
+    /**
+     * 批量加入队列
+     *
+     * @param items
+     * @return 队列长度
+     */
+    public Long pushAll(Collection<String> items) {
+        return redisTable.listOps().leftPushAll(listKey, items);
+    }
+
+    /**
+     * 队列长度
+     *
+     * @return
+     */
+    public Long size() {
+        return redisTable.listOps().size(listKey);
+    }
+
+    /**
+     * 开始消费, 处理成功的元素会被确认, 处理抛出异常的元素重新加入队列
+     *
+     * @param handler
+     */
+    public synchronized void start(Consumer<String> handler) {
+        if (isRunning()) {
+            return;
+        }
+        lastHeartbeat = 0;
+        start("redis-helper-queue-" + queueKey(), handler);
+    }
+
+    /**
+     * 将心跳已过期的消费者的处理中元素移回队列
+     *
+     * @return 移回的元素数量
+     */
+    public long recover() {
+        String consumersKey = consumersKey();
+        Set<String> consumers = redisTable.getRedisTemplate().opsForSet().members(consumersKey);
+        if (consumers == null) {
+            return 0;
+        }
+
+        long recovered = 0;
+        for (String consumer : consumers) {
+            if (consumer.equals(consumerId) || Boolean.TRUE.equals(redisTable.getRedisTemplate().hasKey(heartbeatKey(consumer)))) {
+                continue;
+            }
+
+            recovered += requeue(processingKey(consumer));
+            redisTable.getRedisTemplate().opsForSet().remove(consumersKey, consumer);
+        }
+        return recovered;
+    }
+
+    @Override
+    protected void beforeFetch() {
+        if (System.currentTimeMillis() - lastHeartbeat >= heartbeatMillis) {
+            heartbeat();
+            recover();
+            lastHeartbeat = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 以pipeline批量执行 RPOPLPUSH, 队列为空时阻塞等待一个元素
+     */
+    @Override
+    protected List<String> fetch(int count) {
+        String queueKey = queueKey();
+        String processingKey = processingKey(consumerId);
+        List<Object> results = redisTable.getRedisTemplate().executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < count; i++) {
+                ((StringRedisConnection) connection).rPopLPush(queueKey, processingKey);
+            }
+            return null;
+        });
+        List<String> items = new ArrayList<>(count);
+        for (Object result : results) {
+            if (result != null) {
+                items.add((String) result);
+            }
+        }
+        if (items.isEmpty()) {
+            String item = redisTable.getRedisTemplate(ConnectionPool.Group.BLOCKING).opsForList().rightPopAndLeftPush(queueKey, processingKey, 1, TimeUnit.SECONDS);
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * 以pipeline批量确认处理完成的元素, 处理失败的元素重新加入队列
+     *
+     * 注：pipeline失败后整批重试, 已执行的 LPUSH 可能使失败的元素重复加入队列
+     */
+    @Override
+    protected void acknowledge(List<String> acked, List<String> failed) {
+        String queueKey = queueKey();
+        String processingKey = processingKey(consumerId);
+        redisTable.getRedisTemplate().executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String item : acked) {
+                conn.lRem(processingKey, -1, item);
+            }
+            for (String item : failed) {
+                conn.lPush(queueKey, item);
+                conn.lRem(processingKey, -1, item);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    protected void failed(String item, RuntimeException e) {
+        log.warn("Handle item of queue " + queueKey() + " failed, requeue it", e);
+        nack(item);
+    }
+
+    @Override
+    protected long closeTimeoutMillis() {
+        return heartbeatMillis;
+    }
+
+    @Override
+    protected void afterClose() {
+        redisTable.getRedisTemplate().delete(heartbeatKey(consumerId));
+    }
+
+    @Override
+    protected String description() {
+        return "queue " + queueKey();
+    }
+
+    private void heartbeat() {
+        String consumersKey = consumersKey();
+        String heartbeatKey = heartbeatKey(consumerId);
+        redisTable.getRedisTemplate().executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.sAdd(consumersKey, consumerId);
+            conn.pSetEx(heartbeatKey, heartbeatMillis * 3, String.valueOf(System.currentTimeMillis()));
+            return null;
+        });
+    }
+
+    /**
+     * 将处理中列表的元素全部移回队列
+     */
+    private long requeue(String key) {
+        String queueKey = queueKey();
+        long moved = 0;
+        while (true) {
+            List<Object> results = redisTable.getRedisTemplate().executePipelined((RedisCallback<Object>) connection -> {
+                for (int i = 0; i < prefetch; i++) {
+                    ((StringRedisConnection) connection).rPopLPush(key, queueKey);
+                }
+                return null;
+            });
+            long batch = results.stream().filter(r -> r != null).count();
+            moved += batch;
+            if (batch < prefetch) {
+                return moved;
+            }
+        }
+    }
+
+    /**
+     * 队列列表的key, 每次按表的当前代数生成, 截断表后使用新代数的key.
+     * 处理中列表、消费者集合及心跳key都以队列key为前缀, 与队列共用hash tag
+     */
+    private String queueKey() {
+        return redisTable.getTableKey() + listKey;
+    }
+
+    private String consumersKey() {
+        return queueKey() + Constants.KEY_SEPARATOR + "consumers";
+    }
+
+    private String processingKey(String consumer) {
+        return queueKey() + Constants.KEY_SEPARATOR + "processing" + Constants.KEY_SEPARATOR + consumer;
+    }
+
+    private String heartbeatKey(String consumer) {
+        return queueKey() + Constants.KEY_SEPARATOR + "heartbeat" + Constants.KEY_SEPARATOR + consumer;
+    }
+}
@@ -0,0 +1,518 @@
+package com.xiaotao.redis;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.data.redis.connection.DataType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * 表数据的导出、导入与复制
+ *
+ * 以SCAN遍历表前缀下的key, 每页以pipeline获取 DUMP 和 PTTL, 写入文件时只保存去掉表前缀的key,
+ * 导入时拼接目标表的前缀后以pipeline执行 RESTORE, 因此可以导入到其他数据库或其他名称的表.
+ * 文件格式为: 文件头(魔数、源表key、哈希表分桶数、有序集合分片数), 若干条记录(key长度、key、剩余毫秒数、数据长度、数据), 结束标记-1.
+ * 表之间的复制不经过文件, 每页key在线程池中直接 DUMP 后 RESTORE 到目标表
+ *
+ * @author wxt366@126.com
+ */
+class TableTransfer {
+    private static final Log log = LogFactory.getLog(TableTransfer.class);
+
+    private static final int MAGIC = 0x52485431;
+
+    /**
+     * 每页SCAN的key数量, 也是每个pipeline的大小
+     */
+    static final int BATCH_SIZE = 500;
+
+    /**
+     * 导入时每个pipeline的最大数据量
+     */
+    private static final int BATCH_BYTES = 8 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final int END = -1;
+
+    private final RedisTable redisTable;
+
+    TableTransfer(RedisTable redisTable) {
+        this.redisTable = redisTable;
+    }
+
+    /**
+     * 导出表中的全部key到文件
+     *
+     * @param path
+     * @return 导出的key数量
+     * @throws IOException
+     */
+    long exportTo(Path path) throws IOException {
+        String prefix = redisTable.getTableKey();
+        long[] count = new long[1];
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer writer = new Writer(channel);
+            writer.putInt(MAGIC);
+            writer.putBytes(prefix.getBytes(StandardCharsets.UTF_8));
+            writer.putInt(redisTable.getHashBuckets());
+            writer.putInt(redisTable.getZSetShards());
+
+            redisTable.getKeyRouter().scan(pattern(prefix), BATCH_SIZE, page -> {
+                for (Entry entry : fetch(page)) {
+                    try {
+                        writer.putBytes(entry.key.substring(prefix.length()).getBytes(StandardCharsets.UTF_8));
+                        writer.putLong(entry.ttl);
+                        writer.putBytes(entry.payload);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Export table " + prefix + " to " + path + " failed", e);
+                    }
+                    count[0]++;
+                }
+            });
+            writer.putInt(END);
+            writer.flush();
+        }
+        return count[0];
+    }
+
+    /**
+     * 从文件导入key, key的表前缀替换为本表的前缀
+     *
+     * @param path
+     * @param replace 是否覆盖已存在的key, 为false时已存在的key导致抛出异常
+     * @return 导入的key数量
+     * @throws IOException
+     */
+    long importFrom(Path path, boolean replace) throws IOException {
+        String prefix = redisTable.getTableKey();
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Reader reader = new Reader(channel);
+            if (reader.getInt() != MAGIC) {
+                throw new IllegalStateException(path + " is not a table export file");
+            }
+            String source = new String(reader.getBytes(), StandardCharsets.UTF_8);
+            int hashBuckets = reader.getInt();
+            int zSetShards = reader.getInt();
+            if (hashBuckets != redisTable.getHashBuckets() || zSetShards != redisTable.getZSetShards()) {
+                throw new IllegalStateException(String.format(
+                        "Table %s was exported with %d hash buckets and %d zset shards, but %s has %d and %d",
+                        source, hashBuckets, zSetShards, prefix, redisTable.getHashBuckets(), redisTable.getZSetShards()));
+            }
+
+            List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+            long batchBytes = 0;
+            int keyLength;
+            while ((keyLength = reader.getInt()) != END) {
+                String key = prefix + new String(reader.getBytes(keyLength), StandardCharsets.UTF_8);
+                long ttl = reader.getLong();
+                byte[] payload = reader.getBytes();
+                batch.add(new Entry(key, ttl, payload));
+                batchBytes += payload.length;
+                if (batch.size() >= BATCH_SIZE || batchBytes >= BATCH_BYTES) {
+                    count += restore(batch, replace);
+                    batch = new ArrayList<>(BATCH_SIZE);
+                    batchBytes = 0;
+                }
+            }
+            count += restore(batch, replace);
+        }
+        return count;
+    }
+
+    /**
+     * 复制表中的全部key到目标表, 目标表可以在其他连接工厂上. 迁移时在校验通过后删除源表中的key
+     *
+     * @param target
+     * @param options
+     * @param migrate 是否迁移
+     * @return 复制的key数量, 迁移时为删除的源表key数量
+     */
+    long copyTo(RedisTable target, TransferOptions options, boolean migrate) {
+        String prefix = redisTable.getTableKey();
+        if (prefix.equals(target.getTableKey())
+                && redisTable.getDatabase().getRedisConnectionFactory() == target.getDatabase().getRedisConnectionFactory()) {
+            throw new IllegalArgumentException("Can't copy table " + prefix + " to itself");
+        }
+        if (target.getHashBuckets() != redisTable.getHashBuckets() || target.getZSetShards() != redisTable.getZSetShards()) {
+            throw new IllegalStateException(String.format(
+                    "Table %s has %d hash buckets and %d zset shards, but %s has %d and %d", prefix,
+                    redisTable.getHashBuckets(), redisTable.getZSetShards(), target.getTableKey(),
+                    target.getHashBuckets(), target.getZSetShards()));
+        }
+
+        TableTransfer targetTransfer = new TableTransfer(target);
+        Throttle throttle = new Throttle(options.getMaxKeysPerSecond());
+        AtomicLong copied = new AtomicLong();
+        forEachPage(options, page -> {
+            throttle.acquire(page.size());
+            copied.addAndGet(targetTransfer.restore(remap(fetch(page), target), options.isReplace()));
+        });
+        if (!migrate && !options.isVerify()) {
+            return copied.get();
+        }
+
+        // 校验: 类型或元素数量不一致的key重新复制一次, 仍不一致的key(如持续写入中)迁移时保留在源表
+        AtomicLong mismatched = new AtomicLong();
+        AtomicLong unresolved = new AtomicLong();
+        AtomicLong deleted = new AtomicLong();
+        forEachPage(options, page -> {
+            throttle.acquire(page.size());
+            List<String> different = diff(page, target);
+            if (!different.isEmpty()) {
+                mismatched.addAndGet(different.size());
+                targetTransfer.restore(remap(fetch(different), target), true);
+                different = diff(different, target);
+                unresolved.addAndGet(different.size());
+            }
+            if (migrate) {
+                List<String> verified = new ArrayList<>(page);
+                verified.removeAll(different);
+                deleted.addAndGet(redisTable.getKeyRouter().unlink(verified));
+            }
+        });
+        if (mismatched.get() > 0) {
+            log.warn(String.format("Copy table %s to %s: %d keys were different after copy, %d still different after recopy",
+                    prefix, target.getTableKey(), mismatched.get(), unresolved.get()));
+        }
+        return migrate ? deleted.get() : copied.get();
+    }
+
+    /**
+     * 以pipeline获取一批key的 DUMP 和 PTTL, 跳过已经不存在的key
+     *
+     * @param keys 完整的存储key
+     * @return
+     */
+    List<Entry> fetch(List<String> keys) {
+        List<KeyRouter.NodeBatch> batches = redisTable.getKeyRouter().pipelineByNodeRaw(keys, (connection, slots) -> {
+            for (List<Integer> slot : slots) {
+                for (Integer index : slot) {
+                    byte[] key = keys.get(index).getBytes(StandardCharsets.UTF_8);
+                    connection.dump(key);
+                    connection.pTtl(key);
+                }
+            }
+        });
+
+        List<Entry> entries = new ArrayList<>(keys.size());
+        for (KeyRouter.NodeBatch batch : batches) {
+            int i = 0;
+            for (List<Integer> slot : batch.slots) {
+                for (Integer index : slot) {
+                    byte[] payload = (byte[]) batch.results.get(i++);
+                    Long ttl = (Long) batch.results.get(i++);
+                    if (payload == null || ttl == null || ttl == -2) {
+                        continue;
+                    }
+                    entries.add(new Entry(keys.get(index), ttl, payload));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * 以pipeline执行 RESTORE, 已过期的key跳过
+     *
+     * @param entries
+     * @param replace 是否覆盖已存在的key
+     * @return 写入的key数量
+     */
+    long restore(List<Entry> entries, boolean replace) {
+        List<String> keys = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            keys.add(entry.key);
+        }
+        if (keys.isEmpty()) {
+            return 0;
+        }
+
+        long[] restored = new long[1];
+        redisTable.getKeyRouter().pipelineByNodeRaw(keys, (connection, slots) -> {
+            for (List<Integer> slot : slots) {
+                for (Integer index : slot) {
+                    Entry entry = entries.get(index);
+                    if (entry.ttl == 0) {
+                        continue;
+                    }
+                    restore(connection, entry, replace);
+                    synchronized (restored) {
+                        restored[0]++;
+                    }
+                }
+            }
+        });
+        return restored[0];
+    }
+
+    private static void restore(StringRedisConnection connection, Entry entry, boolean replace) {
+        // RESTORE 的过期时间为0表示不过期
+        long ttl = entry.ttl < 0 ? 0 : entry.ttl;
+        connection.restore(entry.key.getBytes(StandardCharsets.UTF_8), ttl, entry.payload, replace);
+    }
+
+    /**
+     * 并发处理表中的每页key, 同时进行的页数不超过parallelism
+     */
+    private void forEachPage(TransferOptions options, Consumer<List<String>> task) {
+        redisTable.getKeyRouter().parallelScan(pattern(redisTable.getTableKey()), BATCH_SIZE, options.getParallelism(),
+                redisTable.getDatabase().getExecutor(), task);
+    }
+
+    private List<Entry> remap(List<Entry> entries, RedisTable target) {
+        int length = redisTable.getTableKey().length();
+        List<Entry> remapped = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            remapped.add(new Entry(target.getTableKey() + entry.key.substring(length), entry.ttl, entry.payload));
+        }
+        return remapped;
+    }
+
+    /**
+     * 返回源表与目标表中类型或元素数量不一致的key, 源表中已不存在的key不算不一致
+     */
+    private List<String> diff(List<String> keys, RedisTable target) {
+        int length = redisTable.getTableKey().length();
+        List<String> targetKeys = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            targetKeys.add(target.getTableKey() + key.substring(length));
+        }
+        List<String> sourceSizes = sizes(redisTable, keys);
+        List<String> targetSizes = sizes(target, targetKeys);
+
+        List<String> different = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (sourceSizes.get(i) != null && !sourceSizes.get(i).equals(targetSizes.get(i))) {
+                different.add(keys.get(i));
+            }
+        }
+        return different;
+    }
+
+    /**
+     * 每个key的"类型:元素数量", 不存在的key为null
+     */
+    private static List<String> sizes(RedisTable table, List<String> keys) {
+        KeyRouter keyRouter = table.getKeyRouter();
+        List<Object> types = keyRouter.pipelineEach(keys, StringRedisConnection::type);
+        Map<String, DataType> typeOf = new HashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            typeOf.put(keys.get(i), (DataType) types.get(i));
+        }
+        List<Object> sizes = keyRouter.pipelineEach(keys, (connection, key) -> {
+            switch (typeOf.get(key)) {
+                case STRING:
+                    connection.strLen(key);
+                    break;
+                case LIST:
+                    connection.lLen(key);
+                    break;
+                case SET:
+                    connection.sCard(key);
+                    break;
+                case ZSET:
+                    connection.zCard(key);
+                    break;
+                case HASH:
+                    connection.hLen(key);
+                    break;
+                case STREAM:
+                    connection.xLen(key);
+                    break;
+                default:
+                    connection.exists(key);
+            }
+        });
+
+        List<String> result = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            DataType type = (DataType) types.get(i);
+            result.add(type == null || type == DataType.NONE ? null : type.code() + ":" + sizes.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * 转义key前缀中的通配符, 作为SCAN的匹配模式
+     */
+    static String pattern(String prefix) {
+        StringBuilder pattern = new StringBuilder(prefix.length() + 1);
+        for (char c : prefix.toCharArray()) {
+            if (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') {
+                pattern.append('\\');
+            }
+            pattern.append(c);
+        }
+        return pattern.append('*').toString();
+    }
+
+    /**
+     * 一个key的序列化数据
+     */
+    static class Entry {
+        final String key;
+
+        /**
+         * 剩余毫秒数, -1表示不过期
+         */
+        final long ttl;
+
+        final byte[] payload;
+
+        Entry(String key, long ttl, byte[] payload) {
+            this.key = key;
+            this.ttl = ttl;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * 按每秒key数量限速
+     */
+    static class Throttle {
+        private final long keysPerSecond;
+
+        private long next;
+
+        Throttle(long keysPerSecond) {
+            this.keysPerSecond = keysPerSecond;
+        }
+
+        void acquire(int keys) {
+            if (keysPerSecond <= 0) {
+                return;
+            }
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                if (next - now < 0) {
+                    next = now;
+                }
+                wait = next - now;
+                next += TimeUnit.SECONDS.toNanos(keys) / keysPerSecond;
+            }
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    private static class Writer {
+        private final FileChannel channel;
+
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putInt(int value) throws IOException {
+            reserve(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            reserve(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        void putBytes(byte[] bytes) throws IOException {
+            putInt(bytes.length);
+            if (bytes.length > buffer.capacity()) {
+                flush();
+                ByteBuffer large = ByteBuffer.wrap(bytes);
+                while (large.hasRemaining()) {
+                    channel.write(large);
+                }
+                return;
+            }
+            reserve(bytes.length);
+            buffer.put(bytes);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void reserve(int length) throws IOException {
+            if (buffer.remaining() < length) {
+                flush();
+            }
+        }
+    }
+
+    private static class Reader {
+        private final FileChannel channel;
+
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        Reader(FileChannel channel) {
+            this.channel = channel;
+            buffer.flip();
+        }
+
+        int getInt() throws IOException {
+            require(Integer.BYTES);
+            return buffer.getInt();
+        }
+
+        long getLong() throws IOException {
+            require(Long.BYTES);
+            return buffer.getLong();
+        }
+
+        byte[] getBytes() throws IOException {
+            return getBytes(getInt());
+        }
+
+        byte[] getBytes(int length) throws IOException {
+            byte[] bytes = new byte[length];
+            int offset = Math.min(length, buffer.remaining());
+            buffer.get(bytes, 0, offset);
+            if (offset < length) {
+                ByteBuffer rest = ByteBuffer.wrap(bytes, offset, length - offset);
+                while (rest.hasRemaining()) {
+                    if (channel.read(rest) < 0) {
+                        throw new EOFException("Table export file is truncated");
+                    }
+                }
+            }
+            return bytes;
+        }
+
+        private void require(int length) throws IOException {
+            if (buffer.remaining() >= length) {
+                return;
+            }
+            buffer.compact();
+            while (buffer.position() < length) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Table export file is truncated");
+                }
+            }
+            buffer.flip();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.xiaotao.redis;
+
+/**
+ * 表复制与迁移的选项
+ *
+ * @author wxt366@126.com
+ */
+public class TransferOptions {
+    private int parallelism = 4;
+
+    private long maxKeysPerSecond;
+
+    private boolean replace = true;
+
+    private boolean verify = true;
+
+    private TransferOptions() {
+    }
+
+    /**
+     * 默认选项: 4个并发批次, 不限速, 覆盖目标表中已存在的key, 复制后校验
+     *
+     * @return
+     */
+    public static TransferOptions defaults() {
+        return new TransferOptions();
+    }
+
+    /**
+     * 设置同时进行的批次数, 每个批次为一页SCAN的key
+     *
+     * @param parallelism
+     * @return
+     */
+    public TransferOptions parallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be positive");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * 设置每秒最多复制的key数量, 0不限速
+     *
+     * @param maxKeysPerSecond
+     * @return
+     */
+    public TransferOptions maxKeysPerSecond(long maxKeysPerSecond) {
+        this.maxKeysPerSecond = maxKeysPerSecond;
+        return this;
+    }
+
+    /**
+     * 设置是否覆盖目标表中已存在的key, 为false时已存在的key导致抛出异常
+     *
+     * @param replace
+     * @return
+     */
+    public TransferOptions replace(boolean replace) {
+        this.replace = replace;
+        return this;
+    }
+
+    /**
+     * 设置复制后是否校验, 校验比较源表与目标表中每个key的类型和元素数量, 不一致的key重新复制.
+     * 迁移总是校验
+     *
+     * @param verify
+     * @return
+     */
+    public TransferOptions verify(boolean verify) {
+        this.verify = verify;
+        return this;
+    }
+
+    int getParallelism() {
+        return parallelism;
+    }
+
+    long getMaxKeysPerSecond() {
+        return maxKeysPerSecond;
+    }
+
+    boolean isReplace() {
+        return replace;
+    }
+
+    boolean isVerify() {
+        return verify;
+    }
+}
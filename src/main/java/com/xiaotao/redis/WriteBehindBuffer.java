@@ -0,0 +1,351 @@
+package com.xiaotao.redis;
+
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.types.Expiration;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 异步写缓冲
+ *
+ * 开启后 StringOperations.set 和 HashOperations.put 的写入先保存在本地, 同一key(字段)的多次写入只保留最后一次,
+ * 定时或待写入的数量达到批量大小时以pipeline批量写入Redis. 待写入数量达到上限时写入方阻塞等待, 超时抛出异常.
+ * 删除或直接覆盖key(字段)时丢弃其待写入的值, 其他直接读取或修改key的操作先写入该key待写入的值
+ *
+ * @author wxt366@126.com
+ */
+public class WriteBehindBuffer extends AbstractWriteBuffer {
+    /**
+     * String类型的值在 PendingValues 中的字段名
+     */
+    private static final String STRING_FIELD = "";
+
+    private final int batchSize;
+
+    private final int maxPendingKeys;
+
+    private volatile long maxBlockMillis = TimeUnit.SECONDS.toMillis(1);
+
+    /**
+     * 待写入的值按存储key分组, 同一存储key的修改都在 compute 中进行, 与计数保持一致
+     */
+    private final ConcurrentHashMap<String, PendingValues> pending = new ConcurrentHashMap<>();
+
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    private final Object drained = new Object();
+
+    private final LongAdder writes = new LongAdder();
+
+    private final LongAdder blocked = new LongAdder();
+
+    WriteBehindBuffer(RedisTable redisTable, long flushInterval, TimeUnit unit, int batchSize, int maxPendingKeys) {
+        super(redisTable, "write-behind", flushInterval, unit);
+        this.batchSize = batchSize;
+        this.maxPendingKeys = Math.max(maxPendingKeys, batchSize);
+    }
+
+    /**
+     * 设置待写入数量达到上限时写入方的最长等待时间
+     *
+     * @param timeout
+     * @param unit
+     */
+    public void setMaxBlock(long timeout, TimeUnit unit) {
+        this.maxBlockMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * 缓冲一次写入
+     *
+     * @param storeKey 存储key
+     * @param field    哈希表字段, String类型为null
+     * @param value
+     */
+    void put(String storeKey, String field, String value) {
+        checkOpen();
+        if (pendingCount.get() >= maxPendingKeys && get(storeKey, field) == null) {
+            awaitCapacity();
+        }
+
+        writes.increment();
+        pending.compute(storeKey, (k, values) -> {
+            PendingValues current = values == null ? new PendingValues(field != null) : values;
+            if (current.values.put(fieldOf(field), value) == null) {
+                pendingCount.incrementAndGet();
+            }
+            return current;
+        });
+        if (pendingCount.get() >= batchSize) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * 获取尚未写入Redis的值
+     *
+     * @param storeKey
+     * @param field
+     * @return 没有待写入的值时返回null
+     */
+    String get(String storeKey, String field) {
+        PendingValues values = pending.get(storeKey);
+        return values == null ? null : values.values.get(fieldOf(field));
+    }
+
+    /**
+     * 丢弃存储key中指定字段尚未写入的值, 直接写入或删除这些字段之前调用, 避免旧值之后覆盖Redis中的数据
+     *
+     * @param storeKey
+     * @param fields   哈希表字段, String类型传入 null
+     */
+    void discard(String storeKey, Collection<?> fields) {
+        if (!pending.containsKey(storeKey)) {
+            return;
+        }
+        // 持有刷新锁, 等待正在写入这些值的刷新完成
+        flush(() -> {
+            pending.computeIfPresent(storeKey, (k, values) -> {
+                for (Object field : fields) {
+                    if (values.values.remove(fieldOf((String) field)) != null) {
+                        pendingCount.decrementAndGet();
+                    }
+                }
+                return values.values.isEmpty() ? null : values;
+            });
+            return 0;
+        });
+        signalDrained();
+    }
+
+    /**
+     * 丢弃存储key尚未写入的全部值, 删除或整体覆盖key之前调用
+     *
+     * @param storeKeys
+     */
+    void discard(Collection<String> storeKeys) {
+        if (!containsAny(storeKeys)) {
+            return;
+        }
+        flush(() -> {
+            for (String storeKey : storeKeys) {
+                pending.computeIfPresent(storeKey, (k, values) -> {
+                    pendingCount.addAndGet(-values.values.size());
+                    return null;
+                });
+            }
+            return 0;
+        });
+        signalDrained();
+    }
+
+    /**
+     * 立即写入存储key尚未写入的值, 直接读取或修改key之前调用
+     *
+     * @param storeKeys
+     */
+    void flush(Collection<String> storeKeys) {
+        if (!containsAny(storeKeys)) {
+            return;
+        }
+        flush(() -> {
+            Map<String, PendingValues> batch = new LinkedHashMap<>();
+            for (String storeKey : storeKeys) {
+                PendingValues values = pending.get(storeKey);
+                if (values != null) {
+                    batch.put(storeKey, values.copy());
+                }
+            }
+            return writeAndRemove(batch);
+        });
+    }
+
+    private boolean containsAny(Collection<String> storeKeys) {
+        if (pending.isEmpty()) {
+            return false;
+        }
+        for (String storeKey : storeKeys) {
+            if (pending.containsKey(storeKey)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void awaitCapacity() {
+        blocked.increment();
+        requestFlush();
+        long deadline = System.currentTimeMillis() + maxBlockMillis;
+        synchronized (drained) {
+            while (pendingCount.get() >= maxPendingKeys && !isClosed()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IllegalStateException("Write-behind buffer of table " + redisTable.getTableKey()
+                            + " is full, Redis can't keep up with the writes");
+                }
+                try {
+                    drained.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for write-behind buffer", e);
+                }
+            }
+        }
+    }
+
+    private void signalDrained() {
+        synchronized (drained) {
+            drained.notifyAll();
+        }
+    }
+
+    @Override
+    protected long doFlush() {
+        long count = 0;
+        Map<String, PendingValues> batch = new LinkedHashMap<>();
+        int size = 0;
+        for (Map.Entry<String, PendingValues> entry : pending.entrySet()) {
+            PendingValues values = entry.getValue().copy();
+            if (values.values.isEmpty()) {
+                continue;
+            }
+            batch.put(entry.getKey(), values);
+            size += values.values.size();
+            if (size >= batchSize) {
+                count += writeAndRemove(batch);
+                batch = new LinkedHashMap<>();
+                size = 0;
+            }
+        }
+        if (!batch.isEmpty()) {
+            count += writeAndRemove(batch);
+        }
+        return count;
+    }
+
+    /**
+     * 写入一批值, 成功后移除其中未再被修改的值
+     */
+    private long writeAndRemove(Map<String, PendingValues> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        long count = write(batch);
+        for (Map.Entry<String, PendingValues> entry : batch.entrySet()) {
+            pending.computeIfPresent(entry.getKey(), (k, values) -> {
+                for (Map.Entry<String, String> written : entry.getValue().values.entrySet()) {
+                    if (values.values.remove(written.getKey(), written.getValue())) {
+                        pendingCount.decrementAndGet();
+                    }
+                }
+                return values.values.isEmpty() ? null : values;
+            });
+        }
+        signalDrained();
+        return count;
+    }
+
+    private long write(Map<String, PendingValues> batch) {
+        long expire = redisTable.getTableExpire();
+        if (expire <= 0) {
+            expire = redisTable.getAutoWindow();
+        }
+        long ttl = expire;
+
+        List<String> keys = new ArrayList<>(batch.keySet());
+        AtomicLong count = new AtomicLong();
+        redisTable.getKeyRouter().pipelineByNode(keys, (connection, slots) -> {
+            for (List<Integer> slot : slots) {
+                Map<String, String> values = new LinkedHashMap<>();
+                for (Integer index : slot) {
+                    String storeKey = keys.get(index);
+                    PendingValues pendingValues = batch.get(storeKey);
+                    if (pendingValues.hash) {
+                        connection.hMSet(storeKey, pendingValues.values);
+                        count.incrementAndGet();
+                    } else if (ttl > 0) {
+                        connection.set(storeKey, pendingValues.values.get(STRING_FIELD), Expiration.milliseconds(ttl),
+                                RedisStringCommands.SetOption.UPSERT);
+                        count.incrementAndGet();
+                    } else {
+                        values.put(storeKey, pendingValues.values.get(STRING_FIELD));
+                    }
+                }
+                if (!values.isEmpty()) {
+                    connection.mSetString(values);
+                    count.incrementAndGet();
+                }
+            }
+        });
+        return count.get();
+    }
+
+    /**
+     * 累计的写入调用次数
+     *
+     * @return
+     */
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    /**
+     * 合并比例, 即写入调用次数与写入命令数之比
+     *
+     * @return
+     */
+    public double getCoalescingRatio() {
+        long written = getCommands();
+        return written == 0 ? 0 : (double) writes.sum() / written;
+    }
+
+    /**
+     * 写入方因缓冲已满而等待的次数
+     *
+     * @return
+     */
+    public long getBlocked() {
+        return blocked.sum();
+    }
+
+    /**
+     * 当前待写入的数量
+     *
+     * @return
+     */
+    public int getPendingKeys() {
+        return pendingCount.get();
+    }
+
+    private static String fieldOf(String field) {
+        return field == null ? STRING_FIELD : field;
+    }
+
+    /**
+     * 一个存储key待写入的值: 哈希表为字段到值, String类型只有一个值
+     */
+    private static class PendingValues {
+        final boolean hash;
+
+        final Map<String, String> values = new ConcurrentHashMap<>();
+
+        PendingValues(boolean hash) {
+            this.hash = hash;
+        }
+
+        PendingValues copy() {
+            PendingValues copy = new PendingValues(hash);
+            copy.values.putAll(values);
+            return copy;
+        }
+    }
+}
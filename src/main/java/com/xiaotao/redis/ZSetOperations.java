@@ -1,22 +1,93 @@
 package com.xiaotao.redis;
 
+import com.xiaotao.redis.config.Constants;
+import org.springframework.data.redis.connection.DefaultStringTuple;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.StringRedisConnection.StringTuple;
 import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.DefaultTypedTuple;
 import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations.TypedTuple;
 
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
+ * 有序集合操作
+ *
+ * 表设置了分片数量(RedisTable.setZSetShards)时, 一个有序集合按成员拆分到多个分片key中存储,
+ * 范围查询并发读取各分片后在本地归并, 排名为各分片计数之和
+ *
  * @author wxt366@126.com
  */
 public class ZSetOperations extends BaseOperations {
+    private static final Comparator<TypedTuple<String>> ASC = Comparator
+            .comparing(TypedTuple<String>::getScore)
+            .thenComparing(TypedTuple::getValue, ZSetOperations::compareMembers);
+
+    private static final Comparator<TypedTuple<String>> DESC = ASC.reversed();
+
     public ZSetOperations(StringRedisTemplate redisTemplate, RedisTable redisTable) {
         super(redisTemplate, redisTable);
     }
 
+    @Override
+    protected List<String> getStoreKeys(String key) {
+        List<String> keys = new ArrayList<>(Buckets.bucketKeys(getStoreKey(key), redisTable.getZSetShards()));
+        if (redisTable.isVersionedZSet(key)) {
+            keys.add(versionKey(key));
+        }
+        return keys;
+    }
+
+    /**
+     * 获取排行榜, 排行榜在本地缓存前topN名的快照, 通过本表对该有序集合的修改会更新版本号使快照失效.
+     * 开启排行榜的有序集合登记在管理表中, 各实例(包括未创建排行榜的实例)的修改都会更新版本号
+     *
+     * @param key
+     * @param topN 本地缓存的名次数
+     * @return
+     */
+    public Leaderboard leaderboard(String key, int topN) {
+        redisTable.addVersionedZSet(key);
+        return new Leaderboard(this, redisTemplate, key, topN);
+    }
+
+    /**
+     * 有序集合的版本号key, 每次按表的当前代数生成
+     */
+    String versionKey(String key) {
+        return getStoreKey(key) + Constants.BUCKET_SEPARATOR + "version";
+    }
+
+    /**
+     * 开启了排行榜的有序集合修改后增加版本号
+     */
+    private void bumpVersion(String key) {
+        if (redisTable.isVersionedZSet(key)) {
+            redisTemplate.opsForValue().increment(versionKey(key));
+        }
+    }
+
     /**
      * 添加元素,有序集合是按照元素的score值由小到大排列
      *
@@ -26,9 +97,11 @@ public class ZSetOperations extends BaseOperations {
      * @return
      */
     public Boolean add(String key, String value, double score) {
-        String newKey = getStoreKey(key);
+        String newKey = shardKey(getStoreKey(key), value);
 
-        return redisTemplate.opsForZSet().add(newKey, value, score);
+        Boolean added = redisTemplate.opsForZSet().add(newKey, value, score);
+        bumpVersion(key);
+        return added;
     }
 
     /**
@@ -37,9 +110,24 @@ public class ZSetOperations extends BaseOperations {
      * @return
      */
     public Long add(String key, Set<TypedTuple<String>> values) {
-        String newKey = getStoreKey(key);
+        Long added = doAdd(key, values);
+        bumpVersion(key);
+        return added;
+    }
 
-        return redisTemplate.opsForZSet().add(newKey, values);
+    private Long doAdd(String key, Set<TypedTuple<String>> values) {
+        String newKey = getStoreKey(key);
+        if (!isSharded()) {
+            return redisTemplate.opsForZSet().add(newKey, values);
+        }
+
+        Map<String, Set<StringTuple>> groups = new LinkedHashMap<>();
+        for (TypedTuple<String> tuple : values) {
+            String value = tuple.getValue();
+            groups.computeIfAbsent(shardKey(newKey, value), k -> new LinkedHashSet<>())
+                    .add(new DefaultStringTuple(value.getBytes(StandardCharsets.UTF_8), value, tuple.getScore()));
+        }
+        return sum(pipelineEach(new ArrayList<>(groups.keySet()), (connection, shardKey) -> connection.zAdd(shardKey, groups.get(shardKey))));
     }
 
     /**
@@ -48,9 +136,23 @@ public class ZSetOperations extends BaseOperations {
      * @return
      */
     public Long remove(String key, Object... values) {
-        String newKey = getStoreKey(key);
+        Long removed = doRemove(key, values);
+        bumpVersion(key);
+        return removed;
+    }
 
-        return redisTemplate.opsForZSet().remove(newKey, values);
+    private Long doRemove(String key, Object... values) {
+        String newKey = getStoreKey(key);
+        if (!isSharded()) {
+            return redisTemplate.opsForZSet().remove(newKey, values);
+        }
+
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        for (Object value : values) {
+            groups.computeIfAbsent(shardKey(newKey, value), k -> new ArrayList<>()).add(String.valueOf(value));
+        }
+        return sum(pipelineEach(new ArrayList<>(groups.keySet()),
+                (connection, shardKey) -> connection.zRem(shardKey, groups.get(shardKey).toArray(new String[0]))));
     }
 
     /**
@@ -62,9 +164,11 @@ public class ZSetOperations extends BaseOperations {
      * @return
      */
     public Double incrementScore(String key, String value, double delta) {
-        String newKey = getStoreKey(key);
+        String newKey = shardKey(getStoreKey(key), value);
 
-        return redisTemplate.opsForZSet().incrementScore(newKey, value, delta);
+        Double score = redisTemplate.opsForZSet().incrementScore(newKey, value, delta);
+        bumpVersion(key);
+        return score;
     }
 
     /**
@@ -76,8 +180,11 @@ public class ZSetOperations extends BaseOperations {
      */
     public Long rank(String key, Object value) {
         String newKey = getStoreKey(key);
+        if (!isSharded()) {
+            return redisTemplate.opsForZSet().rank(newKey, value);
+        }
 
-        return redisTemplate.opsForZSet().rank(newKey, value);
+        return shardedRank(newKey, String.valueOf(value), false);
     }
 
     /**
@@ -89,8 +196,11 @@ public class ZSetOperations extends BaseOperations {
      */
     public Long reverseRank(String key, Object value) {
         String newKey = getStoreKey(key);
+        if (!isSharded()) {
+            return redisTemplate.opsForZSet().reverseRank(newKey, value);
+        }
 
-        return redisTemplate.opsForZSet().reverseRank(newKey, value);
+        return shardedRank(newKey, String.valueOf(value), true);
     }
 
     /**
@@ -103,8 +213,57 @@ public class ZSetOperations extends BaseOperations {
      */
     public Set<String> range(String key, long start, long end) {
         String newKey = getStoreKey(key);
+        if (!isSharded()) {
+            return redisTemplate.opsForZSet().range(newKey, start, end);
+        }
 
-        return redisTemplate.opsForZSet().range(newKey, start, end);
+        return values(shardedRange(newKey, start, end, false));
+    }
+
+    /**
+     * 以分段 ZRANGE 惰性迭代集合的全部元素及score, 从小到大排序, 内存中只保留一段;
+     * 分片存储时每个分片分段读取后逐个归并
+     *
+     * 注：遍历期间修改集合时元素可能重复或遗漏
+     *
+     * @param key
+     * @param pageSize  每段数量(分片存储时为每个分片的每段数量)
+     * @param readAhead 是否在线程池中预读下一段
+     * @return
+     */
+    public Iterator<TypedTuple<String>> rangeIterator(String key, int pageSize, boolean readAhead) {
+        PageIterator.checkPageSize(pageSize);
+        String newKey = getStoreKey(key);
+        Executor executor = readAhead ? redisTable.getDatabase().getExecutor() : null;
+        if (!isSharded()) {
+            return rangePages(newKey, pageSize, executor);
+        }
+
+        List<Iterator<TypedTuple<String>>> shards = new ArrayList<>();
+        for (String shardKey : shardKeys(newKey)) {
+            shards.add(rangePages(shardKey, pageSize, executor));
+        }
+        return new MergingIterator(shards);
+    }
+
+    /**
+     * 以分段 ZRANGE 惰性读取集合的全部元素及score, 从小到大排序
+     *
+     * @param key
+     * @param pageSize  每段数量
+     * @param readAhead 是否预读下一段
+     * @return
+     */
+    public Stream<TypedTuple<String>> rangeStream(String key, int pageSize, boolean readAhead) {
+        return PageIterator.stream(rangeIterator(key, pageSize, readAhead));
+    }
+
+    private Iterator<TypedTuple<String>> rangePages(String storeKey, int pageSize, Executor executor) {
+        return new PageIterator<>(0, offset -> {
+            Set<TypedTuple<String>> tuples = templateFor(ConnectionPool.Group.SCAN).opsForZSet().rangeWithScores(storeKey, offset, offset + pageSize - 1);
+            List<TypedTuple<String>> page = tuples == null ? new ArrayList<>() : new ArrayList<>(tuples);
+            return new PageIterator.Page<>(page, offset + page.size(), page.size() < pageSize);
+        }, executor);
     }
 
     /**
@@ -117,8 +276,11 @@ public class ZSetOperations extends BaseOperations {
      */
     public Set<TypedTuple<String>> rangeWithScores(String key, long start, long end) {
         String newKey = getStoreKey(key);
+        if (!isSharded()) {
+            return redisTemplate.opsForZSet().rangeWithScores(newKey, start, end);
+        }
 
-        return redisTemplate.opsForZSet().rangeWithScores(newKey, start, end);
+        return new LinkedHashSet<>(shardedRange(newKey, start, end, false));
     }
 
     /**
@@ -131,8 +293,12 @@ public class ZSetOperations extends BaseOperations {
      */
     public Set<String> rangeByScore(String key, double min, double max) {
         String newKey = getStoreKey(key);
+        if (!isSharded()) {
+            return redisTemplate.opsForZSet().rangeByScore(newKey, min, max);
+        }
 
-        return redisTemplate.opsForZSet().rangeByScore(newKey, min, max);
+        return values(merge(fetch(newKey, (connection, shardKey) -> connection.zRangeByScoreWithScores(shardKey, min, max)),
+                false, 0, -1));
     }
 
     /**
@@ -146,8 +312,12 @@ public class ZSetOperations extends BaseOperations {
     public Set<TypedTuple<String>> rangeByScoreWithScores(String key,
                                                           double min, double max) {
         String newKey = getStoreKey(key);
+        if (!isSharded()) {
+            return redisTemplate.opsForZSet().rangeByScoreWithScores(newKey, min, max);
+        }
 
-        return redisTemplate.opsForZSet().rangeByScoreWithScores(newKey, min, max);
+        return new LinkedHashSet<>(merge(fetch(newKey, (connection, shardKey) -> connection.zRangeByScoreWithScores(shardKey, min, max)),
+                false, 0, -1));
     }
 
     /**
@@ -162,9 +332,13 @@ public class ZSetOperations extends BaseOperations {
                                                           double min, double max,
                                                           long start, long end) {
         String newKey = getStoreKey(key);
+        if (!isSharded()) {
+            return redisTemplate.opsForZSet().rangeByScoreWithScores(newKey, min, max,
+                                                                     start, end);
+        }
 
-        return redisTemplate.opsForZSet().rangeByScoreWithScores(newKey, min, max,
-                                                                 start, end);
+        return new LinkedHashSet<>(merge(fetch(newKey, (connection, shardKey) -> connection.zRangeByScoreWithScores(shardKey, min, max, 0, start + end)),
+                false, start, end));
     }
 
     /**
@@ -177,7 +351,11 @@ public class ZSetOperations extends BaseOperations {
      */
     public Set<String> reverseRange(String key, long start, long end) {
         String newKey = getStoreKey(key);
-        return redisTemplate.opsForZSet().reverseRange(newKey, start, end);
+        if (!isSharded()) {
+            return redisTemplate.opsForZSet().reverseRange(newKey, start, end);
+        }
+
+        return values(shardedRange(newKey, start, end, true));
     }
 
     /**
@@ -191,8 +369,12 @@ public class ZSetOperations extends BaseOperations {
     public Set<TypedTuple<String>> reverseRangeWithScores(String key,
                                                           long start, long end) {
         String newKey = getStoreKey(key);
-        return redisTemplate.opsForZSet().reverseRangeWithScores(newKey, start,
-                                                                 end);
+        if (!isSharded()) {
+            return redisTemplate.opsForZSet().reverseRangeWithScores(newKey, start,
+                                                                     end);
+        }
+
+        return new LinkedHashSet<>(shardedRange(newKey, start, end, true));
     }
 
     /**
@@ -206,7 +388,12 @@ public class ZSetOperations extends BaseOperations {
     public Set<String> reverseRangeByScore(String key,
                                            double min, double max) {
         String newKey = getStoreKey(key);
-        return redisTemplate.opsForZSet().reverseRangeByScore(newKey, min, max);
+        if (!isSharded()) {
+            return redisTemplate.opsForZSet().reverseRangeByScore(newKey, min, max);
+        }
+
+        return values(merge(fetch(newKey, (connection, shardKey) -> connection.zRevRangeByScoreWithScores(shardKey, min, max)),
+                true, 0, -1));
     }
 
     /**
@@ -220,7 +407,12 @@ public class ZSetOperations extends BaseOperations {
     public Set<TypedTuple<String>> reverseRangeByScoreWithScores(
             String key, double min, double max) {
         String newKey = getStoreKey(key);
-        return redisTemplate.opsForZSet().reverseRangeByScoreWithScores(newKey, min, max);
+        if (!isSharded()) {
+            return redisTemplate.opsForZSet().reverseRangeByScoreWithScores(newKey, min, max);
+        }
+
+        return new LinkedHashSet<>(merge(fetch(newKey, (connection, shardKey) -> connection.zRevRangeByScoreWithScores(shardKey, min, max)),
+                true, 0, -1));
     }
 
     /**
@@ -235,7 +427,12 @@ public class ZSetOperations extends BaseOperations {
                                            double min, double max,
                                            long start, long end) {
         String newKey = getStoreKey(key);
-        return redisTemplate.opsForZSet().reverseRangeByScore(newKey, min, max, start, end);
+        if (!isSharded()) {
+            return redisTemplate.opsForZSet().reverseRangeByScore(newKey, min, max, start, end);
+        }
+
+        return values(merge(fetch(newKey, (connection, shardKey) -> connection.zRevRangeByScoreWithScores(shardKey, min, max, 0, start + end)),
+                true, start, end));
     }
 
     /**
@@ -248,7 +445,11 @@ public class ZSetOperations extends BaseOperations {
      */
     public Long count(String key, double min, double max) {
         String newKey = getStoreKey(key);
-        return redisTemplate.opsForZSet().count(newKey, min, max);
+        if (!isSharded()) {
+            return redisTemplate.opsForZSet().count(newKey, min, max);
+        }
+
+        return sum(pipelineEach(shardKeys(newKey), (connection, shardKey) -> connection.zCount(shardKey, min, max)));
     }
 
     /**
@@ -258,8 +459,7 @@ public class ZSetOperations extends BaseOperations {
      * @return
      */
     public Long size(String key) {
-        String newKey = getStoreKey(key);
-        return redisTemplate.opsForZSet().size(newKey);
+        return zCard(key);
     }
 
     /**
@@ -270,7 +470,11 @@ public class ZSetOperations extends BaseOperations {
      */
     public Long zCard(String key) {
         String newKey = getStoreKey(key);
-        return redisTemplate.opsForZSet().zCard(newKey);
+        if (!isSharded()) {
+            return redisTemplate.opsForZSet().zCard(newKey);
+        }
+
+        return sum(pipelineEach(shardKeys(newKey), StringRedisConnection::zCard));
     }
 
     /**
@@ -281,7 +485,7 @@ public class ZSetOperations extends BaseOperations {
      * @return
      */
     public Double score(String key, Object value) {
-        String newKey = getStoreKey(key);
+        String newKey = shardKey(getStoreKey(key), value);
         return redisTemplate.opsForZSet().score(newKey, value);
     }
 
@@ -295,7 +499,17 @@ public class ZSetOperations extends BaseOperations {
      */
     public Long removeRange(String key, long start, long end) {
         String newKey = getStoreKey(key);
-        return redisTemplate.opsForZSet().removeRange(newKey, start, end);
+        if (!isSharded()) {
+            Long removed = redisTemplate.opsForZSet().removeRange(newKey, start, end);
+            bumpVersion(key);
+            return removed;
+        }
+
+        List<TypedTuple<String>> members = shardedRange(newKey, start, end, false);
+        if (members.isEmpty()) {
+            return 0L;
+        }
+        return remove(key, members.stream().map(TypedTuple::getValue).toArray());
     }
 
     /**
@@ -308,7 +522,14 @@ public class ZSetOperations extends BaseOperations {
      */
     public Long removeRangeByScore(String key, double min, double max) {
         String newKey = getStoreKey(key);
-        return redisTemplate.opsForZSet().removeRangeByScore(newKey, min, max);
+        Long removed;
+        if (!isSharded()) {
+            removed = redisTemplate.opsForZSet().removeRangeByScore(newKey, min, max);
+        } else {
+            removed = sum(pipelineEach(shardKeys(newKey), (connection, shardKey) -> connection.zRemRangeByScore(shardKey, min, max)));
+        }
+        bumpVersion(key);
+        return removed;
     }
 
     /**
@@ -320,8 +541,7 @@ public class ZSetOperations extends BaseOperations {
      * @return
      */
     public Long unionAndStore(String key, String otherKey, String destKey) {
-        String newKey = getStoreKey(key);
-        return redisTemplate.opsForZSet().unionAndStore(key, otherKey, destKey);
+        return unionAndStore(key, Collections.singletonList(otherKey), destKey);
     }
 
     /**
@@ -335,8 +555,15 @@ public class ZSetOperations extends BaseOperations {
         String newKey = getStoreKey(key);
         String newDestKey = getStoreKey(destKey);
         Collection<String> newOtherKeys = otherKeys.parallelStream().map(this::getStoreKey).collect(Collectors.toList());
-        return redisTemplate.opsForZSet()
-                .unionAndStore(newKey, newOtherKeys, newDestKey);
+        Long stored;
+        if (!isSharded()) {
+            stored = redisTemplate.opsForZSet()
+                    .unionAndStore(newKey, newOtherKeys, newDestKey);
+        } else {
+            stored = storeByShard(newKey, newOtherKeys, newDestKey, StringRedisConnection::zUnionStore);
+        }
+        bumpVersion(destKey);
+        return stored;
     }
 
     /**
@@ -349,10 +576,7 @@ public class ZSetOperations extends BaseOperations {
      */
     public Long intersectAndStore(String key, String otherKey,
                                   String destKey) {
-        String newKey = getStoreKey(key);
-        String newOtherKey = getStoreKey(otherKey);
-        String newDestKey = getStoreKey(destKey);
-        return redisTemplate.opsForZSet().intersectAndStore(newKey, newOtherKey, newDestKey);
+        return intersectAndStore(key, Collections.singletonList(otherKey), destKey);
     }
 
     /**
@@ -368,8 +592,14 @@ public class ZSetOperations extends BaseOperations {
         String newKey = getStoreKey(key);
         String newDestKey = getStoreKey(destKey);
         Collection<String> newOtherKeys = otherKeys.parallelStream().map(this::getStoreKey).collect(Collectors.toList());
-
-        return redisTemplate.opsForZSet().intersectAndStore(newKey, newOtherKeys, newDestKey);
+        Long stored;
+        if (!isSharded()) {
+            stored = redisTemplate.opsForZSet().intersectAndStore(newKey, newOtherKeys, newDestKey);
+        } else {
+            stored = storeByShard(newKey, newOtherKeys, newDestKey, StringRedisConnection::zInterStore);
+        }
+        bumpVersion(destKey);
+        return stored;
     }
 
     /**
@@ -379,6 +609,244 @@ public class ZSetOperations extends BaseOperations {
      */
     public Cursor<TypedTuple<String>> scan(String key, ScanOptions options) {
         String newKey = getStoreKey(key);
-        return redisTemplate.opsForZSet().scan(newKey, options);
+        if (!isSharded()) {
+            return redisTemplate.opsForZSet().scan(newKey, options);
+        }
+
+        List<Supplier<Cursor<TypedTuple<String>>>> cursors = new ArrayList<>();
+        for (String shardKey : shardKeys(newKey)) {
+            cursors.add(() -> redisTemplate.opsForZSet().scan(shardKey, options));
+        }
+        return new CompositeCursor<>(cursors);
+    }
+
+    private boolean isSharded() {
+        return redisTable.getZSetShards() > 1;
+    }
+
+    private String shardKey(String newKey, Object member) {
+        return Buckets.keyOf(newKey, member, redisTable.getZSetShards());
+    }
+
+    private List<String> shardKeys(String newKey) {
+        return Buckets.bucketKeys(newKey, redisTable.getZSetShards());
+    }
+
+    private List<Object> pipelineEach(List<String> shardKeys, BiConsumer<StringRedisConnection, String> command) {
+        return redisTable.getKeyRouter().pipelineEach(shardKeys, command);
+    }
+
+    /**
+     * 按下标查询, 每个分片取前end+1个元素后归并
+     */
+    private List<TypedTuple<String>> shardedRange(String newKey, long start, long end, boolean reverse) {
+        if (start < 0 || end < 0) {
+            long size = sum(pipelineEach(shardKeys(newKey), StringRedisConnection::zCard));
+            start = start < 0 ? Math.max(size + start, 0) : start;
+            end = end < 0 ? size + end : end;
+        }
+        if (end < start) {
+            return Collections.emptyList();
+        }
+
+        long last = end;
+        List<List<TypedTuple<String>>> shards = fetch(newKey, (connection, shardKey) -> {
+            if (reverse) {
+                connection.zRevRangeWithScores(shardKey, 0, last);
+            } else {
+                connection.zRangeWithScores(shardKey, 0, last);
+            }
+        });
+        return merge(shards, reverse, start, end - start + 1);
+    }
+
+    /**
+     * 排名为各分片中排在该元素之前的元素数量之和, score相同时按成员的二进制字节排列
+     */
+    private Long shardedRank(String newKey, String value, boolean reverse) {
+        Double score = redisTemplate.opsForZSet().score(shardKey(newKey, value), value);
+        if (score == null) {
+            return null;
+        }
+
+        RedisZSetCommands.Range before = reverse
+                ? RedisZSetCommands.Range.range().gt(score)
+                : RedisZSetCommands.Range.range().lt(score);
+        List<String> shardKeys = shardKeys(newKey);
+        List<Object> results = redisTable.getKeyRouter().pipelineByNode(shardKeys, (connection, slots) -> {
+            for (List<Integer> slot : slots) {
+                for (Integer index : slot) {
+                    byte[] rawKey = shardKeys.get(index).getBytes(StandardCharsets.UTF_8);
+                    connection.zCount(rawKey, before);
+                    connection.zRangeByScore(shardKeys.get(index), score, score);
+                }
+            }
+        }).stream().flatMap(batch -> batch.results.stream()).collect(Collectors.toList());
+
+        long rank = 0;
+        for (int i = 0; i < results.size(); i += 2) {
+            rank += (Long) results.get(i);
+            for (Object tie : (Collection<?>) results.get(i + 1)) {
+                int compare = compareMembers(String.valueOf(tie), value);
+                if (reverse ? compare > 0 : compare < 0) {
+                    rank++;
+                }
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * score相同时Redis按成员的二进制字节排序, 与String.compareTo(UTF-16)在增补字符等情况下不一致
+     */
+    static int compareMembers(String a, String b) {
+        byte[] x = a.getBytes(StandardCharsets.UTF_8);
+        byte[] y = b.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < Math.min(x.length, y.length); i++) {
+            int compare = Integer.compare(x[i] & 0xff, y[i] & 0xff);
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return Integer.compare(x.length, y.length);
+    }
+
+    /**
+     * 并发查询每个分片, 返回各分片的有序结果
+     */
+    private List<List<TypedTuple<String>>> fetch(String newKey, BiConsumer<StringRedisConnection, String> command) {
+        List<List<TypedTuple<String>>> shards = new ArrayList<>();
+        for (Object result : pipelineEach(shardKeys(newKey), command)) {
+            List<TypedTuple<String>> tuples = new ArrayList<>();
+            if (result != null) {
+                for (Object tuple : (Collection<?>) result) {
+                    tuples.add(toTypedTuple(tuple));
+                }
+            }
+            shards.add(tuples);
+        }
+        return shards;
+    }
+
+    /**
+     * 多路归并各分片的有序结果, 跳过前offset个, 最多返回count个, count小于0时返回全部
+     */
+    private static List<TypedTuple<String>> merge(List<List<TypedTuple<String>>> shards, boolean reverse,
+                                                  long offset, long count) {
+        Comparator<TypedTuple<String>> comparator = reverse ? DESC : ASC;
+        PriorityQueue<int[]> heads = new PriorityQueue<>(Math.max(shards.size(), 1),
+                (a, b) -> comparator.compare(shards.get(a[0]).get(a[1]), shards.get(b[0]).get(b[1])));
+        for (int i = 0; i < shards.size(); i++) {
+            if (!shards.get(i).isEmpty()) {
+                heads.add(new int[]{i, 0});
+            }
+        }
+
+        List<TypedTuple<String>> merged = new ArrayList<>();
+        long skipped = 0;
+        while (!heads.isEmpty() && (count < 0 || merged.size() < count)) {
+            int[] head = heads.poll();
+            List<TypedTuple<String>> shard = shards.get(head[0]);
+            if (skipped < offset) {
+                skipped++;
+            } else {
+                merged.add(shard.get(head[1]));
+            }
+            if (++head[1] < shard.size()) {
+                heads.add(head);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * 各个有序集合的成员分片方式相同, 按分片分别求并集/交集
+     */
+    private Long storeByShard(String newKey, Collection<String> newOtherKeys, String newDestKey,
+                              StoreCommand command) {
+        int shards = redisTable.getZSetShards();
+        List<String> destKeys = Buckets.bucketKeys(newDestKey, shards);
+        return sum(pipelineEach(destKeys, (connection, destKey) -> {
+            int shard = destKeys.indexOf(destKey);
+            List<String> sources = new ArrayList<>();
+            sources.add(Buckets.bucketKey(newKey, shards, shard));
+            for (String otherKey : newOtherKeys) {
+                sources.add(Buckets.bucketKey(otherKey, shards, shard));
+            }
+            command.store(connection, destKey, sources.toArray(new String[0]));
+        }));
+    }
+
+    private static TypedTuple<String> toTypedTuple(Object tuple) {
+        if (tuple instanceof StringTuple) {
+            StringTuple stringTuple = (StringTuple) tuple;
+            return new DefaultTypedTuple<>(stringTuple.getValueAsString(), stringTuple.getScore());
+        }
+        if (tuple instanceof RedisZSetCommands.Tuple) {
+            RedisZSetCommands.Tuple rawTuple = (RedisZSetCommands.Tuple) tuple;
+            return new DefaultTypedTuple<>(new String(rawTuple.getValue(), StandardCharsets.UTF_8), rawTuple.getScore());
+        }
+        @SuppressWarnings("unchecked")
+        TypedTuple<String> typedTuple = (TypedTuple<String>) tuple;
+        return typedTuple;
+    }
+
+    private static Set<String> values(List<TypedTuple<String>> tuples) {
+        Set<String> values = new LinkedHashSet<>(tuples.size());
+        for (TypedTuple<String> tuple : tuples) {
+            values.add(tuple.getValue());
+        }
+        return values;
+    }
+
+    private static Long sum(List<Object> results) {
+        long sum = 0;
+        for (Object result : results) {
+            sum += result == null ? 0 : ((Number) result).longValue();
+        }
+        return sum;
+    }
+
+    @FunctionalInterface
+    private interface StoreCommand {
+        Long store(StringRedisConnection connection, String destKey, String... sets);
+    }
+
+    /**
+     * 按score归并多个已排序的分片迭代器
+     */
+    private static class MergingIterator implements Iterator<TypedTuple<String>> {
+        private final List<Iterator<TypedTuple<String>>> shards;
+
+        private final PriorityQueue<Map.Entry<TypedTuple<String>, Integer>> heads =
+                new PriorityQueue<>((a, b) -> ASC.compare(a.getKey(), b.getKey()));
+
+        MergingIterator(List<Iterator<TypedTuple<String>>> shards) {
+            this.shards = shards;
+            for (int i = 0; i < shards.size(); i++) {
+                pull(i);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public TypedTuple<String> next() {
+            Map.Entry<TypedTuple<String>, Integer> head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            pull(head.getValue());
+            return head.getKey();
+        }
+
+        private void pull(int shard) {
+            if (shards.get(shard).hasNext()) {
+                heads.add(new AbstractMap.SimpleImmutableEntry<>(shards.get(shard).next(), shard));
+            }
+        }
     }
 }
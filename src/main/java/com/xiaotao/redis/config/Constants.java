@@ -19,6 +19,41 @@ public class Constants {
      */
     public static final String AUTO_WINDOWS_TABLE = "awt";
 
+    /**
+     * 哈希表分桶管理表
+     */
+    public static final String HASH_BUCKETS_TABLE = "hbt";
+
+    /**
+     * 有序集合分片管理表
+     */
+    public static final String ZSET_SHARDS_TABLE = "zst";
+
+    /**
+     * 哈希表索引管理表
+     */
+    public static final String HASH_INDEXES_TABLE = "hit";
+
+    /**
+     * 排行榜管理表, 开启了排行榜、修改时需增加版本号的有序集合
+     */
+    public static final String LEADERBOARD_TABLE = "lbt";
+
+    /**
+     * 表ID目录, 紧凑布局下数据库名和表名到数字ID的映射
+     */
+    public static final String TABLE_ID_TABLE = "tid";
+
+    /**
+     * 表的代数管理表, 截断表时代数加1
+     */
+    public static final String GENERATION_TABLE = "gen";
+
+    /**
+     * 分桶key的分隔符
+     */
+    public static final String BUCKET_SEPARATOR = "#";
+
     /**
      * Key的分隔符
      */
@@ -0,0 +1,91 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.BitFieldSubCommands.BitFieldIncrBy.Overflow;
+import org.springframework.data.redis.connection.BitFieldSubCommands.BitFieldType;
+import org.springframework.data.redis.connection.RedisStringCommands.BitOperation;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BitfieldOperationsTest extends RedisTestSupport {
+    private static final BitFieldType U4 = BitFieldType.unsigned(4);
+
+    @Test
+    void setGetAndIncrement() throws ParameterException {
+        BitfieldOperations ops = database.createTable("bits").bitfieldOps();
+        assertEquals(Long.valueOf(0), ops.set("b", U4, 3, 9));
+        assertEquals(Long.valueOf(9), ops.set("b", U4, 3, 7));
+        assertEquals(Arrays.asList(0L, 7L, 0L), ops.get("b", U4, 2, 3, 4));
+
+        // 4位无符号数: 15+1 回绕为0, SAT 停在15, FAIL 不修改
+        assertEquals(Long.valueOf(15), ops.increment("b", U4, 0, 15));
+        assertEquals(Long.valueOf(0), ops.increment("b", U4, 0, 1));
+        assertEquals(Long.valueOf(15), ops.increment("b", U4, 1, 20, Overflow.SAT));
+        assertNull(ops.increment("b", U4, 1, 1, Overflow.FAIL));
+        assertEquals(Long.valueOf(15), ops.get("b", U4, 1));
+
+        // 下标3的值7位于第2个字节的低4位
+        assertEquals(Long.valueOf(7), ops.bitCount("b"));
+        assertEquals(Long.valueOf(3), ops.bitCount("b", 1, 1));
+        assertEquals(Long.valueOf(4), ops.bitPos("b", true));
+        assertEquals(Long.valueOf(13), ops.bitPos("b", true, 1, 1));
+    }
+
+    @Test
+    void failedIncrementsKeepPositions() throws ParameterException {
+        BitfieldOperations ops = database.createTable("bits").bitfieldOps();
+        BitFieldType i8 = BitFieldType.signed(8);
+        ops.set("b", i8, 1, 120);
+        ops.set("b", i8, 3, -120);
+        Map<Long, Long> deltas = new LinkedHashMap<>();
+        deltas.put(0L, 5L);
+        deltas.put(1L, 10L);
+        deltas.put(2L, -3L);
+        deltas.put(3L, -10L);
+        deltas.put(4L, 127L);
+
+        assertEquals(Arrays.asList(5L, null, -3L, null, 127L), ops.increment("b", i8, deltas, Overflow.FAIL));
+        assertEquals(Arrays.asList(5L, 120L, -3L, -120L, 127L), ops.get("b", i8, 0, 1, 2, 3, 4));
+    }
+
+    @Test
+    void batchesOverSubCommandLimit()throws ParameterException {
+        BitfieldOperations ops = database.createTable("bits").bitfieldOps();
+        Map<Long, Long> deltas = new LinkedHashMap<>();
+        long[] indexes = new long[1200];
+        for (int i = 0; i < 1200; i++) {
+            deltas.put((long) i, (long) (i % 200));
+            indexes[i] = i;
+        }
+
+        List<Long> results = ops.increment("counters", BitFieldType.unsigned(8), deltas, Overflow.WRAP);
+        assertEquals(1200, results.size());
+        assertEquals(Long.valueOf(199), results.get(1199));
+
+        List<Long> values = ops.get("counters", BitFieldType.unsigned(8), indexes);
+        for (int i = 0; i < 1200; i++) {
+            assertEquals(Long.valueOf(i % 200), values.get(i));
+        }
+        assertTrue(ops.get("counters", BitFieldType.unsigned(8)).isEmpty());
+    }
+
+    @Test
+    void bitOpAcrossKeys() throws ParameterException {
+        BitfieldOperations ops = database.createTable("bits").bitfieldOps();
+        ops.set("x", BitFieldType.unsigned(8), 0, 0b1100);
+        ops.set("y", BitFieldType.unsigned(8), 0, 0b1010);
+
+        assertEquals(Long.valueOf(1), ops.bitOp(BitOperation.AND, "and", Arrays.asList("x", "y")));
+        assertEquals(Long.valueOf(0b1000), ops.get("and", BitFieldType.unsigned(8), 0));
+        ops.bitOp(BitOperation.XOR, "xor", Arrays.asList("x", "y"));
+        assertEquals(Long.valueOf(0b0110), ops.get("xor", BitFieldType.unsigned(8), 0));
+    }
+}
@@ -0,0 +1,35 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BlockingPopManagerTest extends RedisTestSupport {
+    @Test
+    void pushBackWhenExecutorRejects() throws ParameterException, InterruptedException {
+        RedisTable table = database.createTable("jobs");
+        BlockingPopManager manager = database.createBlockingPopManager(1);
+        try {
+            manager.setExecutor(command -> {
+                throw new RejectedExecutionException("busy");
+            });
+            BlockingQueue<String> received = new LinkedBlockingQueue<>();
+            manager.register(table, "queue", received::add);
+            table.listOps().rightPush("queue", "job:1");
+
+            Thread.sleep(500);
+            assertEquals(Long.valueOf(1), table.listOps().size("queue"));
+
+            manager.setExecutor(Runnable::run);
+            assertEquals("job:1", received.poll(5, TimeUnit.SECONDS));
+        } finally {
+            manager.close();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.RedisCallback;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BloomOperationsTest extends RedisTestSupport {
+    @Test
+    void createOnlyOnce() throws ParameterException {
+        BloomOperations bloom = database.createTable("bloom").bloomOps();
+        assertTrue(bloom.create("f", 100, 0.01));
+        assertFalse(bloom.create("f", 200, 0.001));
+        assertEquals("100", redisTemplate.opsForHash().get(bloom.getStoreKey("f"), "capacity"));
+    }
+
+    @Test
+    void readdAfterGrowthKeepsNewLayerClean() throws ParameterException {
+        BloomOperations bloom = database.createTable("bloom").bloomOps();
+        bloom.create("f", 10, 0.01);
+        List<String> items = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            items.add("item" + i);
+        }
+        assertFalse(bloom.addAll("f", items).contains(false));
+        assertEquals("2", redisTemplate.opsForHash().get(bloom.getStoreKey("f"), "filters"));
+
+        assertFalse(bloom.addAll("f", items).contains(true));
+        assertEquals(10L, bloom.count("f"));
+        assertEquals(0L, redisTemplate.execute((RedisCallback<Long>) connection ->
+                connection.bitCount((bloom.getStoreKey("f") + "#1").getBytes())));
+        assertTrue(bloom.mightContain("f", "item0"));
+    }
+
+    @Test
+    void otherInstanceSeesGrowth() throws ParameterException {
+        BloomOperations bloom = database.createTable("bloom").bloomOps();
+        BloomOperations other = new RedisDatabase("test", database.getRedisConnectionFactory()).createTable("bloom").bloomOps();
+        bloom.create("f", 2, 0.01);
+        assertTrue(other.add("f", "a"));
+        bloom.addAll("f", Arrays.asList("b", "c"));
+        assertFalse(other.add("f", "c"));
+        assertTrue(other.add("f", "d"));
+        assertEquals(4L, bloom.count("f"));
+    }
+}
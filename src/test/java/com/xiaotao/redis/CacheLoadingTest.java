@@ -0,0 +1,68 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class CacheLoadingTest extends RedisTestSupport {
+    @Test
+    void plainReadsReturnCachedValue() throws ParameterException {
+        StringOperations ops = database.createTable("cache").valueOps();
+        AtomicInteger loads = new AtomicInteger();
+        assertEquals("v", ops.getOrLoad("k", () -> {
+            loads.incrementAndGet();
+            return "v";
+        }, 1, TimeUnit.MINUTES));
+        assertEquals("v", ops.getOrLoad("k", () -> {
+            loads.incrementAndGet();
+            return "other";
+        }, 1, TimeUnit.MINUTES));
+        assertEquals(1, loads.get());
+
+        assertEquals("v", ops.get("k"));
+        ops.set("plain", "p");
+        assertEquals(Arrays.asList("v", "p", null), ops.multiGet(Arrays.asList("k", "plain", "missing")));
+        assertEquals("v", ops.getAndSet("k", "w"));
+        assertEquals("w", ops.get("k"));
+    }
+
+    @Test
+    void nullValueIsCachedButNotReturned() throws ParameterException {
+        StringOperations ops = database.createTable("cache").valueOps();
+        AtomicInteger loads = new AtomicInteger();
+        for (int i = 0; i < 2; i++) {
+            assertNull(ops.getOrLoad("k", () -> {
+                loads.incrementAndGet();
+                return null;
+            }, LoadOptions.ttl(1, TimeUnit.MINUTES).negativeTtl(1, TimeUnit.MINUTES)));
+        }
+        assertEquals(1, loads.get());
+        assertNull(ops.get("k"));
+    }
+
+    @Test
+    void hashReadsReturnCachedValue() throws ParameterException {
+        HashOperations ops = database.createTable("cache").hashOps();
+        assertEquals("v", ops.getOrLoad("h", "f", () -> "v", LoadOptions.ttl(1, TimeUnit.MINUTES)));
+        assertNull(ops.getOrLoad("h", "none", () -> null, LoadOptions.ttl(1, TimeUnit.MINUTES).negativeTtl(1, TimeUnit.MINUTES)));
+        ops.put("h", "plain", "p");
+
+        assertEquals("v", ops.get("h", "f"));
+        assertNull(ops.get("h", "none"));
+        assertEquals(Arrays.asList("v", null, "p"), ops.multiGet("h", Arrays.asList("f", "none", "plain")));
+        assertEquals(2, ops.getAll("h").size());
+        assertEquals("v", ops.getAll("h").get("f"));
+        assertEquals(Collections.singletonList("v"), ops.getAllStream("h", 10, false)
+                .filter(e -> e.getKey().equals("f")).map(Map.Entry::getValue).collect(Collectors.toList()));
+        assertEquals(2, ops.values("h").size());
+    }
+}
@@ -0,0 +1,50 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompactKeysTest extends RedisTestSupport {
+    @Test
+    void deleteDatabaseRemovesCompactTables() throws ParameterException {
+        database.setCompactKeys(true);
+        RedisTable table = database.createTable("users");
+        table.valueOps().set("user:1", "a");
+        RedisDatabase other = new RedisDatabase("other", database.getRedisConnectionFactory());
+        other.setCompactKeys(true);
+        other.createTable("users").valueOps().set("user:1", "b");
+
+        database.delete();
+        assertTrue(TableCatalog.tables(redisTemplate, "test").isEmpty());
+        assertNull(redisTemplate.opsForValue().get(table.valueOps().getStoreKey("user:1")));
+        assertEquals("b", other.createTable("users").valueOps().get("user:1"));
+    }
+
+    @Test
+    void rejectEmptyNames() throws ParameterException {
+        // 空数据库名的 ":user:" 与紧凑布局ID前缀 ":u" 加key "ser:" 相同
+        assertThrows(ParameterException.class, () -> new RedisDatabase("", database.getRedisConnectionFactory()));
+        assertThrows(ParameterException.class, () -> database.createTable(""));
+
+        database.setCompactKeys(true);
+        RedisTable table = database.createTable("users");
+        assertThrows(ParameterException.class, () -> table.rename(""));
+        assertTrue(table.getTableKey().startsWith(":"));
+        assertEquals("users", table.getName());
+    }
+
+    @Test
+    void renameRejectsClassicTable() throws ParameterException {
+        database.createTable("orders").valueOps().set("order:1", "a");
+        database.setCompactKeys(true);
+        RedisTable table = database.createTable("users");
+
+        assertThrows(IllegalStateException.class, () -> table.rename("orders"));
+        table.rename("members");
+        assertEquals("members", table.getName());
+    }
+}
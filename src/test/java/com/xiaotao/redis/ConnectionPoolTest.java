@@ -0,0 +1,50 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.DecoratedRedisConnection;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.lettuce.LettuceConnection;
+import org.springframework.data.redis.core.RedisCallback;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConnectionPoolTest extends RedisTestSupport {
+    @Test
+    void pooledConnectionExposesDelegate() {
+        ConnectionPool pool = database.createConnectionPool("bulk", PoolOptions.defaults());
+        try {
+            Boolean lettuce = pool.getRedisTemplate().execute((RedisCallback<Boolean>) connection -> {
+                RedisConnection nativeConnection = connection;
+                while (nativeConnection instanceof DecoratedRedisConnection) {
+                    nativeConnection = ((DecoratedRedisConnection) nativeConnection).getDelegate();
+                }
+                return nativeConnection instanceof LettuceConnection;
+            });
+            assertTrue(lettuce);
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    void rebindKeepsOperations() throws ParameterException {
+        RedisTable table = database.createTable("jobs");
+        ListOperations listOps = table.listOps();
+        ConnectionPool pool = database.createConnectionPool("jobs", PoolOptions.defaults());
+        try {
+            table.setConnectionPool(pool);
+            assertSame(listOps, table.listOps());
+
+            listOps.rightPushAll("queue", "a", "b", "c");
+            assertEquals(Arrays.asList("a", "b"), listOps.leftPop("queue", 2));
+            assertTrue(pool.getBorrowCount() > 0);
+        } finally {
+            pool.close();
+        }
+    }
+}
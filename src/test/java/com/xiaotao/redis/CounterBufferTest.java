@@ -0,0 +1,61 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class CounterBufferTest extends RedisTestSupport {
+    @Test
+    void closedBufferWritesDirectly() throws ParameterException {
+        RedisTable table = database.createTable("counters");
+        CounterBuffer buffer = table.enableCounterBuffer(1, TimeUnit.MINUTES, 1000);
+        assertNull(table.valueOps().incrBy("views", 2));
+        buffer.close();
+
+        assertEquals(5L, table.valueOps().incrBy("views", 3));
+        assertEquals(1.5, table.hashOps().increment("stats", "score", 1.5));
+    }
+
+    @Test
+    void noIncrementLostWhenDisabled() throws ParameterException, InterruptedException {
+        RedisTable table = database.createTable("counters");
+        table.enableCounterBuffer(10, TimeUnit.MILLISECONDS, 1000);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    table.valueOps().incrBy("views", 1);
+                    table.hashOps().increment("stats", "score", 0.5);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        Thread.sleep(20);
+        table.disableCounterBuffer();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals("2000", table.valueOps().get("views"));
+        assertEquals("1000", table.hashOps().get("stats", "score"));
+    }
+
+    @Test
+    void idleCellsAreRemoved() throws ParameterException {
+        RedisTable table = database.createTable("counters");
+        CounterBuffer buffer = table.enableCounterBuffer(1, TimeUnit.MINUTES, 1000);
+        for (int i = 0; i < 10; i++) {
+            table.hashOps().increment("stats", "score", 0.1);
+        }
+        buffer.flush();
+        buffer.flush();
+        assertEquals(0, buffer.getPendingKeys());
+    }
+}
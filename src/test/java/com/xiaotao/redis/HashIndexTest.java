@@ -0,0 +1,63 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashIndexTest extends RedisTestSupport {
+    @Test
+    void otherInstancesMaintainNewIndex() throws ParameterException, InterruptedException {
+        RedisTable table = database.createTable("users");
+        RedisTable other = new RedisDatabase("test", database.getRedisConnectionFactory()).createTable("users");
+        table.addHashIndex("city", HashOperations.IndexType.EQUALITY);
+        Thread.sleep(RedisTable.SETTINGS_REFRESH_MILLIS);
+
+        other.hashOps().put("user:1", "city", "bj");
+        assertEquals(Collections.singletonList("user:1"), table.hashOps().findKeys("city", "bj", 0, 10));
+    }
+
+    @Test
+    void addIndexKeepsOtherInstancesIndexes() throws ParameterException {
+        RedisTable table = database.createTable("users");
+        RedisTable other = new RedisDatabase("test", database.getRedisConnectionFactory()).createTable("users");
+        table.addHashIndex("city", HashOperations.IndexType.EQUALITY);
+        other.addHashIndex("age", HashOperations.IndexType.RANGE);
+
+        assertTrue(other.getHashIndexes().containsKey("city"));
+        assertTrue(other.getHashIndexes().containsKey("age"));
+    }
+
+    @Test
+    void rejectKeySeparatorInField() throws ParameterException {
+        RedisTable table = database.createTable("users");
+        assertThrows(IllegalArgumentException.class, () -> table.addHashIndex("home:city", HashOperations.IndexType.EQUALITY));
+    }
+
+    @Test
+    void batchDeleteRemovesIndexEntries() throws ParameterException {
+        RedisTable table = database.createTable("users");
+        table.addHashIndex("city", HashOperations.IndexType.EQUALITY);
+        table.hashOps().put("user:1", "city", "bj");
+        table.hashOps().put("user:2", "city", "bj");
+        table.hashOps().put("user:3", "city", "bj");
+
+        table.hashOps().delete(Arrays.asList("user:1", "user:2"));
+        assertEquals(Collections.singletonList("user:3"), table.hashOps().findKeys("city", "bj", 0, 10));
+        assertEquals(1L, table.hashOps().countIndexed("city", "bj"));
+    }
+
+    @Test
+    void rejectRenameWithIndexes() throws ParameterException {
+        RedisTable table = database.createTable("users");
+        table.addHashIndex("city", HashOperations.IndexType.EQUALITY);
+        table.hashOps().put("user:1", "city", "bj");
+        assertThrows(IllegalStateException.class, () -> table.hashOps().rename("user:1", "user:9"));
+        assertThrows(IllegalStateException.class, () -> table.hashOps().renameIfAbsent("user:1", "user:9"));
+    }
+}
@@ -0,0 +1,106 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.DataType;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashRebucketTest extends RedisTestSupport {
+    private static final int FIELDS = 200;
+
+    @Test
+    void splitUnbucketedHashes() throws ParameterException {
+        RedisTable table = database.createTable("users");
+        HashOperations hashOps = table.hashOps();
+        hashOps.putAll("user:1", fields("a"));
+        hashOps.putAll("user:2", fields("b"));
+        table.bloomOps().create("seen", 1000, 0.01);
+        table.bloomOps().add("seen", "x");
+
+        table.setHashBuckets(4);
+        // 迁移期间的写入直接进入新分桶, 迁移时不能再被拆分
+        hashOps.put("user:3", "f1", "c");
+        assertThrows(IllegalStateException.class, hashOps::rebucket);
+        hashOps.rebucket("user:*");
+
+        assertEquals(0, table.getPreviousHashBuckets());
+        assertEquals(fields("a"), hashOps.getAll("user:1"));
+        assertEquals(fields("b"), hashOps.getAll("user:2"));
+        assertEquals("c", hashOps.get("user:3", "f1"));
+        assertFalse(redisTemplate.hasKey(table.getTableKey() + "user:1"));
+        for (int i = 0; i < 4; i++) {
+            assertFalse(redisTemplate.hasKey(table.getTableKey() + "user:3#" + i + "#0"));
+        }
+        assertTrue(table.bloomOps().mightContain("seen", "x"));
+    }
+
+    @Test
+    void changeBucketCount() throws ParameterException {
+        RedisTable table = database.createTable("users");
+        HashOperations hashOps = table.hashOps();
+        table.setHashBuckets(4);
+        hashOps.rebucket("user:*");
+        hashOps.putAll("user:1", fields("a"));
+        hashOps.putAll("user:2", fields("b"));
+        table.bloomOps().create("seen", 1000, 0.01);
+        table.bloomOps().add("seen", "x");
+
+        table.setHashBuckets(3);
+        hashOps.rebucket();
+
+        assertEquals(0, table.getPreviousHashBuckets());
+        assertEquals(fields("a"), hashOps.getAll("user:1"));
+        assertEquals(fields("b"), hashOps.getAll("user:2"));
+        assertFalse(redisTemplate.hasKey(table.getTableKey() + "user:1#3"));
+        assertTrue(table.bloomOps().mightContain("seen", "x"));
+    }
+
+    @Test
+    void otherInstancesSeeNewBuckets() throws ParameterException, InterruptedException {
+        RedisTable table = database.createTable("users");
+        RedisTable other = new RedisDatabase("test", database.getRedisConnectionFactory()).createTable("users");
+        assertEquals(1, other.getHashBuckets());
+
+        table.setHashBuckets(4);
+        Thread.sleep(RedisTable.SETTINGS_REFRESH_MILLIS);
+        other.hashOps().put("user:1", "f1", "a");
+        assertEquals("a", table.hashOps().get("user:1", "f1"));
+        assertEquals(4, other.getHashBuckets());
+    }
+
+    @Test
+    void keyOperationsOnBucketedHash() throws ParameterException {
+        RedisTable table = database.createTable("users");
+        table.setHashBuckets(4);
+        table.hashOps().rebucket("user:*");
+        HashOperations hashOps = table.hashOps();
+        hashOps.putAll("user:1", fields("a"));
+
+        assertEquals(DataType.HASH, hashOps.type("user:1"));
+        assertEquals(Long.valueOf(-1), hashOps.getExpire("user:1"));
+        hashOps.expire("user:1", 1, TimeUnit.HOURS);
+        assertTrue(hashOps.getExpire("user:1") > 0);
+        assertEquals(Long.valueOf(-2), hashOps.getExpire("user:2"));
+        assertThrows(IllegalStateException.class, () -> hashOps.dump("user:1"));
+        assertThrows(IllegalStateException.class, () -> hashOps.rename("user:1", "user:2"));
+        assertThrows(IllegalStateException.class, () -> hashOps.renameIfAbsent("user:1", "user:2"));
+        assertThrows(IllegalStateException.class, () -> hashOps.move("user:1", 1));
+        assertEquals(fields("a"), hashOps.getAll("user:1"));
+    }
+
+    private static Map<String, String> fields(String value) {
+        Map<String, String> fields = new HashMap<>();
+        for (int i = 0; i < FIELDS; i++) {
+            fields.put("f" + i, value + i);
+        }
+        return fields;
+    }
+}
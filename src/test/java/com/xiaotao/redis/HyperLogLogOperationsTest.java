@@ -0,0 +1,77 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HyperLogLogOperationsTest extends RedisTestSupport {
+    @Test
+    void countAndUnion() throws ParameterException {
+        HyperLogLogOperations ops = database.createTable("uv").hllOps();
+        assertEquals(Long.valueOf(1), ops.add("day1", "a", "b", "c"));
+        assertEquals(Long.valueOf(0), ops.add("day1", "a"));
+        ops.add("day2", "c", "d");
+
+        assertEquals(Long.valueOf(3), ops.size("day1"));
+        assertEquals(Long.valueOf(0), ops.size("missing"));
+        assertEquals(Long.valueOf(4), ops.size(Arrays.asList("day1", "day2")));
+        ops.union("week", Arrays.asList("day1", "day2"));
+        assertEquals(Long.valueOf(4), ops.size("week"));
+        assertTrue(redisTemplate.hasKey(ops.getStoreKey("week")));
+    }
+
+    @Test
+    void bufferDeduplicatesUntilFlush() throws ParameterException {
+        HyperLogLogOperations ops = database.createTable("uv").hllOps();
+        HyperLogLogBuffer buffer = ops.buffer(1, TimeUnit.MINUTES, 100000);
+        for (int i = 0; i < 3; i++) {
+            buffer.add("day1", "a");
+            buffer.add("day1", "b");
+            buffer.add("day2", "a");
+        }
+        assertEquals(9, buffer.getAdds());
+        assertEquals(3, buffer.getPendingValues());
+        assertEquals(Long.valueOf(0), ops.size("day1"));
+
+        buffer.flush();
+        assertEquals(0, buffer.getPendingValues());
+        assertEquals(2, buffer.getCommands());
+        assertEquals(Long.valueOf(2), ops.size("day1"));
+        assertEquals(Long.valueOf(1), ops.size("day2"));
+    }
+
+    @Test
+    void bufferSplitsLargeBatchesAndFlushesOnClose() throws ParameterException {
+        HyperLogLogOperations ops = database.createTable("uv").hllOps();
+        HyperLogLogBuffer buffer = ops.buffer(1, TimeUnit.MINUTES, 100000);
+        for (int i = 0; i < 2500; i++) {
+            buffer.add("day1", "u" + i);
+        }
+        buffer.close();
+
+        assertEquals(3, buffer.getCommands());
+        long size = ops.size("day1");
+        assertTrue(size > 2400 && size < 2600);
+        assertThrows(IllegalStateException.class, () -> buffer.add("day1", "x"));
+    }
+
+    @Test
+    void bufferFlushesAtThreshold() throws ParameterException, InterruptedException {
+        HyperLogLogOperations ops = database.createTable("uv").hllOps();
+        HyperLogLogBuffer buffer = ops.buffer(1, TimeUnit.MINUTES, 10);
+        for (int i = 0; i < 10; i++) {
+            buffer.add("day1", "u" + i);
+        }
+        for (int i = 0; i < 50 && ops.size("day1") == 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(Long.valueOf(10), ops.size("day1"));
+        buffer.close();
+    }
+}
@@ -0,0 +1,44 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LeaderboardTest extends RedisTestSupport {
+    @Test
+    void writesFromOtherInstancesInvalidateSnapshot() throws ParameterException, InterruptedException {
+        RedisTable table = database.createTable("games");
+        Leaderboard leaderboard = table.zSetOps().leaderboard("rank", 10);
+        leaderboard.setMaxStaleness(0, TimeUnit.MILLISECONDS);
+        leaderboard.add("a", 1);
+        Thread.sleep(RedisTable.SETTINGS_REFRESH_MILLIS);
+        assertEquals("a", leaderboard.top(1).get(0).getValue());
+
+        // 另一个实例没有创建排行榜, 修改仍会增加版本号
+        RedisTable other = new RedisDatabase("test", database.getRedisConnectionFactory()).createTable("games");
+        other.zSetOps().add("rank", "b", 2);
+        assertEquals("b", leaderboard.top(1).get(0).getValue());
+        long refreshes = leaderboard.getRefreshes();
+        leaderboard.top(1);
+        assertEquals(refreshes, leaderboard.getRefreshes());
+    }
+
+    @Test
+    void snapshotExpiresAfterMaxAge() throws ParameterException, InterruptedException {
+        RedisTable table = database.createTable("games");
+        Leaderboard leaderboard = table.zSetOps().leaderboard("rank", 10);
+        leaderboard.setMaxStaleness(0, TimeUnit.MILLISECONDS);
+        leaderboard.setMaxAge(100, TimeUnit.MILLISECONDS);
+        Thread.sleep(RedisTable.SETTINGS_REFRESH_MILLIS);
+        leaderboard.add("a", 1);
+        assertEquals("a", leaderboard.top(1).get(0).getValue());
+
+        // 直接修改Redis不会增加版本号
+        redisTemplate.opsForZSet().add(table.getTableKey() + "rank", "b", 2);
+        Thread.sleep(150);
+        assertEquals("b", leaderboard.top(1).get(0).getValue());
+    }
+}
@@ -0,0 +1,51 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ListOperationsTest extends RedisTestSupport {
+    @Test
+    void multiPopWithCount() throws ParameterException {
+        checkMultiPop(database.createTable("lists").listOps());
+    }
+
+    @Test
+    void multiPopWithScript() throws ParameterException {
+        // 连接不是 LettuceConnection 时使用 LRANGE+LTRIM 脚本
+        RedisDatabase other = new RedisDatabase("test",
+                intercept(database.getRedisConnectionFactory(), (connection, method, args) -> invoke(method, connection, args)));
+        checkMultiPop(other.createTable("lists").listOps());
+    }
+
+    @Test
+    void drainInBatches() throws ParameterException {
+        ListOperations ops = database.createTable("lists").listOps();
+        List<String> items = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            items.add("i" + i);
+        }
+        ops.rightPushAll("l", items);
+
+        assertEquals(items.subList(0, 1500), ops.drain("l", 1500));
+        assertEquals(items.subList(1500, 2500), ops.drain("l", 5000));
+        assertEquals(Collections.emptyList(), ops.drain("l", 10));
+    }
+
+    private static void checkMultiPop(ListOperations ops) {
+        ops.rightPushAll("l", "a", "b", "c", "d", "e");
+
+        assertEquals(Arrays.asList("a", "b"), ops.leftPop("l", 2));
+        assertEquals(Arrays.asList("e", "d"), ops.rightPop("l", 2));
+        assertEquals(Collections.singletonList("c"), ops.leftPop("l", 10));
+        assertEquals(Collections.emptyList(), ops.rightPop("l", 3));
+        assertEquals(Collections.emptyList(), ops.leftPop("missing", 3));
+        assertEquals(Collections.emptyList(), ops.leftPop("l", 0));
+    }
+}
@@ -0,0 +1,108 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.ZSetOperations.TypedTuple;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PageIteratorTest extends RedisTestSupport {
+    private static final int SIZE = 1000;
+
+    @Test
+    void listPagesInOrder() throws ParameterException {
+        ListOperations ops = database.createTable("pages").listOps();
+        List<String> items = items();
+        ops.rightPushAll("l", items);
+
+        for (boolean readAhead : new boolean[]{false, true}) {
+            assertEquals(items, ops.rangeStream("l", 64, readAhead).collect(Collectors.toList()));
+            assertEquals(items, ops.rangeStream("l", 100, readAhead).collect(Collectors.toList()));
+        }
+        assertFalse(ops.rangeIterator("missing", 10, true).hasNext());
+    }
+
+    @Test
+    void setPagesCoverAllMembers() throws ParameterException {
+        SetOperations ops = database.createTable("pages").setOps();
+        List<String> items = items();
+        ops.add("s", items.toArray(new String[0]));
+
+        for (boolean readAhead : new boolean[]{false, true}) {
+            List<String> members = ops.membersStream("s", 50, readAhead).collect(Collectors.toList());
+            assertEquals(new HashSet<>(items), new HashSet<>(members));
+        }
+    }
+
+    @Test
+    void hashPagesWalkEveryBucket() throws ParameterException {
+        RedisTable table = database.createTable("pages");
+        table.setHashBuckets(4);
+        HashOperations ops = table.hashOps();
+        Map<String, String> fields = new HashMap<>();
+        for (String item : items()) {
+            fields.put(item, "v" + item);
+        }
+        ops.putAll("h", fields);
+        assertEquals(4, redisTemplate.keys(ops.getStoreKey("h") + "*").size());
+
+        for (boolean readAhead : new boolean[]{false, true}) {
+            Map<String, String> read = new HashMap<>();
+            ops.getAllStream("h", 50, readAhead).forEach(e -> read.put(e.getKey(), e.getValue()));
+            assertEquals(fields, read);
+        }
+    }
+
+    @Test
+    void zSetPagesMergeShardsByScore() throws ParameterException {
+        RedisTable table = database.createTable("pages");
+        table.setZSetShards(4);
+        ZSetOperations ops = table.zSetOps();
+        List<String> items = items();
+        for (int i = 0; i < SIZE; i++) {
+            // 分数有重复, 同分时按成员字节序
+            ops.add("z", items.get(i), (i * 7) % 50);
+        }
+        List<String> expected = new ArrayList<>(ops.range("z", 0, -1));
+        assertEquals(SIZE, expected.size());
+
+        for (boolean readAhead : new boolean[]{false, true}) {
+            List<TypedTuple<String>> tuples = ops.rangeStream("z", 30, readAhead).collect(Collectors.toList());
+            assertEquals(expected, tuples.stream().map(TypedTuple::getValue).collect(Collectors.toList()));
+            for (int i = 1; i < tuples.size(); i++) {
+                assertFalse(tuples.get(i).getScore() < tuples.get(i - 1).getScore());
+            }
+        }
+    }
+
+    @Test
+    void invalidPageSizeAndExhaustedIterator() throws ParameterException {
+        RedisTable table = database.createTable("pages");
+        assertThrows(IllegalArgumentException.class, () -> table.listOps().rangeIterator("l", 0, false));
+        assertThrows(IllegalArgumentException.class, () -> table.setOps().membersIterator("s", -1, false));
+
+        table.listOps().rightPushAll("l", "a");
+        Iterator<String> iterator = table.listOps().rangeIterator("l", 10, false);
+        assertEquals("a", iterator.next());
+        assertThrows(NoSuchElementException.class, iterator::next);
+    }
+
+    private static List<String> items() {
+        List<String> items = new ArrayList<>();
+        for (int i = 0; i < SIZE; i++) {
+            items.add("m" + i);
+        }
+        return items;
+    }
+}
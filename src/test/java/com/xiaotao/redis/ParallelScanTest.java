@@ -0,0 +1,34 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.StringRedisConnection;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ParallelScanTest extends RedisTestSupport {
+    private static final int KEYS = 5000;
+
+    @Test
+    void visitEachKeyOnce() throws ParameterException {
+        RedisTable table = database.createTable("orders");
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            values.put("order:" + i, "1");
+        }
+        table.valueOps().multiSet(values);
+
+        long total = table.parallelScan()
+                .match("order:*")
+                .batchSize(100)
+                .parallelism(8)
+                .fetch(StringRedisConnection::get)
+                .mapReduce((key, value) -> Long.parseLong((String) value), 0L, Long::sum);
+        assertEquals(KEYS, total);
+        assertEquals(KEYS, table.parallelScan().forEach((key, value) -> {
+        }));
+    }
+}
@@ -0,0 +1,44 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PipelineFallbackTest extends RedisTestSupport {
+    @Test
+    void multiKeyOperationsWithoutPipeline() throws ParameterException {
+        RedisTable table = new RedisDatabase("test", withoutPipeline(database.getRedisConnectionFactory())).createTable("users");
+        StringOperations ops = table.valueOps();
+        Map<String, String> values = new LinkedHashMap<>();
+        values.put("a", "1");
+        values.put("b", "2");
+        ops.multiSet(values);
+
+        assertEquals(Arrays.asList("1", "2", null), ops.multiGet(Arrays.asList("a", "b", "c")));
+        assertFalse(ops.multiSetIfAbsent(values));
+        ops.delete(Arrays.asList("a", "b", "c"));
+        assertNull(redisTemplate.opsForValue().get(ops.getStoreKey("a")));
+        assertTrue(ops.multiSetIfAbsent(values));
+    }
+
+    /**
+     * 连接不支持pipeline, 如 JedisClusterConnection
+     */
+    private static RedisConnectionFactory withoutPipeline(RedisConnectionFactory factory) {
+        return intercept(factory, (connection, method, args) -> {
+            if (method.getName().equals("openPipeline")) {
+                throw new UnsupportedOperationException("Pipeline is not supported");
+            }
+            return invoke(method, connection, args);
+        });
+    }
+}
@@ -0,0 +1,36 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimiterTest extends RedisTestSupport {
+    @Test
+    void rejectLeaseLongerThanWindow() throws ParameterException {
+        RateLimiter limiter = database.createTable("limits")
+                .rateLimiter("api", RateLimiter.Algorithm.SLIDING_WINDOW, 10, 1, TimeUnit.SECONDS);
+        assertThrows(IllegalArgumentException.class, () -> limiter.enableLease(5, 2, TimeUnit.SECONDS));
+        limiter.enableLease(5, 1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void leaseKeepsLimit() throws ParameterException, InterruptedException {
+        RateLimiter limiter = database.createTable("limits")
+                .rateLimiter("api", RateLimiter.Algorithm.SLIDING_LOG, 10, 1, TimeUnit.SECONDS);
+        limiter.enableLease(4, 50, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire("user:1"));
+        }
+        assertFalse(limiter.tryAcquire("user:1"));
+
+        // 租约到期被清理后重新向Redis申请
+        Thread.sleep(100);
+        assertFalse(limiter.tryAcquire("user:1"));
+        assertTrue(limiter.tryAcquire("user:2"));
+    }
+}
@@ -0,0 +1,101 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+
+/**
+ * 测试基类: 启动内嵌Redis, 每个测试前清空数据
+ *
+ * @author wxt366@126.com
+ */
+abstract class RedisTestSupport {
+    private static RedisServer redisServer;
+
+    private static LettuceConnectionFactory connectionFactory;
+
+    protected static StringRedisTemplate redisTemplate;
+
+    protected RedisDatabase database;
+
+    @BeforeAll
+    static void startRedis() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        // 每个测试类解压一份新的redis-server, 其他线程同时fork时可能因文件仍被占用(ETXTBSY)启动失败, 重试几次
+        for (int attempt = 1; ; attempt++) {
+            redisServer = new RedisServer(port);
+            try {
+                redisServer.start();
+                break;
+            } catch (IOException e) {
+                if (attempt >= 3) {
+                    throw e;
+                }
+            }
+        }
+
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("localhost", port));
+        connectionFactory.afterPropertiesSet();
+        redisTemplate = new StringRedisTemplate(connectionFactory);
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        connectionFactory.destroy();
+        redisServer.stop();
+    }
+
+    /**
+     * 包装连接工厂, 其连接的每个方法调用交给interceptor, 用于模拟不同的连接实现(如不支持pipeline)或故障
+     */
+    protected static RedisConnectionFactory intercept(RedisConnectionFactory factory, ConnectionInterceptor interceptor) {
+        return (RedisConnectionFactory) Proxy.newProxyInstance(RedisConnectionFactory.class.getClassLoader(),
+                new Class<?>[]{RedisConnectionFactory.class}, (proxy, method, args) -> {
+                    Object result = invoke(method, factory, args);
+                    if (!(result instanceof RedisConnection)) {
+                        return result;
+                    }
+                    RedisConnection connection = (RedisConnection) result;
+                    return Proxy.newProxyInstance(RedisConnection.class.getClassLoader(), new Class<?>[]{RedisConnection.class},
+                            (p, m, a) -> interceptor.invoke(connection, m, a));
+                });
+    }
+
+    protected static Object invoke(Method method, Object target, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    interface ConnectionInterceptor {
+        Object invoke(RedisConnection connection, Method method, Object[] args) throws Throwable;
+    }
+
+    @BeforeEach
+    void flush() throws ParameterException {
+        redisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.flushAll();
+            return null;
+        });
+        database = new RedisDatabase("test", connectionFactory);
+    }
+}
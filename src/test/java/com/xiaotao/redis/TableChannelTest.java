@@ -0,0 +1,46 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class TableChannelTest extends RedisTestSupport {
+    @Test
+    void sameNameReturnsSameChannel() throws ParameterException {
+        RedisTable table = database.createTable("events");
+        TableChannel channel = table.channel("invalidate");
+        assertSame(channel, table.channel("invalidate"));
+
+        channel.close();
+        assertNotSame(channel, table.channel("invalidate"));
+    }
+
+    @Test
+    void skipMalformedMessages() throws ParameterException, InterruptedException {
+        RedisTable table = database.createTable("events");
+        TableChannel channel = table.channel("invalidate");
+        List<String> received = new CopyOnWriteArrayList<>();
+        channel.subscribe(received::add);
+        Thread.sleep(200);
+
+        redisTemplate.convertAndSend(table.getFixedKey() + "invalidate", "not a frame");
+        redisTemplate.convertAndSend(table.getFixedKey() + "invalidate", "99:short");
+        channel.publish("key1");
+        channel.publish("key2");
+        channel.flush();
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (received.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("key1", "key2"), received);
+        channel.close();
+    }
+}
@@ -0,0 +1,117 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TableGenerationTest extends RedisTestSupport {
+    @Test
+    void tablesWithSameNameShareOneWatch() throws ParameterException {
+        String generationKey = "root:gen:test:users";
+        database.createTable("users");
+        TableGeneration.Watch watch = database.watchGeneration(generationKey);
+        database.createTable("users");
+        assertSame(watch, database.watchGeneration(generationKey));
+    }
+
+    @Test
+    void otherClientsSeeTruncate() throws ParameterException, InterruptedException {
+        RedisTable table = database.createTable("users");
+        RedisTable other = new RedisDatabase("test", database.getRedisConnectionFactory()).createTable("users");
+        other.valueOps().set("name", "a");
+        String oldKey = other.getTableKey();
+
+        table.truncate().join();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (other.getGeneration() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, other.getGeneration());
+        assertNotEquals(oldKey, other.getTableKey());
+        assertNull(other.valueOps().get("name"));
+    }
+
+    @Test
+    void deleteRemovesUnreapedGenerations() throws ParameterException {
+        RedisTable table = database.createTable("users");
+        table.valueOps().set("name", "a");
+        // 只增加代数, 不清理旧代数
+        TableGeneration.increment(redisTemplate, "root:gen:test:users");
+        waitForGeneration(table, 1);
+        table.valueOps().set("name", "b");
+
+        table.delete();
+        assertTrue(redisTemplate.keys("test:*").isEmpty());
+    }
+
+    @Test
+    void deleteDatabaseRemovesCompactGenerations() throws ParameterException {
+        database.setCompactKeys(true);
+        RedisTable table = database.createTable("users");
+        table.valueOps().set("name", "a");
+        TableGeneration.increment(redisTemplate, "root:gen:test:users");
+        waitForGeneration(table, 1);
+        table.valueOps().set("name", "b");
+
+        database.delete();
+        assertTrue(redisTemplate.keys("*").stream().allMatch(key -> key.startsWith("root:")));
+    }
+
+    @Test
+    void foreignMessageIsIgnored() throws ParameterException {
+        RedisTable table = database.createTable("users");
+        redisTemplate.convertAndSend("root:gen:test:users", "hello");
+        TableGeneration.increment(redisTemplate, "root:gen:test:users");
+        waitForGeneration(table, 1);
+    }
+
+    @Test
+    void lockSurvivesTruncate() throws ParameterException {
+        RedisTable table = database.createTable("users");
+        TableLock lock = table.lock("job");
+        assertTrue(lock.tryLock());
+
+        table.truncate().join();
+        RedisTable other = new RedisDatabase("test", database.getRedisConnectionFactory()).createTable("users");
+        assertEquals(1, other.getGeneration());
+        assertFalse(other.lock("job").tryLock());
+        lock.unlock();
+        assertTrue(other.lock("job").tryLock());
+    }
+
+    @Test
+    void queueFollowsTruncate() throws ParameterException, InterruptedException {
+        RedisTable table = database.createTable("users");
+        TableQueue queue = table.queue("tasks");
+        queue.push("old");
+
+        table.truncate().join();
+        RedisTable other = new RedisDatabase("test", database.getRedisConnectionFactory()).createTable("users");
+        other.queue("tasks").push("new");
+
+        BlockingQueue<String> handled = new LinkedBlockingQueue<>();
+        queue.start(handled::add);
+        assertEquals("new", handled.poll(10, TimeUnit.SECONDS));
+        queue.close();
+        assertTrue(handled.isEmpty());
+    }
+
+    private static void waitForGeneration(RedisTable table, long generation) {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (table.getGeneration() < generation && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        assertEquals(generation, table.getGeneration());
+    }
+}
@@ -0,0 +1,110 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TableLockTest extends RedisTestSupport {
+    @Test
+    void exclusiveAcrossInstancesWithIncreasingTokens() throws Exception {
+        RedisTable table = database.createTable("jobs");
+        TableLock lock = table.lock("job");
+        TableLock other = new RedisDatabase("test", database.getRedisConnectionFactory()).createTable("jobs").lock("job");
+
+        lock.lock();
+        long first = lock.getFencingToken();
+        assertFalse(other.tryLock());
+        assertFalse(other.tryLock(100, TimeUnit.MILLISECONDS));
+
+        // 租期30秒, 等待方依靠解锁通知而不是锁过期被唤醒
+        CompletableFuture<Long> waiter = CompletableFuture.supplyAsync(() -> {
+            try {
+                assertTrue(other.tryLock(10, TimeUnit.SECONDS));
+                long token = other.getFencingToken();
+                other.unlock();
+                return token;
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(200);
+        long start = System.currentTimeMillis();
+        lock.unlock();
+        assertTrue(waiter.get(10, TimeUnit.SECONDS) > first);
+        assertTrue(System.currentTimeMillis() - start < 2000);
+
+        assertTrue(lock.tryLock());
+        assertTrue(lock.getFencingToken() > first + 1);
+        lock.unlock();
+    }
+
+    @Test
+    void reentrantAndReleasedOnLastUnlock() throws ParameterException {
+        RedisTable table = database.createTable("jobs");
+        TableLock lock = table.lock("job");
+        String lockKey = table.getFixedKey() + "{job}";
+
+        lock.lock();
+        long token = lock.getFencingToken();
+        assertTrue(lock.tryLock());
+        assertEquals(token, lock.getFencingToken());
+        lock.unlock();
+        assertTrue(redisTemplate.hasKey(lockKey));
+        assertTrue(lock.isHeldByCurrentThread());
+        lock.unlock();
+        assertFalse(redisTemplate.hasKey(lockKey));
+        assertFalse(lock.isHeldByCurrentThread());
+        assertThrows(IllegalMonitorStateException.class, lock::unlock);
+    }
+
+    @Test
+    void watchdogRenewsLease() throws ParameterException, InterruptedException {
+        RedisTable table = database.createTable("jobs");
+        TableLock lock = table.lock("job");
+        lock.setLeaseTime(300, TimeUnit.MILLISECONDS);
+        TableLock other = new RedisDatabase("test", database.getRedisConnectionFactory()).createTable("jobs").lock("job");
+
+        lock.lock();
+        Thread.sleep(1000);
+        assertFalse(other.tryLock());
+        lock.unlock();
+        assertTrue(other.tryLock());
+        other.unlock();
+    }
+
+    @Test
+    void threadsOfSeveralInstancesExcludeEachOther() throws Exception {
+        List<TableLock> locks = new ArrayList<>();
+        locks.add(database.createTable("jobs").lock("job"));
+        locks.add(new RedisDatabase("test", database.getRedisConnectionFactory()).createTable("jobs").lock("job"));
+        StringOperations ops = database.createTable("jobs").valueOps();
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            TableLock lock = locks.get(t % 2);
+            futures.add(CompletableFuture.runAsync(() -> {
+                for (int i = 0; i < 25; i++) {
+                    lock.lock();
+                    try {
+                        // 非原子的读后写, 没有互斥时会丢失更新
+                        String value = ops.get("counter");
+                        ops.set("counter", String.valueOf(value == null ? 1 : Integer.parseInt(value) + 1));
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        assertEquals("100", ops.get("counter"));
+    }
+}
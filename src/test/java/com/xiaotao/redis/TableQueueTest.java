@@ -0,0 +1,83 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.ClusterSlotHashUtil;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TableQueueTest extends RedisTestSupport {
+    @Test
+    void failedItemIsRequeued() throws ParameterException, InterruptedException {
+        RedisTable table = database.createTable("jobs");
+        TableQueue queue = table.queue("tasks");
+        queue.pushAll(Arrays.asList("a", "b", "c"));
+
+        Set<String> handled = ConcurrentHashMap.newKeySet();
+        AtomicBoolean failOnce = new AtomicBoolean(true);
+        CountDownLatch done = new CountDownLatch(3);
+        queue.start(item -> {
+            if (item.equals("b") && failOnce.compareAndSet(true, false)) {
+                throw new IllegalStateException("retry later");
+            }
+            handled.add(item);
+            done.countDown();
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        queue.close();
+
+        assertEquals(3, handled.size());
+        assertEquals(Long.valueOf(0), queue.size());
+        assertTrue(redisTemplate.keys(table.getTableKey() + "{tasks}:processing:*").stream()
+                .allMatch(key -> redisTemplate.opsForList().size(key) == 0));
+    }
+
+    @Test
+    void closeAfterPrefetchChange() throws ParameterException {
+        TableQueue queue = database.createTable("jobs").queue("tasks");
+        queue.setPrefetch(10);
+        queue.start(item -> {
+        });
+        queue.setPrefetch(50);
+
+        long start = System.currentTimeMillis();
+        queue.close();
+        assertTrue(System.currentTimeMillis() - start < TimeUnit.SECONDS.toMillis(10));
+    }
+
+    @Test
+    void keysShareOneSlot() throws ParameterException, InterruptedException {
+        RedisTable table = database.createTable("jobs");
+        TableQueue queue = table.queue("tasks");
+        queue.push("a");
+        CountDownLatch handling = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        queue.start(item -> {
+            handling.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        try {
+            assertTrue(handling.await(10, TimeUnit.SECONDS));
+            // 队列已空, 处理中列表、消费者集合与心跳key存在
+            Set<String> keys = redisTemplate.keys(table.getTableKey() + "*");
+            assertEquals(3, keys.size());
+            assertEquals(1, keys.stream().mapToInt(ClusterSlotHashUtil::calculateSlot).distinct().count());
+            assertEquals(ClusterSlotHashUtil.calculateSlot("tasks"), ClusterSlotHashUtil.calculateSlot(keys.iterator().next()));
+        } finally {
+            release.countDown();
+            queue.close();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TableTransferTest extends RedisTestSupport {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void exportImportRemapsPrefix() throws ParameterException, IOException {
+        RedisTable source = database.createTable("users");
+        fill(source);
+        Path file = tempDir.resolve("users.rht");
+        assertEquals(4, source.exportTo(file));
+
+        // 导入到其他数据库的紧凑布局表, key前缀替换为目标表的前缀
+        RedisDatabase other = new RedisDatabase("other", database.getRedisConnectionFactory());
+        other.setCompactKeys(true);
+        RedisTable target = other.createTable("members");
+        assertEquals(4, target.importFrom(file));
+
+        assertFilled(target);
+        assertTrue(redisTemplate.keys(target.getTableKey() + "*").stream().noneMatch(key -> key.startsWith("test:")));
+        assertEquals(4, redisTemplate.keys(source.getTableKey() + "*").size());
+    }
+
+    @Test
+    void importRejectsDifferentBuckets() throws ParameterException, IOException {
+        RedisTable source = database.createTable("users");
+        fill(source);
+        Path file = tempDir.resolve("users.rht");
+        source.exportTo(file);
+
+        RedisTable target = database.createTable("bucketed");
+        target.setHashBuckets(4);
+        assertThrows(IllegalStateException.class, () -> target.importFrom(file));
+        assertTrue(redisTemplate.keys(target.getTableKey() + "*").isEmpty());
+    }
+
+    @Test
+    void copyToOtherConnectionFactoryRecopiesMissingKeys() throws ParameterException {
+        RedisTable source = database.createTable("users");
+        fill(source);
+
+        // 目标连接第一次 RESTORE "list" 时丢弃, 由校验发现后重新复制
+        AtomicBoolean dropped = new AtomicBoolean();
+        RedisConnectionFactory factory = dropFirstRestore(database.getRedisConnectionFactory(), "list", dropped);
+        RedisTable target = new RedisDatabase("backup", factory).createTable("users");
+        assertEquals(4, source.copyTo(target));
+
+        assertTrue(dropped.get());
+        assertFilled(target);
+        assertFilled(source);
+        assertThrows(IllegalArgumentException.class, () -> source.copyTo(database.createTable("users")));
+    }
+
+    @Test
+    void migrateRemovesSourceKeys() throws ParameterException {
+        RedisTable source = database.createTable("users");
+        fill(source);
+        RedisTable target = new RedisDatabase("backup", database.getRedisConnectionFactory()).createTable("users");
+
+        assertEquals(4, source.migrateTo(target, TransferOptions.defaults().parallelism(2)));
+        assertFilled(target);
+        assertTrue(redisTemplate.keys(source.getTableKey() + "*").isEmpty());
+    }
+
+    private static void fill(RedisTable table) {
+        table.valueOps().set("name", "alice", 1, TimeUnit.HOURS);
+        Map<String, String> fields = new HashMap<>();
+        fields.put("a", "1");
+        fields.put("b", "2");
+        table.hashOps().putAll("hash", fields);
+        table.listOps().rightPushAll("list", "x", "y", "z");
+        table.zSetOps().add("rank", "m", 3);
+    }
+
+    private static void assertFilled(RedisTable table) {
+        assertEquals("alice", table.valueOps().get("name"));
+        long ttl = table.valueOps().getExpire("name", TimeUnit.SECONDS);
+        assertTrue(ttl > 0 && ttl <= 3600);
+        assertEquals("2", table.hashOps().get("hash", "b"));
+        assertEquals(Arrays.asList("x", "y", "z"), table.listOps().range("list", 0, -1));
+        assertEquals(Double.valueOf(3), table.zSetOps().score("rank", "m"));
+        assertFalse(table.valueOps().getExpire("list") > 0);
+        assertNull(table.valueOps().get("missing"));
+    }
+
+    /**
+     * 丢弃第一次对以suffix结尾的key的 RESTORE
+     */
+    private static RedisConnectionFactory dropFirstRestore(RedisConnectionFactory factory, String suffix, AtomicBoolean dropped) {
+        return intercept(factory, (connection, method, args) -> {
+            if (method.getName().equals("restore")
+                    && new String((byte[]) args[0], StandardCharsets.UTF_8).endsWith(suffix)
+                    && dropped.compareAndSet(false, true)) {
+                return null;
+            }
+            return invoke(method, connection, args);
+        });
+    }
+}
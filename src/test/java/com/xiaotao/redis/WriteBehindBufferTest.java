@@ -0,0 +1,61 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class WriteBehindBufferTest extends RedisTestSupport {
+    @Test
+    void deleteDiscardsPendingString() throws ParameterException {
+        RedisTable table = database.createTable("users");
+        WriteBehindBuffer buffer = table.enableWriteBehind(1, TimeUnit.HOURS, 100, 1000);
+
+        table.valueOps().set("name", "a");
+        table.valueOps().delete("name");
+        assertNull(table.valueOps().get("name"));
+        buffer.flush();
+
+        assertNull(table.valueOps().get("name"));
+        assertFalse(redisTemplate.hasKey(table.getTableKey() + "name"));
+        assertEquals(0, buffer.getPendingKeys());
+    }
+
+    @Test
+    void deleteDiscardsPendingHashFields() throws ParameterException {
+        RedisTable table = database.createTable("users");
+        WriteBehindBuffer buffer = table.enableWriteBehind(1, TimeUnit.HOURS, 100, 1000);
+
+        table.hashOps().put("user:1", "name", "a");
+        table.hashOps().put("user:1", "age", "1");
+        table.hashOps().delete("user:1", "name");
+        assertNull(table.hashOps().get("user:1", "name"));
+        table.hashOps().put("user:2", "name", "b");
+        table.hashOps().delete("user:2");
+        buffer.flush();
+
+        assertNull(table.hashOps().get("user:1", "name"));
+        assertEquals("1", table.hashOps().get("user:1", "age"));
+        assertFalse(redisTemplate.hasKey(table.getTableKey() + "user:2"));
+    }
+
+    @Test
+    void directWriteWinsOverPendingValue() throws ParameterException {
+        RedisTable table = database.createTable("users");
+        WriteBehindBuffer buffer = table.enableWriteBehind(1, TimeUnit.HOURS, 100, 1000);
+
+        table.valueOps().set("name", "a");
+        table.valueOps().set("name", "b", 1, TimeUnit.HOURS);
+        buffer.flush();
+        assertEquals("b", table.valueOps().get("name"));
+
+        table.valueOps().set("count", "1");
+        assertEquals(3L, table.valueOps().incrBy("count", 2));
+        buffer.flush();
+        assertEquals("3", table.valueOps().get("count"));
+    }
+}
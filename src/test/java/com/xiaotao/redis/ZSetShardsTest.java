@@ -0,0 +1,60 @@
+package com.xiaotao.redis;
+
+import com.xiaotao.redis.exception.ParameterException;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.DataType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ZSetShardsTest extends RedisTestSupport {
+    @Test
+    void otherInstanceSeesShards() throws ParameterException, InterruptedException {
+        RedisTable table = database.createTable("ranks");
+        assertEquals(1, table.getZSetShards());
+
+        new RedisDatabase("test", database.getRedisConnectionFactory()).createTable("ranks").setZSetShards(4);
+        Thread.sleep(RedisTable.SETTINGS_REFRESH_MILLIS + 100);
+        assertEquals(4, table.getZSetShards());
+    }
+
+    @Test
+    void keyOperationsOnShardedZSet() throws ParameterException {
+        RedisTable table = database.createTable("ranks");
+        table.setZSetShards(4);
+        ZSetOperations ops = table.zSetOps();
+        for (int i = 0; i < 20; i++) {
+            ops.add("board", "m" + i, i);
+        }
+
+        assertEquals(DataType.ZSET, ops.type("board"));
+        ops.expire("board", 1, TimeUnit.HOURS);
+        assertTrue(ops.getExpire("board") > 0);
+        assertThrows(IllegalStateException.class, () -> ops.dump("board"));
+        assertThrows(IllegalStateException.class, () -> ops.rename("board", "other"));
+        assertEquals(Long.valueOf(20), ops.zCard("board"));
+    }
+
+    @Test
+    void tiesOrderedByBytes() throws ParameterException {
+        RedisTable table = database.createTable("ranks");
+        table.setZSetShards(4);
+        ZSetOperations ops = table.zSetOps();
+        // UTF-16下 "😀" 小于 "Ａ", UTF-8字节则相反
+        String emoji = "😀";
+        String fullWidth = "Ａ";
+        for (String member : Arrays.asList("a", "z", fullWidth, emoji)) {
+            ops.add("board", member, 1);
+        }
+
+        assertEquals(Arrays.asList("a", "z", fullWidth, emoji), new ArrayList<>(ops.range("board", 0, -1)));
+        assertEquals(Long.valueOf(2), ops.rank("board", fullWidth));
+        assertEquals(Long.valueOf(3), ops.rank("board", emoji));
+        assertEquals(Long.valueOf(0), ops.reverseRank("board", emoji));
+    }
+}